@@ -66,8 +66,11 @@ public class ApacheDataDescriptor extends TextRegexpDataDescriptor {
   }
 
   public static boolean isApacheLogFile(FileSystem fs, Path p) {
+    return isApacheLogFile(new FileHead(fs, p));
+  }
+  public static boolean isApacheLogFile(FileHead head) {
     try {
-      return TextRegexpDataDescriptor.isTextRegexpFile(fs, p, apacheRegexps);
+      return TextRegexpDataDescriptor.isTextRegexpFile(head, apacheRegexps);
     } catch (IOException iex) {
       return false;
     }
@@ -24,6 +24,7 @@ import java.util.List;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IOUtils;
 
 import org.apache.hadoop.conf.Configuration;
 
@@ -56,6 +57,11 @@ public class AvroDataDescriptor extends GenericDataDescriptor {
   // GenericDataDescriptor
   //////////////////////////////////
   public void prepareAvroFile(FileSystem srcFs, FileSystem dstFs, Path dst, Configuration conf) throws IOException {
-    FileUtil.copy(srcFs, getFilename(), dstFs, dst, false, true, conf);
+    if (CompressedFiles.isCompressed(getFilename())) {
+      // Stream the decompressed bytes straight to the destination
+      IOUtils.copyBytes(CompressedFiles.open(srcFs, getFilename()), dstFs.create(dst, true), conf, true);
+    } else {
+      FileUtil.copy(srcFs, getFilename(), dstFs, dst, false, true, conf);
+    }
   }
 }
\ No newline at end of file
@@ -41,21 +41,23 @@ public class AvroSequenceFileDataDescriptor extends GenericDataDescriptor {
    * Test whether this is an AvroSequenceFile or not.
    */
   public static boolean isAvroSequenceFile(FileSystem fs, Path p) {
-    try {
-      SequenceFile.Reader in = new SequenceFile.Reader(fs, p, new Configuration());
-      try {
-        SequenceFile.Metadata seqFileMetadata = in.getMetadata();
-        TreeMap<Text, Text> kvs = seqFileMetadata.getMetadata();
-        if (kvs.get(AvroSequenceFile.METADATA_FIELD_KEY_SCHEMA) != null &&
-            kvs.get(AvroSequenceFile.METADATA_FIELD_VALUE_SCHEMA) != null) {
-          return true;
-        } else {
-          return false;
-        }
-      } finally {
-        in.close();
-      }
-    } catch (IOException iex) {
+    return isAvroSequenceFile(new FileHead(fs, p));
+  }
+
+  /**
+   * Test whether this is an AvroSequenceFile, from the SequenceFile header
+   * metadata in the shared file head.
+   */
+  public static boolean isAvroSequenceFile(FileHead head) {
+    SequenceFile.Metadata seqFileMetadata = head.getSequenceFileMetadata();
+    if (seqFileMetadata == null) {
+      return false;
+    }
+    TreeMap<Text, Text> kvs = seqFileMetadata.getMetadata();
+    if (kvs.get(AvroSequenceFile.METADATA_FIELD_KEY_SCHEMA) != null &&
+        kvs.get(AvroSequenceFile.METADATA_FIELD_VALUE_SCHEMA) != null) {
+      return true;
+    } else {
       return false;
     }
   }
@@ -54,43 +54,44 @@ public class CSVDataDescriptor extends GenericDataDescriptor {
    * Test whether a given file is amenable to CSV processing
    */
   public static boolean isCSV(FileSystem fs, Path p) {
-    String fname = p.getName();    
+    return isCSV(new FileHead(fs, p));
+  }
+
+  /**
+   * Test whether the file is CSV, using the shared head of the file.
+   */
+  public static boolean isCSV(FileHead head) {
+    String fname = head.getLogicalName();
     if (fname.endsWith(".csv")) {
       return true;
     }
     CSVParser parser = new CSVParser();
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-      try {
-        int lineCount = 0;
-        List<Integer> observedEltCounts = new ArrayList<Integer>();
-        int totalEltCount = 0;
-        int minEltCount = Integer.MAX_VALUE;
-        int maxEltCount = -1;
+      int lineCount = 0;
+      List<Integer> observedEltCounts = new ArrayList<Integer>();
+      int totalEltCount = 0;
+      int minEltCount = Integer.MAX_VALUE;
+      int maxEltCount = -1;
 
-        String line = null;
-        while (lineCount < MAX_LINES && ((line = in.readLine()) != null)) {
-          String parts[] = parser.parseLine(line);
-          int numElts = parts.length;
-          minEltCount = Math.min(minEltCount, numElts);
-          maxEltCount = Math.max(maxEltCount, numElts);
-          totalEltCount += numElts;
-          observedEltCounts.add(numElts);
+      for (String line: head.getLines(MAX_LINES)) {
+        String parts[] = parser.parseLine(line);
+        int numElts = parts.length;
+        minEltCount = Math.min(minEltCount, numElts);
+        maxEltCount = Math.max(maxEltCount, numElts);
+        totalEltCount += numElts;
+        observedEltCounts.add(numElts);
         
-          lineCount++;
-        }
-        double meanEltCount = totalEltCount / (1.0 * observedEltCounts.size());
-        double totalVariance = 0;
-        for (Integer v: observedEltCounts) {
-          totalVariance += Math.pow(v - meanEltCount, 2);
-        }
-        double variance = totalVariance / observedEltCounts.size();
-        double stddev = Math.sqrt(variance);
-        if (lineCount >= MIN_LINE_COUNT && meanEltCount >= MIN_MEAN_ELTS && ((stddev / meanEltCount) < MAX_ALLOWABLE_LINE_STDDEV)) {
-          return true;
-        }
-      } finally {
-        in.close();
+        lineCount++;
+      }
+      double meanEltCount = totalEltCount / (1.0 * observedEltCounts.size());
+      double totalVariance = 0;
+      for (Integer v: observedEltCounts) {
+        totalVariance += Math.pow(v - meanEltCount, 2);
+      }
+      double variance = totalVariance / observedEltCounts.size();
+      double stddev = Math.sqrt(variance);
+      if (lineCount >= MIN_LINE_COUNT && meanEltCount >= MIN_MEAN_ELTS && ((stddev / meanEltCount) < MAX_ALLOWABLE_LINE_STDDEV)) {
+        return true;
       }
     } catch (IOException ie) {
     }
@@ -130,7 +131,7 @@ public class CSVDataDescriptor extends GenericDataDescriptor {
     int numRecords = 0;
     int MAX_RECORDS = 1000;
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(srcFs.open(getFilename())));
+      BufferedReader in = new BufferedReader(new InputStreamReader(CompressedFiles.open(srcFs, getFilename())));
       try {
         String rowStr = null;
         while (((rowStr = in.readLine()) != null) && (numRecords < MAX_RECORDS)) {
@@ -111,45 +111,36 @@ public class CSVSchemaDescriptor extends GenericSchemaDescriptor {
     List<String> firstRow = new ArrayList<String>();
     List<List<Schema.Type>> allEltTypes = new ArrayList<List<Schema.Type>>();
     CSVParser parser = new CSVParser();    
-    BufferedReader in = new BufferedReader(new InputStreamReader(dd.getRawBytes()));
-    try {
-      int lineno = 0;
-      String s = null;
-      while ((s = in.readLine()) != null) {
-        List<Schema.Type> schemaTypes = new ArrayList<Schema.Type>();
-        String parts[] = parser.parseLine(s);
+    int lineno = 0;
+    for (String s: dd.getSampleLines(MAX_LINES)) {
+      List<Schema.Type> schemaTypes = new ArrayList<Schema.Type>();
+      String parts[] = parser.parseLine(s);
 
-        for (int i = 0; i < parts.length; i++) {
-          String elt = parts[i];
-          if (elt.startsWith(",")) {
-            elt = elt.substring(1);
-          }
+      for (int i = 0; i < parts.length; i++) {
+        String elt = parts[i];
+        if (elt.startsWith(",")) {
+          elt = elt.substring(1);
+        }
+        elt = elt.trim();
+        if (elt.startsWith("\"") && elt.endsWith("\"")) {
+          elt = elt.substring(1, elt.length()-1);
           elt = elt.trim();
-          if (elt.startsWith("\"") && elt.endsWith("\"")) {
-            elt = elt.substring(1, elt.length()-1);
-            elt = elt.trim();
-          }
-
-          if (lineno == 0) {
-            firstRow.add(elt);
-          } else {
-            schemaTypes.add(identifyType(elt));
-          }
         }
 
         if (lineno == 0) {
-          numColumns = firstRow.size();
-          firstLine = s;
+          firstRow.add(elt);
         } else {
-          allEltTypes.add(schemaTypes);
-        }
-        lineno++;
-        if (lineno >= MAX_LINES) {
-          break;
+          schemaTypes.add(identifyType(elt));
         }
       }
-    } finally {
-      in.close();
+
+      if (lineno == 0) {
+        numColumns = firstRow.size();
+        firstLine = s;
+      } else {
+        allEltTypes.add(schemaTypes);
+      }
+      lineno++;
     }
 
     //
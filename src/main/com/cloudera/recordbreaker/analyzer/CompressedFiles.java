@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/*****************************************************************
+ * <code>CompressedFiles</code> opens files through the Hadoop codec
+ * that matches their suffix (.gz, .bz2, .snappy, .deflate, and any
+ * codec listed in io.compression.codecs), so that detectors and
+ * descriptors see the decompressed bytes.  Files with no matching
+ * codec are opened as-is.
+ *****************************************************************/
+public class CompressedFiles {
+  static CompressionCodecFactory codecFactory = new CompressionCodecFactory(new Configuration());
+
+  /**
+   * The codec for this file, or null if it isn't compressed.
+   */
+  public static CompressionCodec getCodec(Path p) {
+    return codecFactory.getCodec(p);
+  }
+
+  public static boolean isCompressed(Path p) {
+    return getCodec(p) != null;
+  }
+
+  /**
+   * Open the file, decompressing it on the fly if necessary.
+   */
+  public static InputStream open(FileSystem fs, Path p) throws IOException {
+    CompressionCodec codec = getCodec(p);
+    InputStream in = fs.open(p);
+    if (codec == null) {
+      return in;
+    }
+    try {
+      return codec.createInputStream(in);
+    } catch (IOException iex) {
+      in.close();
+      throw iex;
+    } catch (RuntimeException rex) {
+      // e.g., a native codec that isn't loaded
+      in.close();
+      throw new IOException("Cannot decompress " + p + ": " + rex.toString());
+    }
+  }
+
+  /**
+   * The file's name without its compression suffix, e.g. "access.log"
+   * for "access.log.gz".  Format tests that look at the name use this.
+   */
+  public static String getLogicalName(Path p) {
+    CompressionCodec codec = getCodec(p);
+    if (codec == null) {
+      return p.getName();
+    }
+    return CompressionCodecFactory.removeSuffix(p.getName(), codec.getDefaultExtension());
+  }
+}
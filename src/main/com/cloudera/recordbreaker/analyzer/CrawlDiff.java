@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+/*****************************************************************
+ * <code>CrawlDiff</code> is one row of the difference between a crawl
+ * and the previous completed crawl of the same filesystem: a file that
+ * appeared, disappeared, or whose type or schema changed.
+ *****************************************************************/
+public class CrawlDiff {
+  public final static String ADDED = "added";
+  public final static String REMOVED = "removed";
+  public final static String TYPE_CHANGED = "typechanged";
+  public final static String SCHEMA_CHANGED = "schemachanged";
+
+  public long crawlid;
+  public long prevCrawlid;
+  public String change;
+  public String path;
+  public long oldFid;
+  public long newFid;
+  public String oldType;
+  public String newType;
+
+  public CrawlDiff(long crawlid, long prevCrawlid, String change, String path, long oldFid, long newFid, String oldType, String newType) {
+    this.crawlid = crawlid;
+    this.prevCrawlid = prevCrawlid;
+    this.change = change;
+    this.path = path;
+    this.oldFid = oldFid;
+    this.newFid = newFid;
+    this.oldType = oldType;
+    this.newType = newType;
+  }
+}
@@ -69,6 +69,13 @@ public interface DataDescriptor {
    */
   public InputStream getRawBytes() throws IOException;
 
+  /**
+   * <code>getSampleLines</code> returns up to <code>maxLines</code> lines of
+   * text drawn from the head, middle and tail of the file, within a fixed
+   * byte budget.  See LineSampler.
+   */
+  public List<String> getSampleLines(int maxLines) throws IOException;
+
   /**
    * Does this data descriptor support hive queries?
    */
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.util.Map;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/*****************************************************************
+ * <code>DirTree</code> assembles the directory hierarchy of a single
+ * crawl in memory, numbers it with nested intervals, and computes
+ * subtree aggregates.  FSAnalyzer persists the result so that
+ * directory navigation and "everything under /x" queries never need
+ * to scan the Files table.
+ *
+ * Every entry (file or directory) gets a preorder position.  A
+ * directory's interval is [lft, rgt]: lft is its own position, and
+ * everything beneath it falls in (lft, rgt].
+ *****************************************************************/
+class DirTree {
+  /**
+   * A single directory in the tree.
+   */
+  static class DirNode implements Comparable<DirNode> {
+    long fid;
+    String dirPath;
+    String name;
+    DirNode parent;
+    List<DirNode> children = new ArrayList<DirNode>();
+    List<long[]> files = new ArrayList<long[]>();
+    int depth;
+    long lft;
+    long rgt;
+    long numFiles;
+    long numBytes;
+    Map<Long, Long> typeCounts = new TreeMap<Long, Long>();
+
+    DirNode(long fid, String dirPath, String name) {
+      this.fid = fid;
+      this.dirPath = dirPath;
+      this.name = name;
+    }
+    public int compareTo(DirNode other) {
+      return name.compareTo(other.name);
+    }
+  }
+
+  Map<String, DirNode> dirsByKey = new HashMap<String, DirNode>();
+  List<String[]> pendingParents = new ArrayList<String[]>();
+  List<long[]> pendingFiles = new ArrayList<long[]>();
+  List<String> pendingFileParents = new ArrayList<String>();
+  List<DirNode> roots = new ArrayList<DirNode>();
+  List<long[]> positions = new ArrayList<long[]>();
+
+  /**
+   * Directory keys always end in "/", which is how a child's Files.path refers to it.
+   */
+  static String dirKey(String fullPath) {
+    return fullPath.endsWith("/") ? fullPath : fullPath + "/";
+  }
+
+  /**
+   * <code>addDir</code> registers a directory row.  <code>path</code> and
+   * <code>fname</code> are the Files columns of the same name.
+   */
+  void addDir(long fid, String path, String fname) {
+    String fullPath = path + fname;
+    dirsByKey.put(dirKey(fullPath), new DirNode(fid, fullPath, fname));
+    pendingParents.add(new String[] {dirKey(fullPath), path});
+  }
+
+  /**
+   * <code>addFile</code> registers a plain file row.  <code>typeid</code> is -1
+   * if the file has no type guess.
+   */
+  void addFile(long fid, String path, long size, long typeid) {
+    pendingFiles.add(new long[] {fid, size, typeid});
+    pendingFileParents.add(path);
+  }
+
+  /**
+   * <code>finish</code> links the hierarchy, assigns intervals and computes the
+   * aggregates.  Entries whose parent directory was not crawled become roots
+   * (for directories) or are left out of the tree (for files).
+   */
+  void finish() {
+    for (String[] pair: pendingParents) {
+      DirNode node = dirsByKey.get(pair[0]);
+      DirNode parent = dirsByKey.get(pair[1]);
+      if (parent == null || parent == node) {
+        roots.add(node);
+      } else {
+        node.parent = parent;
+        parent.children.add(node);
+      }
+    }
+    for (int i = 0; i < pendingFiles.size(); i++) {
+      DirNode parent = dirsByKey.get(pendingFileParents.get(i));
+      if (parent != null) {
+        parent.files.add(pendingFiles.get(i));
+      }
+    }
+    pendingParents = null;
+    pendingFiles = null;
+    pendingFileParents = null;
+
+    Collections.sort(roots);
+    long pos = 0;
+    for (DirNode root: roots) {
+      pos = number(root, 0, pos);
+    }
+  }
+
+  /**
+   * Assign preorder positions to a subtree and fold its aggregates upwards.
+   * Iterative, so very deep trees can't overflow the stack.
+   */
+  long number(DirNode root, int rootDepth, long pos) {
+    List<DirNode> stack = new ArrayList<DirNode>();
+    List<DirNode> postorder = new ArrayList<DirNode>();
+    root.depth = rootDepth;
+    stack.add(root);
+    while (stack.size() > 0) {
+      DirNode node = stack.remove(stack.size() - 1);
+      postorder.add(node);
+      node.lft = pos++;
+      positions.add(new long[] {node.lft, node.fid});
+      for (long[] file: node.files) {
+        positions.add(new long[] {pos++, file[0]});
+        node.numFiles++;
+        node.numBytes += file[1];
+        if (file[2] >= 0) {
+          addCount(node.typeCounts, file[2], 1);
+        }
+      }
+      Collections.sort(node.children);
+      for (int i = node.children.size() - 1; i >= 0; i--) {
+        DirNode child = node.children.get(i);
+        child.depth = node.depth + 1;
+        stack.add(child);
+      }
+    }
+
+    // Children are always visited after their parents, so a reverse walk of
+    // the visit order sees every subtree complete before its parent.
+    for (int i = postorder.size() - 1; i >= 0; i--) {
+      DirNode node = postorder.get(i);
+      node.rgt = node.lft + node.files.size();
+      for (DirNode child: node.children) {
+        node.rgt = Math.max(node.rgt, child.rgt);
+        node.numFiles += child.numFiles;
+        node.numBytes += child.numBytes;
+        for (Map.Entry<Long, Long> e: child.typeCounts.entrySet()) {
+          addCount(node.typeCounts, e.getKey(), e.getValue());
+        }
+      }
+    }
+    return pos;
+  }
+
+  static void addCount(Map<Long, Long> counts, long key, long delta) {
+    Long cur = counts.get(key);
+    counts.put(key, (cur == null ? 0 : cur.longValue()) + delta);
+  }
+
+  List<DirNode> getDirs() {
+    return new ArrayList<DirNode>(dirsByKey.values());
+  }
+
+  /**
+   * (position, fid) pairs for every entry placed in the tree.
+   */
+  List<long[]> getPositions() {
+    return positions;
+  }
+}
@@ -17,15 +17,29 @@ package com.cloudera.recordbreaker.analyzer;
 import java.net.URI;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.List;
 import java.util.Date;
 import java.util.Random;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.net.URISyntaxException;
 
 import org.apache.hadoop.hive.cli.*;
@@ -97,6 +111,157 @@ public class FSAnalyzer {
       }).complete();
   }
 
+  //
+  // 2. Per-crawl aggregates, maintained as files are inserted so that the
+  // summary pages never need COUNT(DISTINCT) over the guess tables.
+  //
+  static String CREATE_TABLE_TYPE_COUNTS = "CREATE TABLE IF NOT EXISTS TypeCounts(crawlid integer, typeid integer, numfiles integer, numbytes integer, primary key(crawlid, typeid));";
+  static String CREATE_TABLE_SCHEMA_COUNTS = "CREATE TABLE IF NOT EXISTS SchemaCounts(crawlid integer, schemaid integer, numfiles integer, primary key(crawlid, schemaid));";
+  static String CREATE_TABLE_DIR_TYPE_COUNTS = "CREATE TABLE IF NOT EXISTS DirTypeCounts(crawlid integer, path varchar(256), typeid integer, numfiles integer, primary key(crawlid, path, typeid));";
+  static String BACKFILL_TYPE_COUNTS = "INSERT into TypeCounts SELECT Files.crawlid, T.typeid, COUNT(*), SUM(Files.size) FROM Files, (SELECT DISTINCT fid, typeid FROM TypeGuesses) T WHERE Files.fid = T.fid GROUP BY Files.crawlid, T.typeid";
+  static String BACKFILL_SCHEMA_COUNTS = "INSERT into SchemaCounts SELECT Files.crawlid, S.schemaid, COUNT(*) FROM Files, (SELECT DISTINCT fid, schemaid FROM SchemaGuesses) S WHERE Files.fid = S.fid GROUP BY Files.crawlid, S.schemaid";
+  static String BACKFILL_DIR_TYPE_COUNTS = "INSERT into DirTypeCounts SELECT Files.crawlid, Files.path, T.typeid, COUNT(*) FROM Files, (SELECT DISTINCT fid, typeid FROM TypeGuesses) T WHERE Files.fid = T.fid GROUP BY Files.crawlid, Files.path, T.typeid";
+
+  //
+  // 3. Indexes.  Lookup indexes are always present; the secondary indexes on the
+  // large tables are dropped while a bulk load is running and rebuilt afterwards.
+  //
+  static String[] LOOKUP_INDEXES = {
+    "CREATE INDEX IF NOT EXISTS TypesByLabel ON Types(typelabel)",
+    "CREATE INDEX IF NOT EXISTS SchemasByRepr ON Schemas(schemarepr, schemasrcdescription)"
+  };
+  static String[] SECONDARY_INDEX_NAMES = {
+    "FilesByCrawlPath",
+    "TypeGuessesByFid",
+    "TypeGuessesByType",
+    "SchemaGuessesByFid",
+    "SchemaGuessesBySchema"
+  };
+  static String[] SECONDARY_INDEXES = {
+    "CREATE INDEX IF NOT EXISTS FilesByCrawlPath ON Files(crawlid, path, fname)",
+    "CREATE INDEX IF NOT EXISTS TypeGuessesByFid ON TypeGuesses(fid)",
+    "CREATE INDEX IF NOT EXISTS TypeGuessesByType ON TypeGuesses(typeid)",
+    "CREATE INDEX IF NOT EXISTS SchemaGuessesByFid ON SchemaGuesses(fid)",
+    "CREATE INDEX IF NOT EXISTS SchemaGuessesBySchema ON SchemaGuesses(schemaid)"
+  };
+
+  //
+  // 4. Directory tree.  Built for each crawl when it completes, and numbered
+  // with nested intervals so that subtree queries are range scans (see DirTree).
+  //
+  static String CREATE_TABLE_DIR_TREE = "CREATE TABLE IF NOT EXISTS DirTree(crawlid integer, dirfid integer, parentfid integer, dirpath varchar(256), dirname varchar(256), depth integer, lft integer, rgt integer, numfiles integer, numbytes integer, primary key(crawlid, dirfid));";
+  static String CREATE_TABLE_DIR_TREE_POSITIONS = "CREATE TABLE IF NOT EXISTS DirTreePositions(crawlid integer, pos integer, fid integer, primary key(crawlid, pos));";
+  static String CREATE_TABLE_DIR_TREE_TYPE_COUNTS = "CREATE TABLE IF NOT EXISTS DirTreeTypeCounts(crawlid integer, dirfid integer, typeid integer, numfiles integer, primary key(crawlid, dirfid, typeid));";
+  static String[] DIR_TREE_TABLES = {"DirTree", "DirTreePositions", "DirTreeTypeCounts"};
+  static String[] DIR_TREE_INDEXES = {
+    "CREATE INDEX IF NOT EXISTS DirTreeByPath ON DirTree(dirpath, crawlid)",
+    "CREATE INDEX IF NOT EXISTS DirTreeByParent ON DirTree(crawlid, parentfid, dirname)"
+  };
+
+  //
+  // 5. Crawl diffs.  The changes between a crawl and the previous completed
+  // crawl of the same filesystem, computed when the crawl completes.
+  //
+  static String CREATE_TABLE_CRAWL_DIFFS = "CREATE TABLE IF NOT EXISTS CrawlDiffs(crawlid integer, prevcrawlid integer, change varchar(16), fullpath varchar(256), oldfid integer, newfid integer, oldtypeid integer, newtypeid integer);";
+  static String CREATE_INDEX_CRAWL_DIFFS = "CREATE INDEX IF NOT EXISTS CrawlDiffsByCrawl ON CrawlDiffs(crawlid, change)";
+
+  //
+  // 6. Inverted index from search terms (see SearchTerms) to the files they
+  // describe.  Postings are clustered by term on their primary key.
+  //
+  static String CREATE_TABLE_TERMS = "CREATE TABLE IF NOT EXISTS Terms(termid integer primary key autoincrement, term varchar(256), numfiles integer);";
+  static String CREATE_TABLE_POSTINGS = "CREATE TABLE IF NOT EXISTS Postings(termid integer, fid integer, primary key(termid, fid));";
+  static String CREATE_INDEX_TERMS = "CREATE UNIQUE INDEX IF NOT EXISTS TermsByTerm ON Terms(term)";
+
+  //
+  // 7. Detection cache.  The type and schemas last detected for a file,
+  // keyed by its full path and valid while its size and modification time
+  // are unchanged and the same detectors are installed.  Recrawls skip
+  // format detection for unchanged files.  Entries are read a directory
+  // at a time.
+  //
+  static String CREATE_TABLE_DETECTION_CACHE = "CREATE TABLE IF NOT EXISTS DetectionCache(fullpath varchar(256) primary key, dirpath varchar(256), size integer, modified integer, detectors varchar(32), typeid integer, schemaids text);";
+  static String CREATE_INDEX_DETECTION_CACHE = "CREATE INDEX IF NOT EXISTS DetectionCacheByDir ON DetectionCache(dirpath)";
+
+  /**
+   * <code>upgradeTables</code> adds tables introduced after the original
+   * schema.  It runs on every startup; stores that predate a table get it
+   * created and backfilled from the base tables.
+   */
+  void upgradeTables() throws SQLiteException {
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          boolean hasAggregates = hasTable(db, "TypeCounts");
+          db.exec("BEGIN");
+          boolean committed = false;
+          try {
+            db.exec(CREATE_TABLE_TYPE_COUNTS);
+            db.exec(CREATE_TABLE_SCHEMA_COUNTS);
+            db.exec(CREATE_TABLE_DIR_TYPE_COUNTS);
+            if (! hasAggregates) {
+              db.exec(BACKFILL_TYPE_COUNTS);
+              db.exec(BACKFILL_SCHEMA_COUNTS);
+              db.exec(BACKFILL_DIR_TYPE_COUNTS);
+            }
+            db.exec(CREATE_TABLE_DIR_TREE);
+            db.exec(CREATE_TABLE_DIR_TREE_POSITIONS);
+            db.exec(CREATE_TABLE_DIR_TREE_TYPE_COUNTS);
+            for (int i = 0; i < DIR_TREE_INDEXES.length; i++) {
+              db.exec(DIR_TREE_INDEXES[i]);
+            }
+            db.exec(CREATE_TABLE_CRAWL_DIFFS);
+            db.exec(CREATE_INDEX_CRAWL_DIFFS);
+            db.exec(CREATE_TABLE_TERMS);
+            db.exec(CREATE_TABLE_POSTINGS);
+            db.exec(CREATE_INDEX_TERMS);
+            if (hasTable(db, "DetectionCache") && ! hasColumn(db, "DetectionCache", "detectors")) {
+              // Entries from before detector fingerprints can't be trusted; it's only a cache
+              db.exec("DROP TABLE DetectionCache");
+            }
+            db.exec(CREATE_TABLE_DETECTION_CACHE);
+            db.exec(CREATE_INDEX_DETECTION_CACHE);
+            for (int i = 0; i < LOOKUP_INDEXES.length; i++) {
+              db.exec(LOOKUP_INDEXES[i]);
+            }
+            for (int i = 0; i < SECONDARY_INDEXES.length; i++) {
+              db.exec(SECONDARY_INDEXES[i]);
+            }
+            db.exec("COMMIT");
+            committed = true;
+          } finally {
+            if (! committed) {
+              db.exec("ROLLBACK");
+            }
+          }
+          return null;
+        }
+      }).complete();
+  }
+
+  static boolean hasTable(SQLiteConnection db, String tableName) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?");
+    try {
+      stmt.bind(1, tableName);
+      return stmt.step();
+    } finally {
+      stmt.dispose();
+    }
+  }
+
+  static boolean hasColumn(SQLiteConnection db, String tableName, String columnName) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare("PRAGMA table_info(" + tableName + ")");
+    try {
+      while (stmt.step()) {
+        if (columnName.equals(stmt.columnString(1))) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      stmt.dispose();
+    }
+  }
+
   ///////////////////////////////////////////////
   // Manage Hive Support
   ///////////////////////////////////////////////
@@ -244,7 +409,27 @@ public class FSAnalyzer {
     return -1L;
   }
   
-  public void completeCrawl(final long crawlid) throws SQLiteException {
+  public void completeCrawl(final long crawlid) throws SQLiteException, IOException {
+    // Everything the crawl queued must be durable before it is marked complete.
+    // If some files could not be stored, the crawl stays in progress so the
+    // next crawl of the filesystem picks them up again.
+    try {
+      flushWrites();
+      long numCrawlFailed = takeFailedWrites(crawlid);
+      if (numCrawlFailed > 0) {
+        throw new IOException(numCrawlFailed + " files of crawl " + crawlid + " could not be stored; leaving the crawl in progress");
+      }
+      buildDirTree(crawlid);
+      long prevCrawlid = getPreviousCompleteCrawl(crawlid);
+      if (prevCrawlid >= 0) {
+        computeCrawlDiff(prevCrawlid, crawlid);
+      }
+    } finally {
+      endBulkLoad(crawlid);
+      synchronized (dirDetectionsByCrawl) {
+        dirDetectionsByCrawl.remove(crawlid);
+      }
+    }
     dbQueue.execute(new SQLiteJob<Long>() {
         protected Long job(SQLiteConnection db) throws SQLiteException {
           SQLiteStatement stmt = db.prepare("UPDATE Crawls SET inprogress='False', crawlfinished=? WHERE crawlid = ?");
@@ -264,105 +449,185 @@ public class FSAnalyzer {
       }).complete();
   }
 
-  public long getLatestCompleteCrawl(final long fsid) {
-    return dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("SELECT crawlid from Crawls WHERE fsid = ? AND inprogress = 'False' ORDER BY crawlid DESC LIMIT 1");
+  /**
+   * <code>deleteCrawl</code> removes a crawl and everything stored for its
+   * files, in one transaction.  Types and schemas are shared between crawls
+   * and are kept.  It is used to back out a crawl that could not be finished.
+   */
+  static String[] CRAWL_FILE_TABLES = {"TypeGuesses", "SchemaGuesses", "Postings"};
+  static String[] CRAWL_TABLES = {"TypeCounts", "SchemaCounts", "DirTypeCounts", "DirTree", "DirTreePositions", "DirTreeTypeCounts", "CrawlDiffs", "Crawls"};
+  static String decrementTermCountsQuery = "UPDATE Terms SET numfiles = numfiles - (SELECT COUNT(*) FROM Postings, Files WHERE Postings.termid = Terms.termid AND Postings.fid = Files.fid AND Files.crawlid = ?) WHERE termid IN (SELECT Postings.termid FROM Postings, Files WHERE Postings.fid = Files.fid AND Files.crawlid = ?)";
+  public void deleteCrawl(final long crawlid) throws IOException {
+    SQLiteJob<Boolean> deleteJob = dbQueue.execute(new SQLiteJob<Boolean>() {
+        protected Boolean job(SQLiteConnection db) throws SQLiteException {
+          db.exec("BEGIN");
+          boolean committed = false;
           try {
-            stmt.bind(1, fsid);
-            if (stmt.step()) {
-              return stmt.columnLong(0);
-            } else {
-              return -1L;
+            // Term counts go first, while the crawl's postings are still there
+            SQLiteStatement stmt = db.prepare(decrementTermCountsQuery);
+            try {
+              stmt.bind(1, crawlid).bind(2, crawlid);
+              stmt.step();
+            } finally {
+              stmt.dispose();
+            }
+            for (int i = 0; i < CRAWL_FILE_TABLES.length; i++) {
+              stmt = db.prepare("DELETE FROM " + CRAWL_FILE_TABLES[i] + " WHERE fid IN (SELECT fid FROM Files WHERE crawlid = ?)");
+              try {
+                stmt.bind(1, crawlid);
+                stmt.step();
+              } finally {
+                stmt.dispose();
+              }
+            }
+            stmt = db.prepare("DELETE FROM Files WHERE crawlid = ?");
+            try {
+              stmt.bind(1, crawlid);
+              stmt.step();
+            } finally {
+              stmt.dispose();
+            }
+            for (int i = 0; i < CRAWL_TABLES.length; i++) {
+              stmt = db.prepare("DELETE FROM " + CRAWL_TABLES[i] + " WHERE crawlid = ?");
+              try {
+                stmt.bind(1, crawlid);
+                stmt.step();
+              } finally {
+                stmt.dispose();
+              }
             }
+            db.exec("COMMIT");
+            committed = true;
           } finally {
-            stmt.dispose();
+            if (! committed) {
+              db.exec("ROLLBACK");
+            }
           }
+          return Boolean.TRUE;
         }
-      }).complete();
+      });
+    if (deleteJob.complete() == null) {
+      IOException iex = new IOException("Could not delete crawl " + crawlid);
+      iex.initCause(deleteJob.getError());
+      throw iex;
+    }
+    fileIndex.removeCrawl(crawlid);
   }
 
-  ///////////////////////////////////////////////
-  // Manage Types and Schemas
-  ///////////////////////////////////////////////
   /**
-   * Helper fn <code>getCreateType</code> returns the id of a specified Type in the Types table.
-   * The row is created, if necessary.
+   * <code>buildDirTree</code> (re)computes the directory tree tables for one
+   * crawl from its Files rows.  Type ids come from the resident FileIndex.
    */
-  long getCreateType(final String typeLabel) throws SQLiteException {
-    long typeid = dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("SELECT typeid FROM Types WHERE typelabel = ?");
+  void buildDirTree(final long crawlid) {
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          DirTree tree = new DirTree();
+          SQLiteStatement stmt = db.prepare("SELECT fid, isDir, path, fname, size FROM Files WHERE crawlid = ?");
           try {
-            stmt.bind(1, typeLabel);
-            if (stmt.step()) {
-              long resultId = stmt.columnLong(0);
-              return resultId;
-            } else {
-              return -1L;
+            stmt.bind(1, crawlid);
+            while (stmt.step()) {
+              long fid = stmt.columnLong(0);
+              if ("True".equals(stmt.columnString(1))) {
+                tree.addDir(fid, stmt.columnString(2), stmt.columnString(3));
+              } else {
+                tree.addFile(fid, stmt.columnString(2), stmt.columnLong(4), fileIndex.getTypeId(fid));
+              }
             }
           } finally {
             stmt.dispose();
           }
-        }
-      }).complete();
+          tree.finish();
 
-    if (typeid >= 0) {
-      return typeid;
-    }
-    
-    // Time to insert
-    return dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("INSERT into Types VALUES(null, ?)");
+          db.exec("BEGIN");
+          boolean committed = false;
           try {
-            stmt.bind(1, typeLabel);
-            stmt.step();
-            return db.getLastInsertId();
+            for (int i = 0; i < DIR_TREE_TABLES.length; i++) {
+              stmt = db.prepare("DELETE FROM " + DIR_TREE_TABLES[i] + " WHERE crawlid = ?");
+              try {
+                stmt.bind(1, crawlid);
+                stmt.step();
+              } finally {
+                stmt.dispose();
+              }
+            }
+            SQLiteStatement dirStmt = db.prepare("INSERT into DirTree VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            SQLiteStatement typeStmt = db.prepare("INSERT into DirTreeTypeCounts VALUES(?, ?, ?, ?)");
+            try {
+              for (DirTree.DirNode node: tree.getDirs()) {
+                dirStmt.bind(1, crawlid).bind(2, node.fid).bind(3, node.parent == null ? -1L : node.parent.fid).bind(4, node.dirPath).bind(5, node.name).bind(6, node.depth).bind(7, node.lft).bind(8, node.rgt).bind(9, node.numFiles).bind(10, node.numBytes);
+                dirStmt.step();
+                dirStmt.reset();
+                for (Map.Entry<Long, Long> e: node.typeCounts.entrySet()) {
+                  typeStmt.bind(1, crawlid).bind(2, node.fid).bind(3, e.getKey()).bind(4, e.getValue());
+                  typeStmt.step();
+                  typeStmt.reset();
+                }
+              }
+            } finally {
+              dirStmt.dispose();
+              typeStmt.dispose();
+            }
+            stmt = db.prepare("INSERT into DirTreePositions VALUES(?, ?, ?)");
+            try {
+              for (long[] position: tree.getPositions()) {
+                stmt.bind(1, crawlid).bind(2, position[0]).bind(3, position[1]);
+                stmt.step();
+                stmt.reset();
+              }
+            } finally {
+              stmt.dispose();
+            }
+            db.exec("COMMIT");
+            committed = true;
           } finally {
-            stmt.dispose();
+            if (! committed) {
+              db.exec("ROLLBACK");
+            }
           }
+          return null;
         }
       }).complete();
   }
 
   /**
-   * Helper fn <code>getCreateSchema</code> returns the id of a specified Schema in the Schemas table.
-   * The row is created, if necessary.
+   * <code>buildMissingDirTrees</code> builds trees for completed crawls that
+   * predate the DirTree tables.
    */
-  long getCreateSchema(SchemaDescriptor sd) throws SQLiteException {
-    final String schemaIdentifier = (sd == null) ? "" : sd.getSchemaIdentifier();
-    final String schemaDesc = (sd == null) ? "no schema" : sd.getSchemaSourceDescription();
-    final byte[] payload = (sd == null) ? new byte[0] : sd.getPayload();
-    long schemaid = dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          final SQLiteStatement stmt = db.prepare("SELECT schemaid FROM Schemas WHERE schemarepr = ? AND schemasrcdescription = ?");
+  void buildMissingDirTrees() {
+    List<Long> crawlids = dbQueue.execute(new SQLiteJob<List<Long>>() {
+        protected List<Long> job(SQLiteConnection db) throws SQLiteException {
+          List<Long> output = new ArrayList<Long>();
+          SQLiteStatement stmt = db.prepare("SELECT crawlid FROM Crawls WHERE inprogress = 'False' AND crawlid NOT IN (SELECT DISTINCT crawlid FROM DirTree)");
           try {
-            stmt.bind(1, schemaIdentifier).bind(2, schemaDesc);
-            if (stmt.step()) {
-              long resultId = stmt.columnLong(0);
-              return resultId;
-            } else {
-              return -1L;
+            while (stmt.step()) {
+              output.add(stmt.columnLong(0));
             }
           } finally {
             stmt.dispose();
           }
+          return output;
         }
       }).complete();
-
-    if (schemaid >= 0) {
-      return schemaid;
+    for (Long crawlid: crawlids) {
+      buildDirTree(crawlid);
     }
-    
-    // Time to insert
+  }
+
+  /**
+   * <code>getPreviousCompleteCrawl</code> returns the most recent completed crawl
+   * of the same filesystem that precedes the given one, or -1.
+   */
+  public long getPreviousCompleteCrawl(final long crawlid) {
     return dbQueue.execute(new SQLiteJob<Long>() {
         protected Long job(SQLiteConnection db) throws SQLiteException {
-          final SQLiteStatement stmt = db.prepare("INSERT into Schemas VALUES(null, ?, ?, ?)");
+          SQLiteStatement stmt = db.prepare("SELECT crawlid from Crawls WHERE fsid = (SELECT fsid FROM Crawls WHERE crawlid = ?) AND inprogress = 'False' AND crawlid < ? ORDER BY crawlid DESC LIMIT 1");
           try {
-            stmt.bind(1, schemaIdentifier).bind(2, schemaDesc).bind(3, payload);
-            stmt.step();
-            return db.getLastInsertId();      
+            stmt.bind(1, crawlid).bind(2, crawlid);
+            if (stmt.step()) {
+              return stmt.columnLong(0);
+            } else {
+              return -1L;
+            }
           } finally {
             stmt.dispose();
           }
@@ -371,111 +636,168 @@ public class FSAnalyzer {
   }
 
   /**
-   * Add a single brand-new file to the system.  Parse it, obtain structure, etc, if needed.
+   * <code>computeCrawlDiff</code> stores the changes between two crawls in
+   * CrawlDiffs, replacing any earlier diff for <code>crawlid</code>.
+   *
+   * Both crawls' plain files are streamed in (path, fname) order straight off
+   * the FilesByCrawlPath index and merge-joined, so the cost is one ordered
+   * scan per crawl.  Types and schemas are compared through the FileIndex.
    */
-  void addSingleFile(FileSystem fs, Path insertFile, long crawlId) throws IOException {
-    FileStatus fstatus = fs.getFileStatus(insertFile);
-    addFileMetadata(fstatus, crawlId);
-    final boolean isDir = fstatus.isDir();
-
-    if (! isDir) {
-      final List<Long> typeGuesses = new ArrayList<Long>();
-      DataDescriptor descriptor = formatAnalyzer.describeData(fs, insertFile);
-      List<SchemaDescriptor> schemas = null;
-      try {
-        schemas = descriptor.getSchemaDescriptor();
-
-        if (schemas == null || schemas.size() == 0) {
-          typeGuesses.add(getCreateType(descriptor.getFileTypeIdentifier()));
-          typeGuesses.add(getSingleFileSummary(descriptor.getFilename().toString()).getFid());
-          typeGuesses.add(getCreateSchema(null));
-        } else {
-          for (SchemaDescriptor sd: schemas) {
-            typeGuesses.add(getCreateType(descriptor.getFileTypeIdentifier()));
-            typeGuesses.add(getSingleFileSummary(descriptor.getFilename().toString()).getFid());
-            typeGuesses.add(getCreateSchema(sd));
-          }
-        }
-      } catch (Exception ex) {
-        ex.printStackTrace();
-      }
+  static String crawlDiffFilesQuery = "SELECT fid, path, fname FROM Files WHERE crawlid = ? AND isDir = 'False' ORDER BY path, fname";
+  public void computeCrawlDiff(final long prevCrawlid, final long crawlid) {
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          db.exec("BEGIN");
+          boolean committed = false;
+          SQLiteStatement oldStmt = db.prepare(crawlDiffFilesQuery);
+          SQLiteStatement newStmt = db.prepare(crawlDiffFilesQuery);
+          SQLiteStatement insertStmt = db.prepare("INSERT into CrawlDiffs VALUES(?, ?, ?, ?, ?, ?, ?, ?)");
+          try {
+            SQLiteStatement deleteStmt = db.prepare("DELETE FROM CrawlDiffs WHERE crawlid = ?");
+            try {
+              deleteStmt.bind(1, crawlid);
+              deleteStmt.step();
+            } finally {
+              deleteStmt.dispose();
+            }
 
-      dbQueue.execute(new SQLiteJob<Object>() {
-          protected Long job(SQLiteConnection db) throws SQLiteException {
-            for (int i = 0; i < typeGuesses.size(); i+=3) {
-              long typeId = typeGuesses.get(i);
-              long fileId = typeGuesses.get(i+1);              
-              long schemaId = typeGuesses.get(i+2);            
+            oldStmt.bind(1, prevCrawlid);
+            newStmt.bind(1, crawlid);
+            boolean hasOld = oldStmt.step();
+            boolean hasNew = newStmt.step();
+            while (hasOld || hasNew) {
+              int cmp;
+              if (! hasOld) {
+                cmp = 1;
+              } else if (! hasNew) {
+                cmp = -1;
+              } else {
+                cmp = compareSqliteText(oldStmt.columnString(1), newStmt.columnString(1));
+                if (cmp == 0) {
+                  cmp = compareSqliteText(oldStmt.columnString(2), newStmt.columnString(2));
+                }
+              }
 
-              SQLiteStatement stmt = db.prepare("INSERT into TypeGuesses VALUES(?, ?)");
-              try {
-                stmt.bind(1, fileId).bind(2, typeId);
-                stmt.step();
-              } finally {
-                stmt.dispose();
+              if (cmp < 0) {
+                long oldFid = oldStmt.columnLong(0);
+                insertCrawlDiff(insertStmt, crawlid, prevCrawlid, CrawlDiff.REMOVED, oldStmt.columnString(1) + oldStmt.columnString(2), oldFid, -1);
+                hasOld = oldStmt.step();
+              } else if (cmp > 0) {
+                long newFid = newStmt.columnLong(0);
+                insertCrawlDiff(insertStmt, crawlid, prevCrawlid, CrawlDiff.ADDED, newStmt.columnString(1) + newStmt.columnString(2), -1, newFid);
+                hasNew = newStmt.step();
+              } else {
+                long oldFid = oldStmt.columnLong(0);
+                long newFid = newStmt.columnLong(0);
+                String change = null;
+                if (fileIndex.getTypeId(oldFid) != fileIndex.getTypeId(newFid)) {
+                  change = CrawlDiff.TYPE_CHANGED;
+                } else if (! sameSchemas(fileIndex.getSchemaIds(oldFid), fileIndex.getSchemaIds(newFid))) {
+                  change = CrawlDiff.SCHEMA_CHANGED;
+                }
+                if (change != null) {
+                  insertCrawlDiff(insertStmt, crawlid, prevCrawlid, change, newStmt.columnString(1) + newStmt.columnString(2), oldFid, newFid);
+                }
+                hasOld = oldStmt.step();
+                hasNew = newStmt.step();
               }
             }
-            return null;
+            db.exec("COMMIT");
+            committed = true;
+          } finally {
+            oldStmt.dispose();
+            newStmt.dispose();
+            insertStmt.dispose();
+            if (! committed) {
+              db.exec("ROLLBACK");
+            }
           }
-        }).complete();
+          return null;
+        }
+      }).complete();
+  }
 
-      dbQueue.execute(new SQLiteJob<Object>() {
-          protected Long job(SQLiteConnection db) throws SQLiteException {
-            for (int i = 0; i < typeGuesses.size(); i+=3) {
-              long typeId = typeGuesses.get(i);
-              long fileId = typeGuesses.get(i+1);              
-              long schemaId = typeGuesses.get(i+2);            
+  void insertCrawlDiff(SQLiteStatement stmt, long crawlid, long prevCrawlid, String change, String fullPath, long oldFid, long newFid) throws SQLiteException {
+    long oldTypeId = oldFid < 0 ? -1 : fileIndex.getTypeId(oldFid);
+    long newTypeId = newFid < 0 ? -1 : fileIndex.getTypeId(newFid);
+    stmt.bind(1, crawlid).bind(2, prevCrawlid).bind(3, change).bind(4, fullPath).bind(5, oldFid).bind(6, newFid).bind(7, oldTypeId).bind(8, newTypeId);
+    stmt.step();
+    stmt.reset();
+  }
 
-              SQLiteStatement stmt = db.prepare("INSERT into SchemaGuesses VALUES(?, ?)");
-              try {
-                stmt.bind(1, fileId).bind(2, schemaId);
-                stmt.step();
-              } finally {
-                stmt.dispose();
-              }
-            }
-            return null;
-          }
-        }).complete();
+  static boolean sameSchemas(long[] a, long[] b) {
+    if (a.length != b.length) {
+      return false;
     }
+    long[] sortedA = (long[]) a.clone();
+    long[] sortedB = (long[]) b.clone();
+    Arrays.sort(sortedA);
+    Arrays.sort(sortedB);
+    return Arrays.equals(sortedA, sortedB);
   }
 
   /**
-   * <code>addFileMetadata</code> stores the pathname, size, owner, etc.
+   * Compare two strings the way SQLite's default BINARY collation does
+   * (UTF-8 byte order, which is code point order).  String.compareTo differs
+   * for characters outside the Basic Multilingual Plane, and the merge join in
+   * computeCrawlDiff must agree with the ORDER BY that feeds it.
    */
-  void addFileMetadata(final FileStatus fstatus, final long crawlId) {
-    // Compute strings to represent file metadata
-    Path insertFile = fstatus.getPath(); 
-    final boolean isDir = fstatus.isDir();
-    FsPermission fsp = fstatus.getPermission();
-    final String permissions = (isDir ? "d" : "-") + fsp.getUserAction().SYMBOL + fsp.getGroupAction().SYMBOL + fsp.getOtherAction().SYMBOL;
-
-    // Compute formal pathname representation
-    String fnameString = null;
-    String parentPathString = null;
-    if (isDir && insertFile.getParent() == null) {
-      parentPathString = "";
-      fnameString = insertFile.toString();
-    } else {
-      fnameString = insertFile.getName();
-      parentPathString = insertFile.getParent().toString();
-
-      // REMIND --- mjc --- If we want to modify the Files table s.t. it does
-      // not contain the filesystem prefix, then this would be the place to do it.
-
-      if (! parentPathString.endsWith("/")) {
-        parentPathString = parentPathString + "/";
+  static int compareSqliteText(String a, String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      int ca = a.codePointAt(i);
+      int cb = b.codePointAt(j);
+      if (ca != cb) {
+        return ca < cb ? -1 : 1;
       }
+      i += Character.charCount(ca);
+      j += Character.charCount(cb);
+    }
+    if (i < a.length()) {
+      return 1;
+    } else if (j < b.length()) {
+      return -1;
     }
-    final String parentPath = parentPathString;
-    final String fName = fnameString;
-    final long fileId = dbQueue.execute(new SQLiteJob<Long>() {
+    return 0;
+  }
+
+  /**
+   * <code>getCrawlDiffs</code> returns the stored changes for a crawl, ordered
+   * by kind of change and then path.
+   */
+  static String crawlDiffsQuery = "SELECT CrawlDiffs.prevcrawlid, CrawlDiffs.change, CrawlDiffs.fullpath, CrawlDiffs.oldfid, CrawlDiffs.newfid, OldTypes.typelabel, NewTypes.typelabel FROM CrawlDiffs LEFT JOIN Types OldTypes ON OldTypes.typeid = CrawlDiffs.oldtypeid LEFT JOIN Types NewTypes ON NewTypes.typeid = CrawlDiffs.newtypeid WHERE CrawlDiffs.crawlid = ? ORDER BY CrawlDiffs.change, CrawlDiffs.fullpath";
+  public List<CrawlDiff> getCrawlDiffs(final long crawlid) {
+    return dbQueue.execute(new SQLiteJob<List<CrawlDiff>>() {
+        protected List<CrawlDiff> job(SQLiteConnection db) throws SQLiteException {
+          List<CrawlDiff> output = new ArrayList<CrawlDiff>();
+          SQLiteStatement stmt = db.prepare(crawlDiffsQuery);
+          try {
+            stmt.bind(1, crawlid);
+            while (stmt.step()) {
+              output.add(new CrawlDiff(crawlid, stmt.columnLong(0), stmt.columnString(1), stmt.columnString(2), stmt.columnLong(3), stmt.columnLong(4), stmt.columnString(5), stmt.columnString(6)));
+            }
+          } catch (SQLiteException se) {
+            se.printStackTrace();
+          } finally {
+            stmt.dispose();
+          }
+          return output;
+        }
+      }).complete();
+  }
+
+  public long getLatestCompleteCrawl(final long fsid) {
+    return dbQueue.execute(new SQLiteJob<Long>() {
         protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("INSERT into Files VALUES(null, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+          SQLiteStatement stmt = db.prepare("SELECT crawlid from Crawls WHERE fsid = ? AND inprogress = 'False' ORDER BY crawlid DESC LIMIT 1");
           try {
-            stmt.bind(1, isDir ? "True" : "False").bind(2, crawlId).bind(3, fName).bind(4, fstatus.getOwner()).bind(5, fstatus.getGroup()).bind(6, permissions).bind(7, fstatus.getLen()).bind(8, fileDateFormat.format(new Date(fstatus.getModificationTime()))).bind(9, parentPath);
-            stmt.step();
-            return db.getLastInsertId();
+            stmt.bind(1, fsid);
+            if (stmt.step()) {
+              return stmt.columnLong(0);
+            } else {
+              return -1L;
+            }
           } finally {
             stmt.dispose();
           }
@@ -483,6 +805,1063 @@ public class FSAnalyzer {
       }).complete();
   }
 
+  ///////////////////////////////////////////////
+  // Manage Types and Schemas
+  ///////////////////////////////////////////////
+  /**
+   * Helper fn <code>getCreateType</code> returns the id of a specified Type in the Types table.
+   * The row is created, if necessary.  It runs inside the caller's dbQueue job.
+   */
+  long getCreateType(SQLiteConnection db, String typeLabel) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare("SELECT typeid FROM Types WHERE typelabel = ?");
+    try {
+      stmt.bind(1, typeLabel);
+      if (stmt.step()) {
+        return stmt.columnLong(0);
+      }
+    } finally {
+      stmt.dispose();
+    }
+    
+    // Time to insert
+    stmt = db.prepare("INSERT into Types VALUES(null, ?)");
+    try {
+      stmt.bind(1, typeLabel);
+      stmt.step();
+      return db.getLastInsertId();
+    } finally {
+      stmt.dispose();
+    }
+  }
+
+  /**
+   * Helper fn <code>getCreateSchema</code> returns the id of a specified Schema in the Schemas table.
+   * The row is created, if necessary.  The payload must already be compressed.
+   * It runs inside the caller's dbQueue job.
+   */
+  long getCreateSchema(SQLiteConnection db, String schemaIdentifier, String schemaDesc, byte[] compressedPayload) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare("SELECT schemaid FROM Schemas WHERE schemarepr = ? AND schemasrcdescription = ?");
+    try {
+      stmt.bind(1, schemaIdentifier).bind(2, schemaDesc);
+      if (stmt.step()) {
+        return stmt.columnLong(0);
+      }
+    } finally {
+      stmt.dispose();
+    }
+    
+    // Time to insert
+    stmt = db.prepare("INSERT into Schemas VALUES(null, ?, ?, ?)");
+    try {
+      stmt.bind(1, schemaIdentifier).bind(2, schemaDesc).bind(3, compressedPayload);
+      stmt.step();
+      return db.getLastInsertId();      
+    } finally {
+      stmt.dispose();
+    }
+  }
+
+  /**
+   * Schema payloads (serialized inferred types, tag environments, etc) can be
+   * large, so they are stored gzipped.  Stores written before compression was
+   * added hold raw payloads; <code>inflatePayload</code> passes those through.
+   */
+  static byte[] compressPayload(byte[] payload) {
+    if (payload == null || payload.length == 0) {
+      return payload;
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      GZIPOutputStream gzout = new GZIPOutputStream(out);
+      try {
+        gzout.write(payload);
+      } finally {
+        gzout.close();
+      }
+      return out.toByteArray();
+    } catch (IOException iex) {
+      LOG.error("Could not compress schema payload: " + iex.toString());
+      return payload;
+    }
+  }
+
+  static byte[] inflatePayload(byte[] payload) {
+    if (payload == null || payload.length < 2 ||
+        payload[0] != (byte) (GZIPInputStream.GZIP_MAGIC & 0xff) ||
+        payload[1] != (byte) ((GZIPInputStream.GZIP_MAGIC >> 8) & 0xff)) {
+      return payload;
+    }
+    try {
+      GZIPInputStream gzin = new GZIPInputStream(new ByteArrayInputStream(payload));
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+        byte[] buf = new byte[4096];
+        int numRead;
+        while ((numRead = gzin.read(buf)) > 0) {
+          out.write(buf, 0, numRead);
+        }
+        return out.toByteArray();
+      } finally {
+        gzin.close();
+      }
+    } catch (IOException iex) {
+      LOG.error("Could not inflate schema payload: " + iex.toString());
+      return payload;
+    }
+  }
+
+  ///////////////////////////////////////////////
+  // Bulk-load mode for initial crawls
+  ///////////////////////////////////////////////
+  static int MAX_BULK_WRITE_BATCH = 8192;
+  static long BULK_BATCH_WAIT_MS = 100;
+  volatile boolean bulkLoading = false;
+  long bulkLoadCrawlId = -1;
+  Object bulkLoadLock = new Object();
+
+  /**
+   * <code>beginBulkLoad</code> prepares the store for the first crawl of a
+   * filesystem.  The secondary indexes are dropped, and the writer switches to
+   * large batches sorted by path.  The store moves to write-ahead logging
+   * with synchronous=NORMAL: commits no longer wait for a disk sync, so a
+   * crash can lose the last few transactions, but it cannot corrupt the
+   * store or touch other crawls.  The secondary indexes are recreated at
+   * startup if a crash left them dropped.
+   *
+   * The mode belongs to <code>crawlid</code>, and only that crawl's
+   * <code>completeCrawl</code> ends it.  If another crawl already holds it,
+   * this crawl loads normally.
+   */
+  public void beginBulkLoad(long crawlid) {
+    synchronized (bulkLoadLock) {
+      if (bulkLoading) {
+        return;
+      }
+      dbQueue.execute(new SQLiteJob<Object>() {
+          protected Object job(SQLiteConnection db) throws SQLiteException {
+            db.exec("PRAGMA journal_mode = WAL");
+            db.exec("PRAGMA synchronous = NORMAL");
+            for (int i = 0; i < SECONDARY_INDEX_NAMES.length; i++) {
+              db.exec("DROP INDEX IF EXISTS " + SECONDARY_INDEX_NAMES[i]);
+            }
+            return null;
+          }
+        }).complete();
+      bulkLoadCrawlId = crawlid;
+      bulkLoading = true;
+      LOG.info("Bulk-load mode enabled for crawl " + crawlid);
+    }
+  }
+
+  /**
+   * <code>endBulkLoad</code> rebuilds the secondary indexes and restores full
+   * durability, if <code>crawlid</code> started bulk-load mode.  Callers must
+   * flush pending writes first.
+   */
+  void endBulkLoad(long crawlid) {
+    synchronized (bulkLoadLock) {
+      if (! bulkLoading || bulkLoadCrawlId != crawlid) {
+        return;
+      }
+      dbQueue.execute(new SQLiteJob<Object>() {
+          protected Object job(SQLiteConnection db) throws SQLiteException {
+            for (int i = 0; i < SECONDARY_INDEXES.length; i++) {
+              db.exec(SECONDARY_INDEXES[i]);
+            }
+            db.exec("PRAGMA journal_mode = DELETE");
+            db.exec("PRAGMA synchronous = FULL");
+            return null;
+          }
+        }).complete();
+      bulkLoading = false;
+      bulkLoadCrawlId = -1;
+      LOG.info("Bulk-load mode finished for crawl " + crawlid + "; indexes rebuilt");
+    }
+  }
+
+  ///////////////////////////////////////////////
+  // Write-behind buffer for crawl results
+  ///////////////////////////////////////////////
+  static int WRITE_QUEUE_CAPACITY = 1024;
+  static int MAX_WRITE_BATCH = 512;
+
+  /**
+   * A <code>PendingFile</code> holds one file's analysis results until the
+   * writer thread stores them.  Everything expensive (format detection, schema
+   * serialization, payload compression) is done before it is queued.
+   */
+  static class PendingFile {
+    FileStatus fstatus;
+    long crawlId;
+    String parentPath;
+    String typeLabel;
+    List<String> schemaReprs = new ArrayList<String>();
+    List<String> schemaDescs = new ArrayList<String>();
+    List<byte[]> schemaPayloads = new ArrayList<byte[]>();
+    Set<String> terms = new TreeSet<String>();
+
+    // Set when the detection cache supplied the schemas
+    List<Long> cachedSchemaIds;
+    boolean shouldCache;
+
+    // Filled in by the writer
+    long fid;
+    List<Long> typeGuesses;
+  }
+  static PendingFile STOP_WRITER = new PendingFile();
+  static Comparator<PendingFile> PENDING_PATH_ORDER = new Comparator<PendingFile>() {
+    public int compare(PendingFile pf1, PendingFile pf2) {
+      return pf1.fstatus.getPath().compareTo(pf2.fstatus.getPath());
+    }
+  };
+
+  BlockingQueue<PendingFile> writeQueue = new ArrayBlockingQueue<PendingFile>(WRITE_QUEUE_CAPACITY);
+  Object writeLock = new Object();
+  long numEnqueued = 0;
+  long numWritten = 0;
+  long numFailed = 0;
+  Map<Long, Long> failedWritesByCrawl = new TreeMap<Long, Long>();
+  Thread writerThread;
+
+  /**
+   * Add a single brand-new file to the system.  Parse it, obtain structure, etc, if needed.
+   * The results are queued for the writer thread; this call only blocks when the
+   * queue is full.  Use <code>flushWrites()</code> to wait until they are stored.
+   */
+  void addSingleFile(FileSystem fs, Path insertFile, long crawlId) throws IOException {
+    PendingFile pf = new PendingFile();
+    pf.fstatus = fs.getFileStatus(insertFile);
+    pf.crawlId = crawlId;
+    pf.parentPath = getParentPathString(insertFile, pf.fstatus.isDir());
+    pf.typeLabel = null;
+
+    if (! pf.fstatus.isDir()) {
+      SearchTerms.addPathTerms(pf.terms, pf.parentPath, insertFile.getName());
+      if (! lookupDetectionCache(pf)) {
+        DataDescriptor descriptor = formatAnalyzer.describeData(fs, insertFile);
+        try {
+          List<SchemaDescriptor> schemas = descriptor.getSchemaDescriptor();
+          if (schemas == null || schemas.size() == 0) {
+            pf.schemaReprs.add("");
+            pf.schemaDescs.add("no schema");
+            pf.schemaPayloads.add(new byte[0]);
+          } else {
+            for (SchemaDescriptor sd: schemas) {
+              pf.schemaReprs.add(sd.getSchemaIdentifier());
+              pf.schemaDescs.add(sd.getSchemaSourceDescription());
+              pf.schemaPayloads.add(compressPayload(sd.getPayload()));
+              SearchTerms.addFieldTerms(pf.terms, sd.getSchema());
+            }
+          }
+          pf.typeLabel = descriptor.getFileTypeIdentifier();
+          SearchTerms.addTypeTerm(pf.terms, pf.typeLabel);
+          pf.shouldCache = true;
+        } catch (Exception ex) {
+          ex.printStackTrace();
+        }
+      }
+    }
+    try {
+      writeQueue.put(pf);
+    } catch (InterruptedException iex) {
+      throw new IOException("Interrupted while queueing " + insertFile);
+    }
+    synchronized (writeLock) {
+      numEnqueued++;
+    }
+  }
+
+  /**
+   * <code>flushWrites</code> blocks until the writer has handled every file
+   * queued so far, whether or not it could store them.  Use
+   * <code>takeFailedWrites()</code> to learn which crawls lost files.
+   */
+  public void flushWrites() throws IOException {
+    synchronized (writeLock) {
+      long target = numEnqueued;
+      while (numWritten + numFailed < target) {
+        try {
+          writeLock.wait();
+        } catch (InterruptedException iex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for crawl results to be stored");
+        }
+      }
+    }
+  }
+
+  /**
+   * <code>takeFailedWrites</code> returns the number of the crawl's files the
+   * writer could not store since the last call, and resets it.
+   */
+  long takeFailedWrites(long crawlid) {
+    synchronized (writeLock) {
+      Long numCrawlFailed = failedWritesByCrawl.remove(crawlid);
+      return (numCrawlFailed == null) ? 0 : numCrawlFailed.longValue();
+    }
+  }
+
+  /**
+   * The writer thread drains the queue and stores each batch in a single transaction.
+   */
+  void runWriter() {
+    List<PendingFile> batch = new ArrayList<PendingFile>();
+    boolean shouldStop = false;
+    while (! shouldStop) {
+      try {
+        batch.add(writeQueue.take());
+      } catch (InterruptedException iex) {
+        break;
+      }
+      int maxBatch = bulkLoading ? MAX_BULK_WRITE_BATCH : MAX_WRITE_BATCH;
+      writeQueue.drainTo(batch, maxBatch - batch.size());
+
+      // In bulk mode, wait briefly for more work so each transaction is large
+      while (bulkLoading && batch.size() < maxBatch && ! batch.contains(STOP_WRITER)) {
+        try {
+          PendingFile pf = writeQueue.poll(BULK_BATCH_WAIT_MS, TimeUnit.MILLISECONDS);
+          if (pf == null) {
+            break;
+          }
+          batch.add(pf);
+          writeQueue.drainTo(batch, maxBatch - batch.size());
+        } catch (InterruptedException iex) {
+          break;
+        }
+      }
+      shouldStop = batch.remove(STOP_WRITER);
+      if (batch.size() > 0) {
+        if (bulkLoading) {
+          // Sorted inserts keep the path-ordered index builds cheap
+          Collections.sort(batch, PENDING_PATH_ORDER);
+        }
+        if (writeBatch(batch)) {
+          recordWrites(batch.size(), null);
+        } else {
+          // One bad file rolls back the whole transaction, so retry the
+          // batch a file at a time and only give up on the files that fail
+          LOG.warn("Could not store a batch of " + batch.size() + " crawled files; retrying one at a time");
+          for (PendingFile pf: batch) {
+            recordWrites(writeBatch(Collections.singletonList(pf)) ? 1 : 0, pf);
+          }
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * <code>recordWrites</code> counts files the writer has finished with.
+   * If <code>failedFile</code> is not null, it could not be stored.
+   */
+  void recordWrites(int numStored, PendingFile failedFile) {
+    synchronized (writeLock) {
+      numWritten += numStored;
+      if (numStored == 0 && failedFile != null) {
+        LOG.error("Could not store crawled file " + failedFile.fstatus.getPath());
+        numFailed++;
+        Long numCrawlFailed = failedWritesByCrawl.get(failedFile.crawlId);
+        failedWritesByCrawl.put(failedFile.crawlId, (numCrawlFailed == null) ? 1L : numCrawlFailed + 1);
+      }
+      writeLock.notifyAll();
+    }
+  }
+
+  /**
+   * <code>writeBatch</code> stores a batch of files in a single transaction.
+   * It returns false, having stored none of them, if the transaction fails.
+   */
+  boolean writeBatch(final List<PendingFile> batch) {
+    SQLiteJob<Boolean> writeJob = dbQueue.execute(new SQLiteJob<Boolean>() {
+        protected Boolean job(SQLiteConnection db) throws SQLiteException {
+          db.exec("BEGIN");
+          boolean committed = false;
+          try {
+            for (PendingFile pf: batch) {
+              pf.fid = addFileMetadata(db, pf.fstatus, pf.crawlId);
+              if (pf.typeLabel != null) {
+                long typeId = getCreateType(db, pf.typeLabel);
+                pf.typeGuesses = new ArrayList<Long>();
+                for (int i = 0; i < pf.schemaReprs.size(); i++) {
+                  pf.typeGuesses.add(typeId);
+                  pf.typeGuesses.add(pf.fid);
+                  if (pf.cachedSchemaIds != null) {
+                    pf.typeGuesses.add(pf.cachedSchemaIds.get(i));
+                  } else {
+                    pf.typeGuesses.add(getCreateSchema(db, pf.schemaReprs.get(i), pf.schemaDescs.get(i), pf.schemaPayloads.get(i)));
+                  }
+                }
+                insertGuesses(db, pf.crawlId, pf.fstatus.getLen(), pf.parentPath, pf.typeGuesses);
+                if (pf.shouldCache) {
+                  storeDetectionCache(db, pf, typeId);
+                }
+              }
+              insertTerms(db, pf.fid, pf.terms);
+            }
+            db.exec("COMMIT");
+            committed = true;
+          } finally {
+            if (! committed) {
+              db.exec("ROLLBACK");
+            }
+          }
+          return Boolean.TRUE;
+        }
+      });
+    Boolean stored = writeJob.complete();
+    if (stored == null || ! stored.booleanValue()) {
+      if (writeJob.getError() != null) {
+        LOG.warn("Write transaction failed: " + writeJob.getError().toString());
+      }
+      return false;
+    }
+
+    // The resident index only learns about rows that were committed
+    for (PendingFile pf: batch) {
+      fileIndex.addFile(pf.fid, pf.crawlId, pf.parentPath, pf.fstatus.isDir());
+      if (pf.typeGuesses != null) {
+        for (int i = 0; i < pf.typeGuesses.size(); i+=3) {
+          fileIndex.addGuess(pf.typeGuesses.get(i+1), pf.typeGuesses.get(i), pf.typeGuesses.get(i+2));
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * <code>insertGuesses</code> records the (type, file, schema) triples for a
+   * single file, and folds the file into the per-crawl aggregates.  It must
+   * run inside the caller's transaction.
+   */
+  static String updateTypeCountsQuery = "UPDATE TypeCounts SET numfiles = numfiles + 1, numbytes = numbytes + ? WHERE crawlid = ? AND typeid = ?";
+  static String updateSchemaCountsQuery = "UPDATE SchemaCounts SET numfiles = numfiles + 1 WHERE crawlid = ? AND schemaid = ?";
+  static String updateDirTypeCountsQuery = "UPDATE DirTypeCounts SET numfiles = numfiles + 1 WHERE crawlid = ? AND path = ? AND typeid = ?";
+  void insertGuesses(SQLiteConnection db, long crawlId, long fileSize, String parentPath, List<Long> typeGuesses) throws SQLiteException {
+    Set<Long> seenTypes = new TreeSet<Long>();
+    Set<Long> seenSchemas = new TreeSet<Long>();
+    for (int i = 0; i < typeGuesses.size(); i+=3) {
+      long typeId = typeGuesses.get(i);
+      long fileId = typeGuesses.get(i+1);
+      long schemaId = typeGuesses.get(i+2);
+
+      SQLiteStatement stmt = db.prepare("INSERT into TypeGuesses VALUES(?, ?)");
+      try {
+        stmt.bind(1, fileId).bind(2, typeId);
+        stmt.step();
+      } finally {
+        stmt.dispose();
+      }
+      stmt = db.prepare("INSERT into SchemaGuesses VALUES(?, ?)");
+      try {
+        stmt.bind(1, fileId).bind(2, schemaId);
+        stmt.step();
+      } finally {
+        stmt.dispose();
+      }
+      seenTypes.add(typeId);
+      seenSchemas.add(schemaId);
+    }
+
+    // A file counts once per distinct type and once per distinct schema.
+    for (long typeId: seenTypes) {
+      SQLiteStatement stmt = db.prepare(updateTypeCountsQuery);
+      try {
+        stmt.bind(1, fileSize).bind(2, crawlId).bind(3, typeId);
+        stmt.step();
+      } finally {
+        stmt.dispose();
+      }
+      if (db.getChanges() == 0) {
+        stmt = db.prepare("INSERT into TypeCounts VALUES(?, ?, 1, ?)");
+        try {
+          stmt.bind(1, crawlId).bind(2, typeId).bind(3, fileSize);
+          stmt.step();
+        } finally {
+          stmt.dispose();
+        }
+      }
+
+      stmt = db.prepare(updateDirTypeCountsQuery);
+      try {
+        stmt.bind(1, crawlId).bind(2, parentPath).bind(3, typeId);
+        stmt.step();
+      } finally {
+        stmt.dispose();
+      }
+      if (db.getChanges() == 0) {
+        stmt = db.prepare("INSERT into DirTypeCounts VALUES(?, ?, ?, 1)");
+        try {
+          stmt.bind(1, crawlId).bind(2, parentPath).bind(3, typeId);
+          stmt.step();
+        } finally {
+          stmt.dispose();
+        }
+      }
+    }
+    for (long schemaId: seenSchemas) {
+      SQLiteStatement stmt = db.prepare(updateSchemaCountsQuery);
+      try {
+        stmt.bind(1, crawlId).bind(2, schemaId);
+        stmt.step();
+      } finally {
+        stmt.dispose();
+      }
+      if (db.getChanges() == 0) {
+        stmt = db.prepare("INSERT into SchemaCounts VALUES(?, ?, 1)");
+        try {
+          stmt.bind(1, crawlId).bind(2, schemaId);
+          stmt.step();
+        } finally {
+          stmt.dispose();
+        }
+      }
+    }
+  }
+
+  /**
+   * A <code>CachedDetection</code> is one file's detection cache entry.
+   */
+  static class CachedDetection {
+    long size;
+    long modified;
+    String typeLabel;
+    List<Long> schemaIds = new ArrayList<Long>();
+    List<String> schemaReprs = new ArrayList<String>();
+    List<String> schemaDescs = new ArrayList<String>();
+  }
+
+  /**
+   * The detection cache entries for the directory a crawl is in.  FSCrawler
+   * visits each directory's files together, so a crawl loads a directory's
+   * entries once, with one query, when it reaches the directory.
+   */
+  static class DirDetections {
+    String dirPath;
+    Map<String, CachedDetection> byPath = new HashMap<String, CachedDetection>();
+  }
+  Map<Long, DirDetections> dirDetectionsByCrawl = new HashMap<Long, DirDetections>();
+
+  /**
+   * <code>lookupDetectionCache</code> fills in a file's type and schemas from
+   * the detection cache, if the cached entry is for the same size,
+   * modification time and detector set.  It returns false on a miss, when
+   * the caller must run format detection.  Schema payloads are not loaded;
+   * the writer reuses the cached schema ids.
+   */
+  boolean lookupDetectionCache(PendingFile pf) {
+    DirDetections dir;
+    synchronized (dirDetectionsByCrawl) {
+      dir = dirDetectionsByCrawl.get(pf.crawlId);
+    }
+    if (dir == null || ! dir.dirPath.equals(pf.parentPath)) {
+      dir = loadDirDetections(pf.parentPath);
+      if (dir == null) {
+        return false;
+      }
+      synchronized (dirDetectionsByCrawl) {
+        dirDetectionsByCrawl.put(pf.crawlId, dir);
+      }
+    }
+    CachedDetection cd = dir.byPath.remove(pf.fstatus.getPath().toString());
+    if (cd == null || cd.size != pf.fstatus.getLen() || cd.modified != pf.fstatus.getModificationTime()) {
+      return false;
+    }
+    pf.typeLabel = cd.typeLabel;
+    pf.cachedSchemaIds = cd.schemaIds;
+    pf.schemaReprs = cd.schemaReprs;
+    pf.schemaDescs = cd.schemaDescs;
+    for (String schemaRepr: pf.schemaReprs) {
+      SearchTerms.addFieldTerms(pf.terms, schemaRepr);
+    }
+    SearchTerms.addTypeTerm(pf.terms, pf.typeLabel);
+    return true;
+  }
+
+  /**
+   * <code>loadDirDetections</code> reads the directory's detection cache
+   * entries made by the current detector set.  Entries naming a schema that
+   * no longer exists are left out.  It returns null if the store can't be read.
+   */
+  DirDetections loadDirDetections(final String dirPath) {
+    final String detectorFingerprint = formatAnalyzer.getDetectorFingerprint();
+    return dbQueue.execute(new SQLiteJob<DirDetections>() {
+        protected DirDetections job(SQLiteConnection db) throws SQLiteException {
+          DirDetections dir = new DirDetections();
+          dir.dirPath = dirPath;
+          List<String> paths = new ArrayList<String>();
+          List<String> schemaIdLists = new ArrayList<String>();
+          SQLiteStatement stmt = db.prepare("SELECT DetectionCache.fullpath, DetectionCache.size, DetectionCache.modified, Types.typelabel, DetectionCache.schemaids FROM DetectionCache, Types WHERE DetectionCache.dirpath = ? AND DetectionCache.detectors = ? AND DetectionCache.typeid = Types.typeid");
+          try {
+            stmt.bind(1, dirPath).bind(2, detectorFingerprint);
+            while (stmt.step()) {
+              CachedDetection cd = new CachedDetection();
+              cd.size = stmt.columnLong(1);
+              cd.modified = stmt.columnLong(2);
+              cd.typeLabel = stmt.columnString(3);
+              dir.byPath.put(stmt.columnString(0), cd);
+              paths.add(stmt.columnString(0));
+              schemaIdLists.add(stmt.columnString(4));
+            }
+          } finally {
+            stmt.dispose();
+          }
+
+          // Files in a directory mostly share schemas; read each one once
+          Map<Long, String[]> schemaTexts = new HashMap<Long, String[]>();
+          stmt = db.prepare("SELECT schemarepr, schemasrcdescription FROM Schemas WHERE schemaid = ?");
+          try {
+            for (int i = 0; i < paths.size(); i++) {
+              CachedDetection cd = dir.byPath.get(paths.get(i));
+              String[] idStrs = schemaIdLists.get(i).split(",");
+              for (int j = 0; j < idStrs.length && cd != null; j++) {
+                long schemaId;
+                try {
+                  schemaId = Long.parseLong(idStrs[j]);
+                } catch (NumberFormatException nfe) {
+                  cd = null;
+                  break;
+                }
+                String[] schemaText = schemaTexts.get(schemaId);
+                if (schemaText == null) {
+                  stmt.bind(1, schemaId);
+                  if (stmt.step()) {
+                    schemaText = new String[] {stmt.columnString(0), stmt.columnString(1)};
+                    schemaTexts.put(schemaId, schemaText);
+                  }
+                  stmt.reset();
+                }
+                if (schemaText == null) {
+                  cd = null;
+                } else {
+                  cd.schemaIds.add(schemaId);
+                  cd.schemaReprs.add(schemaText[0]);
+                  cd.schemaDescs.add(schemaText[1]);
+                }
+              }
+              if (cd == null) {
+                dir.byPath.remove(paths.get(i));
+              }
+            }
+          } finally {
+            stmt.dispose();
+          }
+          return dir;
+        }
+      }).complete();
+  }
+
+  /**
+   * <code>storeDetectionCache</code> records a freshly detected file's type and
+   * schemas.  It must run inside the writer's transaction, after the guesses
+   * are inserted.
+   */
+  void storeDetectionCache(SQLiteConnection db, PendingFile pf, long typeId) throws SQLiteException {
+    StringBuffer schemaIdList = new StringBuffer();
+    for (int i = 2; i < pf.typeGuesses.size(); i+=3) {
+      if (schemaIdList.length() > 0) {
+        schemaIdList.append(",");
+      }
+      schemaIdList.append(pf.typeGuesses.get(i));
+    }
+    String fullPath = pf.fstatus.getPath().toString();
+    String detectorFingerprint = formatAnalyzer.getDetectorFingerprint();
+    SQLiteStatement stmt = db.prepare("UPDATE DetectionCache SET dirpath = ?, size = ?, modified = ?, detectors = ?, typeid = ?, schemaids = ? WHERE fullpath = ?");
+    try {
+      stmt.bind(1, pf.parentPath).bind(2, pf.fstatus.getLen()).bind(3, pf.fstatus.getModificationTime()).bind(4, detectorFingerprint).bind(5, typeId).bind(6, schemaIdList.toString()).bind(7, fullPath);
+      stmt.step();
+    } finally {
+      stmt.dispose();
+    }
+    if (db.getChanges() == 0) {
+      stmt = db.prepare("INSERT into DetectionCache VALUES(?, ?, ?, ?, ?, ?, ?)");
+      try {
+        stmt.bind(1, fullPath).bind(2, pf.parentPath).bind(3, pf.fstatus.getLen()).bind(4, pf.fstatus.getModificationTime()).bind(5, detectorFingerprint).bind(6, typeId).bind(7, schemaIdList.toString());
+        stmt.step();
+      } finally {
+        stmt.dispose();
+      }
+    }
+  }
+
+  /**
+   * <code>getParentPathString</code> computes the formal representation of a
+   * file's parent directory, as stored in the Files.path column.
+   */
+  static String getParentPathString(Path insertFile, boolean isDir) {
+    if (isDir && insertFile.getParent() == null) {
+      return "";
+    }
+    String parentPathString = insertFile.getParent().toString();
+
+    // REMIND --- mjc --- If we want to modify the Files table s.t. it does
+    // not contain the filesystem prefix, then this would be the place to do it.
+
+    if (! parentPathString.endsWith("/")) {
+      parentPathString = parentPathString + "/";
+    }
+    return parentPathString;
+  }
+
+  /**
+   * <code>addFileMetadata</code> stores the pathname, size, owner, etc.
+   * It runs inside the caller's dbQueue job and returns the new file's id.
+   */
+  long addFileMetadata(SQLiteConnection db, FileStatus fstatus, long crawlId) throws SQLiteException {
+    // Compute strings to represent file metadata
+    Path insertFile = fstatus.getPath(); 
+    boolean isDir = fstatus.isDir();
+    FsPermission fsp = fstatus.getPermission();
+    String permissions = (isDir ? "d" : "-") + fsp.getUserAction().SYMBOL + fsp.getGroupAction().SYMBOL + fsp.getOtherAction().SYMBOL;
+
+    // Compute formal pathname representation
+    String parentPath = getParentPathString(insertFile, isDir);
+    String fName = (isDir && insertFile.getParent() == null) ? insertFile.toString() : insertFile.getName();
+    SQLiteStatement stmt = db.prepare("INSERT into Files VALUES(null, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    try {
+      stmt.bind(1, isDir ? "True" : "False").bind(2, crawlId).bind(3, fName).bind(4, fstatus.getOwner()).bind(5, fstatus.getGroup()).bind(6, permissions).bind(7, fstatus.getLen()).bind(8, fileDateFormat.format(new Date(fstatus.getModificationTime()))).bind(9, parentPath);
+      stmt.step();
+      return db.getLastInsertId();
+    } finally {
+      stmt.dispose();
+    }
+  }
+
+  ///////////////////////////////////////////////////
+  // Inverted index over field names, paths and types
+  ///////////////////////////////////////////////////
+  /**
+   * <code>insertTerms</code> adds a file to the posting lists of its terms.
+   * It must run inside the caller's transaction.
+   */
+  void insertTerms(SQLiteConnection db, long fid, Set<String> terms) throws SQLiteException {
+    for (String term: terms) {
+      long termId = getCreateTerm(db, term);
+      SQLiteStatement stmt = db.prepare("INSERT OR IGNORE into Postings VALUES(?, ?)");
+      try {
+        stmt.bind(1, termId).bind(2, fid);
+        stmt.step();
+      } finally {
+        stmt.dispose();
+      }
+      if (db.getChanges() > 0) {
+        stmt = db.prepare("UPDATE Terms SET numfiles = numfiles + 1 WHERE termid = ?");
+        try {
+          stmt.bind(1, termId);
+          stmt.step();
+        } finally {
+          stmt.dispose();
+        }
+      }
+    }
+  }
+
+  long getCreateTerm(SQLiteConnection db, String term) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare("SELECT termid FROM Terms WHERE term = ?");
+    try {
+      stmt.bind(1, term);
+      if (stmt.step()) {
+        return stmt.columnLong(0);
+      }
+    } finally {
+      stmt.dispose();
+    }
+    stmt = db.prepare("INSERT into Terms VALUES(null, ?, 0)");
+    try {
+      stmt.bind(1, term);
+      stmt.step();
+      return db.getLastInsertId();
+    } finally {
+      stmt.dispose();
+    }
+  }
+
+  /**
+   * <code>buildMissingTerms</code> indexes the files of a store that predates
+   * the Terms table, or whose index predates the under: terms (every indexed
+   * file has "under:/").  Field terms come from the stored schema reprs.
+   * Terms a file already has are left alone.
+   */
+  void buildMissingTerms() {
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare("SELECT (SELECT COUNT(*) FROM Terms WHERE term = ?), (SELECT COUNT(*) FROM Files WHERE isDir = 'False')");
+          try {
+            stmt.bind(1, SearchTerms.UNDER_PREFIX + "/");
+            stmt.step();
+            if (stmt.columnLong(0) > 0 || stmt.columnLong(1) == 0) {
+              return null;
+            }
+          } finally {
+            stmt.dispose();
+          }
+          LOG.info("Building search index for existing files");
+
+          Map<Long, String> typeLabels = new HashMap<Long, String>();
+          stmt = db.prepare("SELECT typeid, typelabel FROM Types");
+          try {
+            while (stmt.step()) {
+              typeLabels.put(stmt.columnLong(0), stmt.columnString(1));
+            }
+          } finally {
+            stmt.dispose();
+          }
+          Map<Long, Set<String>> schemaTerms = new HashMap<Long, Set<String>>();
+          stmt = db.prepare("SELECT schemaid, schemarepr FROM Schemas");
+          try {
+            while (stmt.step()) {
+              Set<String> terms = new TreeSet<String>();
+              SearchTerms.addFieldTerms(terms, stmt.columnString(1));
+              schemaTerms.put(stmt.columnLong(0), terms);
+            }
+          } finally {
+            stmt.dispose();
+          }
+
+          db.exec("BEGIN");
+          boolean committed = false;
+          try {
+            stmt = db.prepare("SELECT fid, path, fname FROM Files WHERE isDir = 'False'");
+            try {
+              while (stmt.step()) {
+                long fid = stmt.columnLong(0);
+                Set<String> terms = new TreeSet<String>();
+                SearchTerms.addPathTerms(terms, stmt.columnString(1), stmt.columnString(2));
+                SearchTerms.addTypeTerm(terms, typeLabels.get(fileIndex.getTypeId(fid)));
+                long[] schemaIds = fileIndex.getSchemaIds(fid);
+                for (int i = 0; i < schemaIds.length; i++) {
+                  Set<String> fieldTerms = schemaTerms.get(schemaIds[i]);
+                  if (fieldTerms != null) {
+                    terms.addAll(fieldTerms);
+                  }
+                }
+                insertTerms(db, fid, terms);
+              }
+            } finally {
+              stmt.dispose();
+            }
+            db.exec("COMMIT");
+            committed = true;
+          } finally {
+            if (! committed) {
+              db.exec("ROLLBACK");
+            }
+          }
+          return null;
+        }
+      }).complete();
+  }
+
+  /**
+   * <code>searchFiles</code> returns up to <code>maxResults</code> files from the
+   * given crawl (or from any crawl, if <code>crawlid</code> is negative) that
+   * match every word of the query.  See <code>SearchTerms.parseQuery</code>.
+   *
+   * Postings are only read within the crawl's fid range, which the Postings
+   * (termid, fid) primary key bounds directly, so lookups don't slow down as
+   * older crawls are retained.  Words are ordered by their posting counts
+   * within that range.  The word with the shortest posting lists is read into
+   * a sorted fid array, keeping only the crawl's files.  So is every other word
+   * whose postings are not much longer; the rest are checked by probing the
+   * Postings primary key.  The first word's fids are then walked in order and
+   * each is checked against the other words, stopping at <code>maxResults</code>.
+   * Results come with their Files rows already loaded.
+   */
+  static int PROBE_RATIO = 16;
+  public List<FileSummary> searchFiles(final String query, final long crawlid, final int maxResults) {
+    return dbQueue.execute(new SQLiteJob<List<FileSummary>>() {
+        protected List<FileSummary> job(SQLiteConnection db) throws SQLiteException {
+          List<FileSummary> output = new ArrayList<FileSummary>();
+          List<List<String>> clauses = SearchTerms.parseQuery(query);
+          if (clauses.size() == 0) {
+            return output;
+          }
+
+          long minFid = 0;
+          long maxFid = Long.MAX_VALUE;
+          if (crawlid >= 0) {
+            long[] fidRange = fileIndex.getFidRange(crawlid);
+            if (fidRange == null) {
+              return output;
+            }
+            minFid = fidRange[0];
+            maxFid = fidRange[1];
+          }
+
+          // 1.  Resolve each clause to its term ids and total posting length.
+          //     Terms.numfiles counts every crawl, so a single crawl's postings
+          //     are counted over its fid range instead.
+          final long[][] clauseTermIds = new long[clauses.size()][];
+          final long[] clauseSizes = new long[clauses.size()];
+          SQLiteStatement stmt = db.prepare("SELECT termid, numfiles FROM Terms WHERE term = ?");
+          try {
+            for (int i = 0; i < clauses.size(); i++) {
+              List<Long> termIds = new ArrayList<Long>();
+              for (String term: clauses.get(i)) {
+                stmt.bind(1, term);
+                if (stmt.step()) {
+                  termIds.add(stmt.columnLong(0));
+                  clauseSizes[i] += stmt.columnLong(1);
+                }
+                stmt.reset();
+              }
+              if (termIds.size() == 0) {
+                return output;
+              }
+              clauseTermIds[i] = new long[termIds.size()];
+              for (int j = 0; j < termIds.size(); j++) {
+                clauseTermIds[i][j] = termIds.get(j);
+              }
+            }
+          } finally {
+            stmt.dispose();
+          }
+          if (crawlid >= 0) {
+            stmt = db.prepare("SELECT COUNT(*) FROM Postings WHERE termid = ? AND fid BETWEEN ? AND ?");
+            try {
+              for (int i = 0; i < clauseTermIds.length; i++) {
+                clauseSizes[i] = 0;
+                for (int j = 0; j < clauseTermIds[i].length; j++) {
+                  stmt.bind(1, clauseTermIds[i][j]).bind(2, minFid).bind(3, maxFid);
+                  stmt.step();
+                  clauseSizes[i] += stmt.columnLong(0);
+                  stmt.reset();
+                }
+              }
+            } finally {
+              stmt.dispose();
+            }
+          }
+          Integer[] order = new Integer[clauses.size()];
+          for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+          }
+          Arrays.sort(order, new Comparator<Integer>() {
+              public int compare(Integer a, Integer b) {
+                return clauseSizes[a] < clauseSizes[b] ? -1 : (clauseSizes[a] > clauseSizes[b] ? 1 : 0);
+              }
+            });
+
+          // 2.  Read the rarest word's postings, and those of any word not much
+          //     more common.  Other words are probed per candidate.
+          long[][] postings = new long[order.length][];
+          postings[0] = readPostings(db, clauseTermIds[order[0]], crawlid, minFid, maxFid);
+          for (int i = 1; i < order.length; i++) {
+            if ((long) postings[0].length * PROBE_RATIO >= clauseSizes[order[i]]) {
+              postings[i] = readPostings(db, clauseTermIds[order[i]], crawlid, minFid, maxFid);
+            }
+          }
+
+          // 3.  Intersect, in fid order, until there are enough results
+          int[] cursors = new int[order.length];
+          stmt = db.prepare("SELECT fid FROM Postings WHERE termid = ? AND fid = ?");
+          try {
+            for (int k = 0; k < postings[0].length && output.size() < maxResults; k++) {
+              long fid = postings[0][k];
+              boolean matches = true;
+              for (int i = 1; i < order.length && matches; i++) {
+                if (postings[i] != null) {
+                  cursors[i] = seek(postings[i], cursors[i], fid);
+                  matches = cursors[i] < postings[i].length && postings[i][cursors[i]] == fid;
+                } else {
+                  matches = hasPosting(stmt, clauseTermIds[order[i]], fid);
+                }
+              }
+              if (matches) {
+                FileSummary fs = getPrecachedFileSummary(db, fid, false);
+                if (fs != null) {
+                  output.add(fs);
+                }
+              }
+            }
+          } finally {
+            stmt.dispose();
+          }
+          return output;
+        }
+      }).complete();
+  }
+
+  /**
+   * <code>readPostings</code> returns the sorted, distinct fids that carry any
+   * of <code>termIds</code> and belong to the crawl (any crawl, if
+   * <code>crawlid</code> is negative).  Only fids between <code>minFid</code>
+   * and <code>maxFid</code> are scanned; other crawls' files inside that range
+   * are dropped.
+   */
+  long[] readPostings(SQLiteConnection db, long[] termIds, long crawlid, long minFid, long maxFid) throws SQLiteException {
+    long[] fids = new long[64];
+    int numFids = 0;
+    SQLiteStatement stmt = db.prepare("SELECT fid FROM Postings WHERE termid = ? AND fid BETWEEN ? AND ?");
+    try {
+      for (int i = 0; i < termIds.length; i++) {
+        stmt.bind(1, termIds[i]).bind(2, minFid).bind(3, maxFid);
+        while (stmt.step()) {
+          long fid = stmt.columnLong(0);
+          if (crawlid < 0 || fileIndex.getCrawlId(fid) == crawlid) {
+            if (numFids == fids.length) {
+              long[] newFids = new long[fids.length * 2];
+              System.arraycopy(fids, 0, newFids, 0, numFids);
+              fids = newFids;
+            }
+            fids[numFids++] = fid;
+          }
+        }
+        stmt.reset();
+      }
+    } finally {
+      stmt.dispose();
+    }
+    Arrays.sort(fids, 0, numFids);
+
+    // A file can carry several of the terms
+    int numUnique = 0;
+    for (int i = 0; i < numFids; i++) {
+      if (numUnique == 0 || fids[i] != fids[numUnique-1]) {
+        fids[numUnique++] = fids[i];
+      }
+    }
+    long[] result = new long[numUnique];
+    System.arraycopy(fids, 0, result, 0, numUnique);
+    return result;
+  }
+
+  /**
+   * <code>seek</code> returns the first index at or after <code>from</code>
+   * whose fid is not less than <code>target</code>.  It gallops ahead and then
+   * binary searches, so walking a long array with rare targets stays cheap.
+   */
+  static int seek(long[] fids, int from, long target) {
+    int step = 1;
+    int hi = from;
+    while (hi < fids.length && fids[hi] < target) {
+      from = hi + 1;
+      hi += step;
+      step *= 2;
+    }
+    hi = Math.min(hi, fids.length);
+    while (from < hi) {
+      int mid = (from + hi) >>> 1;
+      if (fids[mid] < target) {
+        from = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return from;
+  }
+
+  static boolean hasPosting(SQLiteStatement stmt, long[] termIds, long fid) throws SQLiteException {
+    for (int j = 0; j < termIds.length; j++) {
+      stmt.bind(1, termIds[j]).bind(2, fid);
+      boolean found = stmt.step();
+      stmt.reset();
+      if (found) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   ///////////////////////////////////////////////////
   // ACCESSORS FOR SCHEMAS
   ///////////////////////////////////////////////////
@@ -535,55 +1914,39 @@ public class FSAnalyzer {
   /**
    * Get a list of SchemaSummary items, one for each schema in the database.
    * Prefetch a lot of data for efficiency reasons (so we don't need to issue many small queries).
-   * Otherwise enumerating schemas can be very slow
+   * Otherwise enumerating schemas can be very slow.  The schema-to-file mapping
+   * comes from the resident FileIndex; only Schemas rows and per-file rows are read.
    */
-  static String precachedSchemaQuery = "SELECT Schemas.schemaid, Schemas.schemarepr, Schemas.schemasrcdescription, SchemaGuesses.fid, TypeGuesses.typeid, Files.crawlid, Files.fname, Files.owner, Files.groupowner, Files.permissions, Files.size, Files.modified, Files.path FROM Schemas, SchemaGuesses, TypeGuesses, Files WHERE SchemaGuesses.schemaid = Schemas.schemaid AND TypeGuesses.fid = SchemaGuesses.fid AND Files.fid = SchemaGuesses.fid ORDER BY Schemas.schemaid";  
+  static String allSchemasQuery = "SELECT schemaid, schemarepr, schemasrcdescription FROM Schemas ORDER BY schemaid";
   public List<SchemaSummary> getPrecachedSchemaSummaries() {
+    final Map<Long, long[]> fidsBySchema = fileIndex.getFidsBySchema();
     return dbQueue.execute(new SQLiteJob<List<SchemaSummary>>() {
         protected List<SchemaSummary> job(SQLiteConnection db) throws SQLiteException {
           List<SchemaSummary> output = new ArrayList<SchemaSummary>();          
-          SQLiteStatement stmt = db.prepare(precachedSchemaQuery);
-          
+          Map<Long, FileSummary> seenFiles = new HashMap<Long, FileSummary>();
+          SQLiteStatement stmt = db.prepare(allSchemasQuery);
           try {
-            SchemaSummaryData ssd = null;
-            SchemaSummary ss = null;
-            long lastSchemaId = -1L;
-            List<TypeGuessSummary> tgslist = null;
             while (stmt.step()) {
               long schemaid = stmt.columnLong(0);
-              String schemarepr = stmt.columnString(1);
-              String schemasrcdescription = stmt.columnString(2);
-              long fid = stmt.columnLong(3);
-              long typeid = stmt.columnLong(4);
-              long crawlid = stmt.columnLong(5);
-              String fname = stmt.columnString(6);
-              String owner = stmt.columnString(7);
-              String groupowner = stmt.columnString(8);
-              String permissions = stmt.columnString(9);
-              long size = stmt.columnLong(10);
-              String modified = stmt.columnString(11);
-              String path = stmt.columnString(12);  
-
-              TypeGuessSummary tgs = new TypeGuessSummary(FSAnalyzer.this, fid, typeid, schemaid);
-              FileSummary fs = new FileSummary(FSAnalyzer.this, fid);
-              FileSummaryData fsd = new FileSummaryData(FSAnalyzer.this, true, fid, crawlid, fname, owner, groupowner, permissions, size, modified, path);
-              fs.addCachedData(fsd);
-              tgs.addCachedData(fs);
-              
-              if (schemaid != lastSchemaId) {
-                if (ss != null) {
-                  ss.addCachedData(tgslist);
-                  output.add(ss);
+              long[] fids = fidsBySchema.get(schemaid);
+              if (fids == null) {
+                continue;
+              }
+              SchemaSummary ss = new SchemaSummary(FSAnalyzer.this, schemaid);
+              ss.addCachedData(new SchemaSummaryData(schemaid, stmt.columnString(1), stmt.columnString(2)));
+              List<TypeGuessSummary> tgslist = new ArrayList<TypeGuessSummary>();
+              for (int i = 0; i < fids.length; i++) {
+                FileSummary fs = seenFiles.get(fids[i]);
+                if (fs == null) {
+                  fs = getPrecachedFileSummary(db, fids[i], true);
+                  seenFiles.put(fids[i], fs);
+                }
+                if (fs != null) {
+                  TypeGuessSummary tgs = new TypeGuessSummary(FSAnalyzer.this, fids[i], fileIndex.getTypeId(fids[i]), schemaid);
+                  tgs.addCachedData(fs);
+                  tgslist.add(tgs);
                 }
-                ssd = new SchemaSummaryData(schemaid, schemarepr, schemasrcdescription);
-                ss = new SchemaSummary(FSAnalyzer.this, schemaid);
-                ss.addCachedData(ssd);
-                tgslist = new ArrayList<TypeGuessSummary>();
               }
-              tgslist.add(tgs);
-              lastSchemaId = schemaid;
-            }
-            if (ss != null) {
               ss.addCachedData(tgslist);
               output.add(ss);
             }
@@ -600,16 +1963,29 @@ public class FSAnalyzer {
   // ACCESSORS FOR FILES
   ///////////////////////////////////////////////////
   /**
-   * <code>getFidUnderPath</code> returns the files under the given path prefix
+   * <code>getFidUnderPath</code> returns the files and directories beneath the
+   * directory <code>pathPrefix</code>, in every crawl that saw it.  Completed
+   * crawls are answered from the directory tree; crawls still in progress
+   * fall back to a prefix match on Files.path.
    */
-  static String subpathFilesQuery = "SELECT fid from Files WHERE path LIKE ?";
+  static String subtreeFilesQuery = "SELECT DirTreePositions.fid FROM DirTree, DirTreePositions WHERE DirTree.dirpath = ? AND DirTreePositions.crawlid = DirTree.crawlid AND DirTreePositions.pos > DirTree.lft AND DirTreePositions.pos <= DirTree.rgt";
+  static String subpathFilesQuery = "SELECT fid from Files WHERE crawlid IN (SELECT crawlid FROM Crawls WHERE crawlid NOT IN (SELECT DISTINCT crawlid FROM DirTree)) AND path LIKE ?";
   public List<Long> getFidUnderPath(final String pathPrefix) throws SQLiteException {
     List<Long> finalResults = dbQueue.execute(new SQLiteJob<List<Long>>() {
         protected List<Long> job(SQLiteConnection db) throws SQLiteException {
           List<Long> results = new ArrayList<Long>();          
-          SQLiteStatement stmt = db.prepare(subpathFilesQuery);
+          SQLiteStatement stmt = db.prepare(subtreeFilesQuery);
+          try {
+            stmt.bind(1, new Path(pathPrefix).toString());
+            while (stmt.step()) {
+              results.add(stmt.columnLong(0));
+            }
+          } finally {
+            stmt.dispose();
+          }
+          stmt = db.prepare(subpathFilesQuery);
           try {
-            stmt.bind(1, pathPrefix + "%");
+            stmt.bind(1, DirTree.dirKey(pathPrefix) + "%");
             while (stmt.step()) {
               long resultId = stmt.columnLong(0);
               results.add(resultId);
@@ -660,75 +2036,64 @@ public class FSAnalyzer {
   }
 
   /**
-   * A version of 'getFileSummariesInDir()' where much of the information is cached ahead of time
+   * A version of 'getFileSummariesInDir()' where much of the information is cached ahead of time.
+   * Only files with type guesses are returned.
    */
-  static String precachedFileInfoQueryWithoutPrefix = "SELECT Files.fid, Files.crawlid, Files.fname, Files.owner, Files.groupowner, Files.permissions, Files.size, Files.modified, Files.path, SchemaGuesses.schemaid, TypeGuesses.typeid FROM Files, TypeGuesses, SchemaGuesses WHERE Files.isDir = ? AND TypeGuesses.fid = Files.fid AND SchemaGuesses.fid = Files.fid";
-  static String precachedFileInfoQueryWithPrefix = precachedFileInfoQueryWithoutPrefix + " AND Files.path = ?";
   public List<FileSummary> getPrecachedFileSummariesInDir(final boolean isDir, final String prefix) {
+    String prefixStr = prefix;
+    if (prefixStr != null && ! prefixStr.endsWith("/")) {
+      prefixStr += "/";
+    }
+    final long[] fids = fileIndex.getGuessedFidsInDir(prefixStr, isDir);
     return dbQueue.execute(new SQLiteJob<List<FileSummary>>() {
         protected List<FileSummary> job(SQLiteConnection db) throws SQLiteException {
           List<FileSummary> output = new ArrayList<FileSummary>();
-          SQLiteStatement stmt;
-          if (prefix == null) {
-            stmt = db.prepare(precachedFileInfoQueryWithoutPrefix);
-            stmt.bind(1, isDir ? "True" : "False");            
-          } else {
-            stmt = db.prepare(precachedFileInfoQueryWithPrefix);
-            String prefixStr = prefix;
-            if (! prefixStr.endsWith("/")) {
-              prefixStr += "/";
-            }
-            stmt.bind(1, isDir ? "True" : "False").bind(2, prefixStr);            
-          }
           try {
-            FileSummary fs = null;
-            FileSummaryData fsd = null;
-            long lastFid = -1L;
-            List<TypeGuessSummary> tgslist = null;
-            while (stmt.step()) {
-              long fid = stmt.columnLong(0);
-              long crawlid = stmt.columnLong(1);
-              String fname = stmt.columnString(2);
-              String owner = stmt.columnString(3);
-              String groupowner = stmt.columnString(4);
-              String permissions = stmt.columnString(5);
-              long size = stmt.columnLong(6);
-              String modified = stmt.columnString(7);
-              String path = stmt.columnString(8);
-              long schemaid = stmt.columnLong(9);
-              long typeid = stmt.columnLong(10);
-
-              // We get a tuple for every typeguess.
-              // There could be more than one typeguess for each unique file
-              TypeGuessSummary tgs = new TypeGuessSummary(FSAnalyzer.this, fid, typeid, schemaid);
-              tgs.addCachedData(fs);
-                
-              if (fid != lastFid) {
-                if (fs != null) {
-                  fs.addCachedData(tgslist);
-                  output.add(fs);
-                }
-                fs = new FileSummary(FSAnalyzer.this, fid);              
-                fsd = new FileSummaryData(FSAnalyzer.this, isDir, fid, crawlid, fname, owner, groupowner, permissions, size, modified, path);
-                fs.addCachedData(fsd);
-                tgslist = new ArrayList<TypeGuessSummary>();
+            for (int i = 0; i < fids.length; i++) {
+              FileSummary fs = getPrecachedFileSummary(db, fids[i], isDir);
+              if (fs != null) {
+                output.add(fs);
               }
-              tgslist.add(tgs);
-              lastFid = fid;
-            }
-            if (fs != null) {
-              fs.addCachedData(tgslist);
-              output.add(fs);
             }
           } catch (SQLiteException sqe) {
             sqe.printStackTrace();
-          } finally {
-            stmt.dispose();
           }
           return output;
         }}).complete();
   }
 
+  /**
+   * <code>getPrecachedFileSummary</code> reads a single Files row by primary key
+   * and attaches the file's type guesses from the resident FileIndex.  It must be
+   * called from inside a dbQueue job.
+   */
+  static String fileRowQuery = "SELECT crawlid, fname, owner, groupowner, permissions, size, modified, path FROM Files WHERE fid = ?";
+  FileSummary getPrecachedFileSummary(SQLiteConnection db, long fid, boolean isDir) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare(fileRowQuery);
+    try {
+      stmt.bind(1, fid);
+      if (! stmt.step()) {
+        return null;
+      }
+      FileSummary fs = new FileSummary(FSAnalyzer.this, fid);
+      fs.addCachedData(new FileSummaryData(FSAnalyzer.this, isDir, fid, stmt.columnLong(0), stmt.columnString(1), stmt.columnString(2), stmt.columnString(3), stmt.columnString(4), stmt.columnLong(5), stmt.columnString(6), stmt.columnString(7)));
+
+      // There could be more than one typeguess for each unique file
+      List<TypeGuessSummary> tgslist = new ArrayList<TypeGuessSummary>();
+      long typeid = fileIndex.getTypeId(fid);
+      long[] schemaids = fileIndex.getSchemaIds(fid);
+      for (int i = 0; i < schemaids.length; i++) {
+        TypeGuessSummary tgs = new TypeGuessSummary(FSAnalyzer.this, fid, typeid, schemaids[i]);
+        tgs.addCachedData(fs);
+        tgslist.add(tgs);
+      }
+      fs.addCachedData(tgslist);
+      return fs;
+    } finally {
+      stmt.dispose();
+    }
+  }
+
   static String singletonFileInfoQuery = "SELECT fid FROM Files WHERE path||fname = ?";  
   public FileSummary getSingleFileSummary(final String fullName) {
     return dbQueue.execute(new SQLiteJob<FileSummary>() {
@@ -809,7 +2174,7 @@ public class FSAnalyzer {
             while (stmt.step()) {
               schemaReprs.add(stmt.columnString(1));
               schemaDescs.add(stmt.columnString(2));
-              schemaBlobs.add(stmt.columnBlob(3));
+              schemaBlobs.add(inflatePayload(stmt.columnBlob(3)));
             }
 
             try {
@@ -823,90 +2188,73 @@ public class FSAnalyzer {
         }}).complete();
   }
   
+  /**
+   * Grab the file-level metadata for a file.  The DataDescriptor is not
+   * built here; FileSummaryData asks for it only if a caller needs schemas.
+   */
   public FileSummaryData getFileSummaryData(final long fid) {
-    final FileSystem fs = getFS();    
     return dbQueue.execute(new SQLiteJob<FileSummaryData>() {
         protected FileSummaryData job(SQLiteConnection db) throws SQLiteException {
-          FileSummaryData fsd = null;
-          boolean isDir = false;
-          long crawlid = 0L;
-          String fname = null;
-          String owner = null;
-          String groupowner = null;
-          String permissions = null;
-          long size = 0L;
-          String modified = null;
-          String path = null;
-          String identifier = null;          
-
           SQLiteStatement stmt = db.prepare("SELECT isDir, crawlid, fname, owner, groupowner, permissions, size, modified, path FROM Files WHERE Files.fid = ?");
           try {
             stmt.bind(1, fid);
             if (stmt.step()) {
-              isDir = "True".equals(stmt.columnString(0));
-              crawlid = stmt.columnLong(1);
-              fname = stmt.columnString(2);
-              owner = stmt.columnString(3);
-              groupowner = stmt.columnString(4);
-              permissions = stmt.columnString(5);
-              size = stmt.columnLong(6);
-              modified = stmt.columnString(7);
-              path = stmt.columnString(8);
+              boolean isDir = "True".equals(stmt.columnString(0));
+              long crawlid = stmt.columnLong(1);
+              String fname = stmt.columnString(2);
+              String owner = stmt.columnString(3);
+              String groupowner = stmt.columnString(4);
+              String permissions = stmt.columnString(5);
+              long size = stmt.columnLong(6);
+              String modified = stmt.columnString(7);
+              String path = stmt.columnString(8);
+              // Same flag convention as the precached queries: true for plain files
+              return new FileSummaryData(FSAnalyzer.this, ! isDir, fid, crawlid, fname, owner, groupowner, permissions, size, modified, path);
             }
+            return null;
           } finally {
             stmt.dispose();
           }
-
-          if (! isDir) {
-            stmt = db.prepare("SELECT typelabel FROM Types, TypeGuesses WHERE TypeGuesses.fid = ? AND Types.typeid = TypeGuesses.typeid");
-            try {
-              stmt.bind(1, fid);
-              if (stmt.step()) {
-                identifier = stmt.columnString(0);
-              }
-            } finally {
-              stmt.dispose();
-            }
-            
-            stmt = db.prepare("SELECT Schemas.schemaid, Schemas.schemarepr, Schemas.schemasrcdescription, Schemas.schemapayload FROM Schemas, SchemaGuesses WHERE SchemaGuesses.fid = ? AND SchemaGuesses.schemaid = Schemas.schemaid");
-            try {
-              List<String> schemaReprs = new ArrayList<String>();
-              List<String> schemaDescs = new ArrayList<String>();
-              List<byte[]> schemaBlobs = new ArrayList<byte[]>();
-              
-              stmt.bind(1, fid);
-              while (stmt.step()) {
-                schemaReprs.add(stmt.columnString(1));
-                schemaDescs.add(stmt.columnString(2));
-                schemaBlobs.add(stmt.columnBlob(3));
-              }
-
-              try {
-                DataDescriptor dd = formatAnalyzer.loadDataDescriptor(fs, new Path(path + fname), identifier, schemaReprs, schemaDescs, schemaBlobs);
-                fsd = new FileSummaryData(FSAnalyzer.this, true, fid, crawlid, fname, owner, groupowner, permissions, size, modified, path);
-                fsd.addCachedData(dd);
-              } catch (IOException iex) {
-                iex.printStackTrace();
-                return null;
-              }
-            } finally {
-              stmt.dispose();
-            }
-          } else {
-            fsd = new FileSummaryData(FSAnalyzer.this, false, fid, crawlid, fname, owner, groupowner, permissions, size, modified, path);            
-          }
-          return fsd;
         }
       }).complete();
   }
 
+  /**
+   * <code>lookupDirTreeNode</code> returns {dirfid, parentfid} for a directory in
+   * a crawl's tree, or null if the crawl has no tree or never saw the directory.
+   */
+  static long[] lookupDirTreeNode(SQLiteConnection db, long crawlid, String dirPath) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare("SELECT dirfid, parentfid FROM DirTree WHERE dirpath = ? AND crawlid = ?");
+    try {
+      stmt.bind(1, new Path(dirPath).toString()).bind(2, crawlid);
+      if (stmt.step()) {
+        return new long[] {stmt.columnLong(0), stmt.columnLong(1)};
+      } else {
+        return null;
+      }
+    } finally {
+      stmt.dispose();
+    }
+  }
+
   /**
    * Get the top-level directory from a given crawl
    */
   public Path getTopDir(final long crawlid)  {
     return dbQueue.execute(new SQLiteJob<Path>() {
         protected Path job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("SELECT path, fname FROM Files WHERE crawlid = ? AND isDir = 'True' ORDER BY length(path||fname) ASC LIMIT 1");
+          SQLiteStatement stmt = db.prepare("SELECT dirpath FROM DirTree WHERE crawlid = ? AND parentfid = -1 ORDER BY length(dirpath) ASC LIMIT 1");
+          try {
+            stmt.bind(1, crawlid);
+            if (stmt.step()) {
+              return new Path(stmt.columnString(0));
+            }
+          } finally {
+            stmt.dispose();
+          }
+
+          // No tree yet; the crawl is still in progress
+          stmt = db.prepare("SELECT path, fname FROM Files WHERE crawlid = ? AND isDir = 'True' ORDER BY length(path||fname) ASC LIMIT 1");
           try {
             stmt.bind(1, crawlid);
             if (stmt.step()) {
@@ -922,21 +2270,40 @@ public class FSAnalyzer {
   }
 
   /**
-   * Get the parents for the given directory from a given crawl
+   * Get the parents for the given directory from a given crawl, outermost first.
+   * Walks up the directory tree one primary-key lookup per level.
    */
   public List<FileSummary> getDirParents(final long crawlid, final String targetDirStr) {
     return dbQueue.execute(new SQLiteJob<List<FileSummary>>() {
         protected List<FileSummary> job(SQLiteConnection db) throws SQLiteException {
           List<FileSummary> output = new ArrayList<FileSummary>();
+          Path targetDir = new Path(targetDirStr);
+          if (targetDir.getParent() == null) {
+            return output;
+          }
+          long[] node = lookupDirTreeNode(db, crawlid, targetDirStr);
+          if (node != null) {
+            SQLiteStatement stmt = db.prepare("SELECT parentfid FROM DirTree WHERE crawlid = ? AND dirfid = ?");
+            try {
+              long parentfid = node[1];
+              while (parentfid >= 0) {
+                output.add(0, new FileSummary(FSAnalyzer.this, parentfid));
+                stmt.bind(1, crawlid).bind(2, parentfid);
+                parentfid = stmt.step() ? stmt.columnLong(0) : -1L;
+                stmt.reset();
+              }
+            } finally {
+              stmt.dispose();
+            }
+            return output;
+          }
+
+          // No tree yet; the crawl is still in progress
           SQLiteStatement stmt = db.prepare("select fid, path, fname from Files WHERE crawlid = ? AND length(?) > length(path||fname) AND isDir = 'True' AND replace(?, path||fname, '') LIKE '/%'");
           try {
-            Path targetDir = new Path(targetDirStr);
-            if (targetDir.getParent() != null) {
-              stmt.bind(1, crawlid).bind(2, targetDir.toString()).bind(3, targetDir.toString());
-              while (stmt.step()) {
-                //Path p = new Path(stmt.columnString(0) + stmt.columnString(1));
-                output.add(new FileSummary(FSAnalyzer.this, stmt.columnLong(0)));
-              }
+            stmt.bind(1, crawlid).bind(2, targetDir.toString()).bind(3, targetDir.toString());
+            while (stmt.step()) {
+              output.add(new FileSummary(FSAnalyzer.this, stmt.columnLong(0)));
             }
           } finally {
             stmt.dispose();
@@ -953,13 +2320,24 @@ public class FSAnalyzer {
     return dbQueue.execute(new SQLiteJob<List<FileSummary>>() {
         protected List<FileSummary> job(SQLiteConnection db) throws SQLiteException {
           List<FileSummary> output = new ArrayList<FileSummary>();
+          long[] node = lookupDirTreeNode(db, crawlid, targetDir);
+          if (node != null) {
+            SQLiteStatement stmt = db.prepare("SELECT dirfid FROM DirTree WHERE crawlid = ? AND parentfid = ? ORDER BY dirname ASC");
+            try {
+              stmt.bind(1, crawlid).bind(2, node[0]);
+              while (stmt.step()) {
+                output.add(new FileSummary(FSAnalyzer.this, stmt.columnLong(0)));
+              }
+            } finally {
+              stmt.dispose();
+            }
+            return output;
+          }
+
+          // No tree yet; the crawl is still in progress
           SQLiteStatement stmt = db.prepare("SELECT DISTINCT fid AS fullpath FROM Files WHERE isDir = 'True' AND crawlid = ? AND path = ? ORDER BY fname ASC");
           try {
-            String targetDirNormalizedStr = targetDir;
-            if (! targetDirNormalizedStr.endsWith("/")) {
-              targetDirNormalizedStr += "/";
-            }
-            stmt.bind(1, crawlid).bind(2, targetDirNormalizedStr);
+            stmt.bind(1, crawlid).bind(2, DirTree.dirKey(targetDir));
             while (stmt.step()) {
               output.add(new FileSummary(FSAnalyzer.this, stmt.columnLong(0)));
             }
@@ -971,8 +2349,54 @@ public class FSAnalyzer {
       }).complete();
   }
 
+  /**
+   * <code>getSubtreeTotals</code> returns {number of files, total bytes} for
+   * everything beneath a directory, or null if the crawl has no tree for it.
+   */
+  public long[] getSubtreeTotals(final long crawlid, final String targetDir) {
+    return dbQueue.execute(new SQLiteJob<long[]>() {
+        protected long[] job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare("SELECT numfiles, numbytes FROM DirTree WHERE dirpath = ? AND crawlid = ?");
+          try {
+            stmt.bind(1, new Path(targetDir).toString()).bind(2, crawlid);
+            if (stmt.step()) {
+              return new long[] {stmt.columnLong(0), stmt.columnLong(1)};
+            } else {
+              return null;
+            }
+          } finally {
+            stmt.dispose();
+          }
+        }
+      }).complete();
+  }
+
+  /**
+   * <code>getSubtreeTypeCounts</code> returns the mix of file types (label to
+   * number of files) found anywhere beneath a directory.
+   */
+  static String subtreeTypeCountsQuery = "SELECT Types.typelabel, DirTreeTypeCounts.numfiles FROM DirTree, DirTreeTypeCounts, Types WHERE DirTree.dirpath = ? AND DirTree.crawlid = ? AND DirTreeTypeCounts.crawlid = DirTree.crawlid AND DirTreeTypeCounts.dirfid = DirTree.dirfid AND Types.typeid = DirTreeTypeCounts.typeid";
+  public Map<String, Long> getSubtreeTypeCounts(final long crawlid, final String targetDir) {
+    return dbQueue.execute(new SQLiteJob<Map<String, Long>>() {
+        protected Map<String, Long> job(SQLiteConnection db) throws SQLiteException {
+          Map<String, Long> output = new TreeMap<String, Long>();
+          SQLiteStatement stmt = db.prepare(subtreeTypeCountsQuery);
+          try {
+            stmt.bind(1, new Path(targetDir).toString()).bind(2, crawlid);
+            while (stmt.step()) {
+              output.put(stmt.columnString(0), stmt.columnLong(1));
+            }
+          } catch (SQLiteException se) {
+            se.printStackTrace();
+          } finally {
+            stmt.dispose();
+          }
+          return output;
+        }}).complete();
+  }
+
   public InputStream getRawBytes(Path p) throws IOException {
-    return getFS().open(p);
+    return CompressedFiles.open(getFS(), p);
   }
   
   ///////////////////////////////////////////////////
@@ -1055,16 +2479,73 @@ public class FSAnalyzer {
   }
 
   /**
-   * Grab details on a type.
+   * <code>getTypeSummariesForCrawl</code> returns a TypeSummary for each type
+   * observed in the given crawl, with labels and file/byte counts precached
+   * from the TypeCounts aggregate.
+   */
+  static String typeCountsForCrawlQuery = "SELECT Types.typeid, Types.typelabel, TypeCounts.numfiles, TypeCounts.numbytes FROM TypeCounts, Types WHERE TypeCounts.crawlid = ? AND Types.typeid = TypeCounts.typeid ORDER BY Types.typelabel";
+  public List<TypeSummary> getTypeSummariesForCrawl(final long crawlid) {
+    return dbQueue.execute(new SQLiteJob<List<TypeSummary>>() {
+        protected List<TypeSummary> job(SQLiteConnection db) throws SQLiteException {
+          List<TypeSummary> output = new ArrayList<TypeSummary>();
+          SQLiteStatement stmt = db.prepare(typeCountsForCrawlQuery);
+          try {
+            stmt.bind(1, crawlid);
+            while (stmt.step()) {
+              long typeid = stmt.columnLong(0);
+              TypeSummary ts = new TypeSummary(FSAnalyzer.this, typeid);
+              ts.addCachedData(new TypeSummaryData(typeid, stmt.columnString(1), stmt.columnLong(2), stmt.columnLong(3)));
+              output.add(ts);
+            }
+          } catch (SQLiteException se) {
+            se.printStackTrace();
+          } finally {
+            stmt.dispose();
+          }
+          return output;
+        }}).complete();
+  }
+
+  /**
+   * <code>getDirTypeCounts</code> returns the mix of file types (label to number
+   * of files) found directly inside a directory during the given crawl.
+   */
+  static String dirTypeCountsQuery = "SELECT Types.typelabel, DirTypeCounts.numfiles FROM DirTypeCounts, Types WHERE DirTypeCounts.crawlid = ? AND DirTypeCounts.path = ? AND Types.typeid = DirTypeCounts.typeid";
+  public Map<String, Long> getDirTypeCounts(final long crawlid, final String targetDir) {
+    return dbQueue.execute(new SQLiteJob<Map<String, Long>>() {
+        protected Map<String, Long> job(SQLiteConnection db) throws SQLiteException {
+          Map<String, Long> output = new TreeMap<String, Long>();
+          SQLiteStatement stmt = db.prepare(dirTypeCountsQuery);
+          try {
+            String targetDirNormalizedStr = targetDir;
+            if (! targetDirNormalizedStr.endsWith("/")) {
+              targetDirNormalizedStr += "/";
+            }
+            stmt.bind(1, crawlid).bind(2, targetDirNormalizedStr);
+            while (stmt.step()) {
+              output.put(stmt.columnString(0), stmt.columnLong(1));
+            }
+          } catch (SQLiteException se) {
+            se.printStackTrace();
+          } finally {
+            stmt.dispose();
+          }
+          return output;
+        }}).complete();
+  }
+
+  /**
+   * Grab details on a type.  File and byte counts are summed over all crawls.
    */
+  static String typeSummaryDataQuery = "SELECT typelabel, (SELECT IFNULL(SUM(numfiles), 0) FROM TypeCounts WHERE TypeCounts.typeid = Types.typeid), (SELECT IFNULL(SUM(numbytes), 0) FROM TypeCounts WHERE TypeCounts.typeid = Types.typeid) FROM Types WHERE typeid = ?";
   public TypeSummaryData getTypeSummaryData(final long typeid) {
     return dbQueue.execute(new SQLiteJob<TypeSummaryData>() {
         protected TypeSummaryData job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("SELECT typelabel FROM Types WHERE typeid = ?");
+          SQLiteStatement stmt = db.prepare(typeSummaryDataQuery);
           try {
             stmt.bind(1, typeid);
             if (stmt.step()) {
-              return new TypeSummaryData(typeid, stmt.columnString(0));
+              return new TypeSummaryData(typeid, stmt.columnString(0), stmt.columnLong(1), stmt.columnLong(2));
             } else {
               return null;
             }
@@ -1143,105 +2624,129 @@ public class FSAnalyzer {
   ///////////////////////////////////////////
   // Get type guesses
   ///////////////////////////////////////////
-  static String typeGuessQueryForFile = "SELECT SchemaGuesses.fid, TypeGuesses.typeid, SchemaGuesses.schemaid FROM TypeGuesses, SchemaGuesses WHERE TypeGuesses.fid = ? AND TypeGuesses.fid = SchemaGuesses.fid";
-  static String typeGuessQueryForSchema = "SELECT SchemaGuesses.fid, TypeGuesses.typeid, SchemaGuesses.schemaid FROM TypeGuesses, SchemaGuesses WHERE SchemaGuesses.schemaid = ? AND TypeGuesses.fid = SchemaGuesses.fid";
-  static String typeGuessQueryForType = "SELECT SchemaGuesses.fid, TypeGuesses.typeid, SchemaGuesses.schemaid FROM TypeGuesses, SchemaGuesses WHERE TypeGuesses.typeid = ? AND TypeGuesses.fid = SchemaGuesses.fid";
   public List<TypeGuessSummary> getTypeGuessesForFile(final long fid) {
-    return getTypeGuesses(typeGuessQueryForFile, fid);
+    return getTypeGuesses(new long[] {fid});
   }
   public List<TypeGuessSummary> getTypeGuessesForSchema(final long schemaid) {
-    return getTypeGuesses(typeGuessQueryForSchema, schemaid);
+    List<TypeGuessSummary> outputList = new ArrayList<TypeGuessSummary>();
+    long[] fids = fileIndex.getFidsForSchema(schemaid);
+    for (int i = 0; i < fids.length; i++) {
+      outputList.add(new TypeGuessSummary(FSAnalyzer.this, fids[i], fileIndex.getTypeId(fids[i]), schemaid));
+    }
+    return outputList;
   }
-  static String countFilesQueryForSchema = "SELECT COUNT(DISTINCT fid) FROM SchemaGuesses WHERE schemaid = ?";
   public long countFilesForSchema(final long schemaid) {
-    return dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare(countFilesQueryForSchema);
+    return fileIndex.countFidsForSchema(schemaid);
+  }
+  /**
+   * <code>getSchemaFileCounts</code> maps each schemaid to the number of files
+   * that carry it, summed over all crawls.
+   */
+  static String schemaFileCountsQuery = "SELECT schemaid, SUM(numfiles) FROM SchemaCounts GROUP BY schemaid";
+  public Map<Long, Long> getSchemaFileCounts() {
+    return dbQueue.execute(new SQLiteJob<Map<Long, Long>>() {
+        protected Map<Long, Long> job(SQLiteConnection db) throws SQLiteException {
+          Map<Long, Long> output = new TreeMap<Long, Long>();
+          SQLiteStatement stmt = db.prepare(schemaFileCountsQuery);
           try {
-            stmt.bind(1, schemaid);
-            if (stmt.step()) {
-              return stmt.columnLong(0);
+            while (stmt.step()) {
+              output.put(stmt.columnLong(0), stmt.columnLong(1));
             }
           } finally {
             stmt.dispose();
           }
-          return -1L;
+          return output;
         }
       }).complete();
   }
   public List<TypeGuessSummary> getTypeGuessesForType(final long typeid) {
-    return getTypeGuesses(typeGuessQueryForType, typeid);
+    return getTypeGuesses(fileIndex.getFidsForType(typeid));
   }
-  List<TypeGuessSummary> getTypeGuesses(final String queryStr, final long idval) {
-    return dbQueue.execute(new SQLiteJob<List<TypeGuessSummary>>() {
-        protected List<TypeGuessSummary> job(SQLiteConnection db) throws SQLiteException {
-          List<TypeGuessSummary> outputList = new ArrayList<TypeGuessSummary>();
-          SQLiteStatement stmt = db.prepare(queryStr);
-          try {
-            stmt.bind(1, idval);
-            while (stmt.step()) {
-              outputList.add(new TypeGuessSummary(FSAnalyzer.this, stmt.columnLong(0), stmt.columnLong(1), stmt.columnLong(2)));
-            }
-          } finally {
-            stmt.dispose();
-          }
-          return outputList;
-        }
-      }).complete();
+  List<TypeGuessSummary> getTypeGuesses(long[] fids) {
+    List<TypeGuessSummary> outputList = new ArrayList<TypeGuessSummary>();
+    for (int i = 0; i < fids.length; i++) {
+      long typeid = fileIndex.getTypeId(fids[i]);
+      long[] schemaids = fileIndex.getSchemaIds(fids[i]);
+      for (int j = 0; j < schemaids.length; j++) {
+        outputList.add(new TypeGuessSummary(FSAnalyzer.this, fids[i], typeid, schemaids[j]));
+      }
+    }
+    return outputList;
   }
 
-  static String precachedTypeSummaryQuery = "SELECT TypeGuesses.fid, Types.typelabel, SchemaGuesses.schemaid, Files.crawlid, Files.fname, Files.owner, Files.groupowner, Files.permissions, Files.size, Files.modified, Files.path FROM SchemaGuesses, TypeGuesses, Files, Types WHERE TypeGuesses.fid = SchemaGuesses.fid AND TypeGuesses.fid = Files.fid AND TypeGuesses.typeid = Types.typeid AND TypeGuesses.typeId = ?";
+  /**
+   * <code>getPrecachedTypeSummary</code> returns a TypeSummary with all of its
+   * type guesses and file rows prefetched.  Files come from the resident FileIndex.
+   */
   public TypeSummary getPrecachedTypeSummary(final long typeid) {
+    final long[] fids = fileIndex.getFidsForType(typeid);
     return dbQueue.execute(new SQLiteJob<TypeSummary>() {
         protected TypeSummary job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare(precachedTypeSummaryQuery);
-          stmt.bind(1, typeid);
-
           TypeSummary ts = null;
+          SQLiteStatement stmt = db.prepare("SELECT typelabel FROM Types WHERE typeid = ?");
           try {
-            List<TypeGuessSummary> tgslist = null;            
-            while (stmt.step()) {
-              int i = 0;
-              long fid = stmt.columnLong(i++);
-              String typelabel = stmt.columnString(i++);
-              long schemaid = stmt.columnLong(i++);
-              long crawlid = stmt.columnLong(i++);
-              String fname = stmt.columnString(i++);
-              String owner = stmt.columnString(i++);
-              String groupowner = stmt.columnString(i++);
-              String permissions = stmt.columnString(i++);
-              long size = stmt.columnLong(i++);
-              String modified = stmt.columnString(i++);
-              String path = stmt.columnString(i++);
-
-              if (ts == null) {
-                ts = new TypeSummary(FSAnalyzer.this, typeid);
-                ts.addCachedData(new TypeSummaryData(typeid, typelabel));
-                tgslist = new ArrayList<TypeGuessSummary>();
+            stmt.bind(1, typeid);
+            if (stmt.step()) {
+              ts = new TypeSummary(FSAnalyzer.this, typeid);
+              ts.addCachedData(new TypeSummaryData(typeid, stmt.columnString(0)));
+            }
+          } finally {
+            stmt.dispose();
+          }
+          if (ts == null || fids.length == 0) {
+            return null;
+          }
+
+          List<TypeGuessSummary> tgslist = new ArrayList<TypeGuessSummary>();
+          try {
+            for (int i = 0; i < fids.length; i++) {
+              FileSummary fs = getPrecachedFileSummary(db, fids[i], true);
+              if (fs != null) {
+                tgslist.addAll(fs.getTypeGuesses());
               }
-              TypeGuessSummary tg = new TypeGuessSummary(FSAnalyzer.this, fid, typeid, schemaid);
-              FileSummary fs = new FileSummary(FSAnalyzer.this, fid);
-              FileSummaryData fsd = new FileSummaryData(FSAnalyzer.this, true, fid, crawlid, fname, owner, groupowner, permissions, size, modified, path);
-              fs.addCachedData(fsd);
-              tg.addCachedData(fs);
-              tgslist.add(tg);
-            }
-            ts.addCachedData(tgslist);
+            }
           } catch (SQLiteException sle) {
             sle.printStackTrace();
-          } finally {
-            stmt.dispose();
           }
+          ts.addCachedData(tgslist);
           return ts;
         }}).complete();
   }
 
+  /**
+   * <code>buildFileIndex</code> loads the resident FileIndex from the store.
+   */
+  void buildFileIndex() {
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare("SELECT fid, crawlid, path, isDir FROM Files");
+          try {
+            while (stmt.step()) {
+              fileIndex.addFile(stmt.columnLong(0), stmt.columnLong(1), stmt.columnString(2), "True".equals(stmt.columnString(3)));
+            }
+          } finally {
+            stmt.dispose();
+          }
+          stmt = db.prepare("SELECT TypeGuesses.fid, TypeGuesses.typeid, SchemaGuesses.schemaid FROM TypeGuesses, SchemaGuesses WHERE TypeGuesses.fid = SchemaGuesses.fid");
+          try {
+            while (stmt.step()) {
+              fileIndex.addGuess(stmt.columnLong(0), stmt.columnLong(1), stmt.columnLong(2));
+            }
+          } finally {
+            stmt.dispose();
+          }
+          return null;
+        }
+      }).complete();
+  }
+
   ////////////////////////////////////////
   // Initialize and close an instance of FSAnalyzer
   ////////////////////////////////////////
   SQLiteConnection db;
   SQLiteQueue dbQueue;
   FormatAnalyzer formatAnalyzer;
+  FileIndex fileIndex = new FileIndex();
   
   /**
    * Inits (and optionally creates) a new <code>FSAnalyzer</code> instance.
@@ -1258,11 +2763,25 @@ public class FSAnalyzer {
     if (isNew) {
       createTables();
     }
+    upgradeTables();
+    buildFileIndex();
+    buildMissingDirTrees();
+    buildMissingTerms();
     this.formatAnalyzer = new FormatAnalyzer(schemaDir);
+    this.writerThread = new Thread("FSAnalyzer writer") {
+        public void run() {
+          runWriter();
+        }
+      };
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
     FSAnalyzer.fsaInstance = this;
   }
 
   public void close() throws IOException, SQLiteException, InterruptedException {
+    flushWrites();
+    writeQueue.put(STOP_WRITER);
+    writerThread.join();
     this.dbQueue.stop(true).join();
   }
 }
\ No newline at end of file
@@ -24,6 +24,8 @@ import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.Hashtable;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
 import java.text.SimpleDateFormat;
 
 import org.apache.hadoop.fs.Path;
@@ -49,6 +51,15 @@ public class FSCrawler {
   
   static SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+  static Comparator<Path> DIRECTORY_ORDER = new Comparator<Path>() {
+    public int compare(Path p1, Path p2) {
+      String dir1 = (p1.getParent() == null) ? "" : p1.getParent().toString();
+      String dir2 = (p2.getParent() == null) ? "" : p2.getParent().toString();
+      int cmp = dir1.compareTo(dir2);
+      return (cmp != 0) ? cmp : p1.getName().compareTo(p2.getName());
+    }
+  };
+
   Hashtable<Long, Thread> pendingCrawls = new Hashtable<Long, Thread>();
   Hashtable<Long, CrawlRuntimeStatus> crawlStatusInfo = new Hashtable<Long, CrawlRuntimeStatus>();
   FSAnalyzer analyzer;
@@ -108,6 +119,7 @@ public class FSCrawler {
       final Path startDir = fs.makeQualified(new Path(fsURI.getPath()));
 
       final long crawlid = analyzer.getCreatePendingCrawl(fsId, true);
+      final boolean isInitialCrawl = analyzer.getLatestCompleteCrawl(fsId) < 0;
       Thread pendingThread = pendingCrawls.get(crawlid);
       if (pendingThread == null) {
         Thread t = new Thread() {
@@ -135,6 +147,9 @@ public class FSCrawler {
                     it.remove();
                   }
                 }
+                // Visit each directory's files together; the analyzer reads
+                // a directory's detection cache entries once
+                Collections.sort(todoFileList, DIRECTORY_ORDER);
 
                 // Get the dirs to process
                 TreeSet<String> observedDirnames = new TreeSet<String>();
@@ -155,6 +170,11 @@ public class FSCrawler {
                   cstatus.setNumDone(0);
                 }
 
+                // The first crawl of a filesystem loads in bulk mode; completeCrawl() ends it
+                if (isInitialCrawl) {
+                  analyzer.beginBulkLoad(crawlid);
+                }
+
                 int numDone = 0;
                 for (Path p: todoDirList) {
                   try {
@@ -191,6 +211,8 @@ public class FSCrawler {
                     analyzer.completeCrawl(crawlid);
                   }
                 } catch (SQLiteException sle) {
+                } catch (IOException iex) {
+                  LOG.error("Crawl " + crawlid + " did not complete: " + iex.toString());
                 }
               }
             }
@@ -288,7 +310,7 @@ public class FSCrawler {
   ////////////////////////////////////////
   public static void main(String argv[]) throws Exception {
     if (argv.length < 4) {
-      System.err.println("Usage: FSCrawler <metadataStoreDir> <schemaDbDir> (--crawl <dir>)");
+      System.err.println("Usage: FSCrawler <metadataStoreDir> <schemaDbDir> (--crawl <dir>) | (--export <crawlid> <snapshotFile>) | (--import <snapshotFile>)");
       return;
     }
     int i = 0;
@@ -303,6 +325,15 @@ public class FSCrawler {
         System.err.println("About to crawl " + crawlTarget);
         FSCrawler crawler = new FSCrawler(fsa);
         crawler.blockingCrawl(new URI("file://" + crawlTarget));
+      } else if ("--export".equals(op)) {
+        long crawlid = Long.parseLong(argv[i++]);
+        File snapshotFile = new File(argv[i++]).getCanonicalFile();
+        long numFiles = new MetadataSnapshot(fsa).exportCrawl(crawlid, snapshotFile);
+        System.err.println("Exported " + numFiles + " files from crawl " + crawlid + " to " + snapshotFile);
+      } else if ("--import".equals(op)) {
+        File snapshotFile = new File(argv[i++]).getCanonicalFile();
+        long crawlid = new MetadataSnapshot(fsa).importCrawl(snapshotFile);
+        System.err.println("Imported " + snapshotFile + " as crawl " + crawlid);
       } else if ("--test".equals(op)) {
         List<SchemaSummary> summaryList = fsa.getSchemaSummaries();
         System.err.println("Schema summary list has " + summaryList.size() + " entries");
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableName;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import org.apache.avro.hadoop.io.AvroSerialization;
+
+/*****************************************************************
+ * <code>FileHead</code> holds the first bytes of a file, read with a
+ * single open the first time a format detector asks for them.
+ * Compressed files are decompressed, so detectors see their contents.
+ * FormatAnalyzer hands the same instance to every detector, so
+ * sniffing a file costs one (possibly remote) open no matter how
+ * many formats are tried.
+ *
+ * Text detectors use <code>getLines()</code>, which splits the buffer
+ * exactly as BufferedReader.readLine() would.  If the buffer stops
+ * short of the end of the file, the trailing partial line is dropped.
+ * A detector that asks for more whole lines than the buffer holds gets
+ * the head read again, twice as large each time, up to MAX_GROWN_BYTES,
+ * so files with very long lines still show it enough of them.
+ *****************************************************************/
+public class FileHead {
+  final static int DEFAULT_MAX_BYTES = 64 * 1024;
+  final static int MAX_GROWN_BYTES = 4 * 1024 * 1024;
+  final static int SEQ_VERSION_WITH_BLOCK_COMPRESS = 4;
+  final static int SEQ_VERSION_WITH_CUSTOM_COMPRESS = 5;
+  final static int SEQ_VERSION_WITH_METADATA = 6;
+  final static int SEQ_SYNC_SIZE = 16;
+  static Configuration conf = new Configuration();
+  static {
+    // AvroSequenceFile keys and values need Avro's serialization to pass the deserializer check
+    AvroSerialization.addToConfiguration(conf);
+  }
+
+  FileSystem fs;
+  Path p;
+  int maxBytes;
+  boolean loaded = false;
+  byte[] bytes;
+  int length;
+  boolean isWholeFile;
+  List<String> lines;
+  boolean seqParsed = false;
+  SequenceFile.Metadata seqMetadata;
+  String seqKeyClassName;
+  String seqValueClassName;
+
+  public FileHead(FileSystem fs, Path p) {
+    this(fs, p, DEFAULT_MAX_BYTES);
+  }
+  public FileHead(FileSystem fs, Path p, int maxBytes) {
+    this.fs = fs;
+    this.p = p;
+    this.maxBytes = maxBytes;
+  }
+
+  synchronized void load() throws IOException {
+    if (loaded) {
+      return;
+    }
+    bytes = new byte[maxBytes];
+    length = 0;
+    InputStream in = CompressedFiles.open(fs, p);
+    try {
+      int numRead = 0;
+      while (length < maxBytes && (numRead = in.read(bytes, length, maxBytes - length)) > 0) {
+        length += numRead;
+      }
+      isWholeFile = (length < maxBytes) || (in.read() < 0);
+    } finally {
+      in.close();
+    }
+    loaded = true;
+  }
+
+  public Path getPath() {
+    return p;
+  }
+
+  /**
+   * The file's name without any compression suffix.
+   */
+  public String getLogicalName() {
+    return CompressedFiles.getLogicalName(p);
+  }
+
+  /**
+   * The raw bytes.  Only the first <code>getLength()</code> are valid.
+   */
+  public byte[] getBytes() throws IOException {
+    load();
+    return bytes;
+  }
+
+  public int getLength() throws IOException {
+    load();
+    return length;
+  }
+
+  /**
+   * True if the buffer holds the entire file.
+   */
+  public boolean isWholeFile() throws IOException {
+    load();
+    return isWholeFile;
+  }
+
+  public InputStream getInputStream() throws IOException {
+    load();
+    return new ByteArrayInputStream(bytes, 0, length);
+  }
+
+  /**
+   * The complete lines of text in the buffer, decoded with the platform charset.
+   */
+  public synchronized List<String> getLines() throws IOException {
+    if (lines == null) {
+      load();
+      List<String> result = new ArrayList<String>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(getInputStream()));
+      String line = null;
+      while ((line = in.readLine()) != null) {
+        result.add(line);
+      }
+      if (! isWholeFile && result.size() > 0 && length > 0 && bytes[length-1] != '\n' && bytes[length-1] != '\r') {
+        result.remove(result.size() - 1);
+      }
+      lines = Collections.unmodifiableList(result);
+    }
+    return lines;
+  }
+
+  /**
+   * The first <code>maxLines</code> lines, or all of them if <code>maxLines</code> is negative.
+   * If the buffer holds fewer whole lines than that, it grows (see above).
+   */
+  public synchronized List<String> getLines(int maxLines) throws IOException {
+    List<String> allLines = getLines();
+    while (maxLines >= 0 && allLines.size() < maxLines && ! isWholeFile && maxBytes < MAX_GROWN_BYTES) {
+      maxBytes = Math.min(2 * maxBytes, MAX_GROWN_BYTES);
+      loaded = false;
+      lines = null;
+      allLines = getLines();
+    }
+    if (maxLines < 0 || maxLines >= allLines.size()) {
+      return allLines;
+    }
+    return allLines.subList(0, maxLines);
+  }
+
+  /**
+   * <code>getSequenceFileMetadata</code> parses a SequenceFile header out of the
+   * buffer, following SequenceFile.Reader's own checks: the magic and version,
+   * loadable key, value and codec classes, and the metadata block.  It returns
+   * null if the file is not a readable SequenceFile.  A header too long for the
+   * buffer, or one older than block compression, falls back to opening a
+   * SequenceFile.Reader.
+   */
+  public synchronized SequenceFile.Metadata getSequenceFileMetadata() {
+    if (! seqParsed) {
+      seqMetadata = parseSequenceFileHeader();
+      seqParsed = true;
+    }
+    return seqMetadata;
+  }
+
+  /**
+   * The SequenceFile's key class name, or null if it is not a readable SequenceFile.
+   */
+  public synchronized String getSequenceFileKeyClassName() {
+    return (getSequenceFileMetadata() == null) ? null : seqKeyClassName;
+  }
+
+  /**
+   * The SequenceFile's value class name, or null if it is not a readable SequenceFile.
+   */
+  public synchronized String getSequenceFileValueClassName() {
+    return (getSequenceFileMetadata() == null) ? null : seqValueClassName;
+  }
+
+  SequenceFile.Metadata parseSequenceFileHeader() {
+    if (CompressedFiles.isCompressed(p)) {
+      // SequenceFile.Reader can't read through an outer codec
+      return null;
+    }
+    try {
+      load();
+      if (length < 4 || bytes[0] != 'S' || bytes[1] != 'E' || bytes[2] != 'Q') {
+        return null;
+      }
+      int version = bytes[3];
+      if (version > SEQ_VERSION_WITH_METADATA) {
+        return null;
+      }
+      if (version < SEQ_VERSION_WITH_BLOCK_COMPRESS) {
+        // Old headers store the class names in the deprecated UTF8 encoding
+        return openSequenceFileMetadata();
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 4, length - 4));
+      String keyClassName = Text.readString(in);
+      String valueClassName = Text.readString(in);
+      boolean decompress = in.readBoolean();
+      in.readBoolean();
+      if (decompress && version >= SEQ_VERSION_WITH_CUSTOM_COMPRESS) {
+        conf.getClassByName(Text.readString(in));
+      }
+      SequenceFile.Metadata metadata = new SequenceFile.Metadata();
+      if (version >= SEQ_VERSION_WITH_METADATA) {
+        metadata.readFields(in);
+      }
+      in.readFully(new byte[SEQ_SYNC_SIZE]);
+
+      SerializationFactory serializationFactory = new SerializationFactory(conf);
+      if (serializationFactory.getDeserializer(WritableName.getClass(keyClassName, conf)) == null ||
+          serializationFactory.getDeserializer(WritableName.getClass(valueClassName, conf)) == null) {
+        return null;
+      }
+      seqKeyClassName = keyClassName;
+      seqValueClassName = valueClassName;
+      return metadata;
+    } catch (EOFException eof) {
+      return isWholeFile ? null : openSequenceFileMetadata();
+    } catch (IOException iex) {
+      return null;
+    } catch (ClassNotFoundException cnfe) {
+      return null;
+    }
+  }
+
+  SequenceFile.Metadata openSequenceFileMetadata() {
+    try {
+      SequenceFile.Reader in = new SequenceFile.Reader(fs, p, conf);
+      try {
+        seqKeyClassName = in.getKeyClassName();
+        seqValueClassName = in.getValueClassName();
+        return in.getMetadata();
+      } finally {
+        in.close();
+      }
+    } catch (IOException iex) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.util.Map;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ArrayList;
+
+/*****************************************************************
+ * <code>FileIndex</code> is a resident, in-memory copy of the
+ * fid -> (typeid, schemaids, crawlid, path) relationships that the
+ * Files, TypeGuesses and SchemaGuesses tables hold.  FSAnalyzer
+ * answers its join-heavy summary queries from here, and only goes
+ * to SQLite for per-file rows by primary key.
+ *
+ * Fids are dense autoincrement keys, so every attribute lives in a
+ * primitive array indexed directly by fid.  Directory paths are
+ * interned to small integer ids.  Paths, typeids and schemaids each
+ * have an int posting list of their fids, so lookups by any of them
+ * touch only the matching files.  SQLite remains the durable copy;
+ * the index is rebuilt from it at startup.
+ *****************************************************************/
+class FileIndex {
+  // SQLite autoincrement ids start at 1, so 0 means "none"
+  static final int NO_ID = 0;
+  static final long[] EMPTY = new long[0];
+
+  /**
+   * A growable list of ints, so posting lists don't box each fid.  Fids
+   * usually arrive in increasing order; if one doesn't, the list is sorted
+   * the next time it's read.
+   */
+  static class IntList {
+    int[] data = new int[4];
+    int size = 0;
+    boolean sorted = true;
+    void add(int x) {
+      if (size == data.length) {
+        int[] newData = new int[size * 2];
+        System.arraycopy(data, 0, newData, 0, size);
+        data = newData;
+      }
+      if (size > 0 && x < data[size-1]) {
+        sorted = false;
+      }
+      data[size++] = x;
+    }
+    void sort() {
+      if (! sorted) {
+        Arrays.sort(data, 0, size);
+        sorted = true;
+      }
+    }
+  }
+
+  int[] crawlIds;
+  int[] pathIds;
+  int[] typeIds;
+  int[] schemaIds;
+  int[][] extraSchemaIds;
+  boolean[] isDir;
+  boolean[] present;
+
+  Map<String, Integer> pathIdMap = new HashMap<String, Integer>();
+  List<IntList> fidsByPath = new ArrayList<IntList>();
+  List<IntList> fidsByType = new ArrayList<IntList>();
+  List<IntList> fidsBySchema = new ArrayList<IntList>();
+  Map<Integer, int[]> fidRangeByCrawl = new HashMap<Integer, int[]>();
+
+  public FileIndex() {
+    allocate(1024);
+  }
+
+  void allocate(int capacity) {
+    crawlIds = grow(crawlIds, capacity);
+    pathIds = grow(pathIds, capacity);
+    typeIds = grow(typeIds, capacity);
+    schemaIds = grow(schemaIds, capacity);
+    int[][] newExtras = new int[capacity][];
+    boolean[] newIsDir = new boolean[capacity];
+    boolean[] newPresent = new boolean[capacity];
+    if (present != null) {
+      System.arraycopy(extraSchemaIds, 0, newExtras, 0, extraSchemaIds.length);
+      System.arraycopy(isDir, 0, newIsDir, 0, isDir.length);
+      System.arraycopy(present, 0, newPresent, 0, present.length);
+    }
+    extraSchemaIds = newExtras;
+    isDir = newIsDir;
+    present = newPresent;
+  }
+
+  static int[] grow(int[] old, int capacity) {
+    int[] result = new int[capacity];
+    if (old != null) {
+      System.arraycopy(old, 0, result, 0, old.length);
+    }
+    return result;
+  }
+
+  void ensureCapacity(int fid) {
+    if (fid >= present.length) {
+      int capacity = present.length;
+      while (capacity <= fid) {
+        capacity *= 2;
+      }
+      allocate(capacity);
+    }
+  }
+
+  int internPath(String path) {
+    Integer pathId = pathIdMap.get(path);
+    if (pathId == null) {
+      pathId = fidsByPath.size();
+      pathIdMap.put(path, pathId);
+      fidsByPath.add(new IntList());
+    }
+    return pathId;
+  }
+
+  /**
+   * The posting list for <code>id</code>, created if needed.  Typeids and
+   * schemaids are dense autoincrement keys, so the lists are indexed by id.
+   */
+  static IntList getPostings(List<IntList> postings, int id) {
+    while (postings.size() <= id) {
+      postings.add(null);
+    }
+    IntList fids = postings.get(id);
+    if (fids == null) {
+      fids = new IntList();
+      postings.set(id, fids);
+    }
+    return fids;
+  }
+
+  ///////////////////////////////////////////////////
+  // Updates
+  ///////////////////////////////////////////////////
+  /**
+   * <code>addFile</code> records a row of the Files table.
+   */
+  public synchronized void addFile(long fid, long crawlid, String path, boolean fileIsDir) {
+    int f = (int) fid;
+    ensureCapacity(f);
+    int pathId = internPath(path);
+    crawlIds[f] = (int) crawlid;
+    pathIds[f] = pathId;
+    int[] range = fidRangeByCrawl.get((int) crawlid);
+    if (range == null) {
+      fidRangeByCrawl.put((int) crawlid, new int[] {f, f});
+    } else {
+      range[0] = Math.min(range[0], f);
+      range[1] = Math.max(range[1], f);
+    }
+    isDir[f] = fileIsDir;
+    if (! present[f]) {
+      present[f] = true;
+      fidsByPath.get(pathId).add(f);
+    }
+  }
+
+  /**
+   * <code>addGuess</code> records a (file, type, schema) triple.  A file has a
+   * single type but may carry several schemas.
+   */
+  public synchronized void addGuess(long fid, long typeid, long schemaid) {
+    int f = (int) fid;
+    int s = (int) schemaid;
+    ensureCapacity(f);
+    if (typeIds[f] == NO_ID) {
+      typeIds[f] = (int) typeid;
+      getPostings(fidsByType, (int) typeid).add(f);
+    }
+    if (schemaIds[f] == NO_ID) {
+      schemaIds[f] = s;
+      getPostings(fidsBySchema, s).add(f);
+    } else if (schemaIds[f] != s) {
+      int[] extras = extraSchemaIds[f];
+      if (extras == null) {
+        extraSchemaIds[f] = new int[] {s};
+      } else {
+        for (int i = 0; i < extras.length; i++) {
+          if (extras[i] == s) {
+            return;
+          }
+        }
+        int[] newExtras = new int[extras.length + 1];
+        System.arraycopy(extras, 0, newExtras, 0, extras.length);
+        newExtras[extras.length] = s;
+        extraSchemaIds[f] = newExtras;
+      }
+      getPostings(fidsBySchema, s).add(f);
+    }
+  }
+
+  /**
+   * <code>removeCrawl</code> forgets every file of a crawl.
+   */
+  public synchronized void removeCrawl(long crawlid) {
+    boolean[] removed = new boolean[present.length];
+    int numRemoved = 0;
+    for (int f = 0; f < present.length; f++) {
+      if (present[f] && crawlIds[f] == crawlid) {
+        removed[f] = true;
+        present[f] = false;
+        typeIds[f] = NO_ID;
+        schemaIds[f] = NO_ID;
+        extraSchemaIds[f] = null;
+        numRemoved++;
+      }
+    }
+    fidRangeByCrawl.remove((int) crawlid);
+    if (numRemoved > 0) {
+      removeAll(fidsByPath, removed);
+      removeAll(fidsByType, removed);
+      removeAll(fidsBySchema, removed);
+    }
+  }
+
+  static void removeAll(List<IntList> postings, boolean[] removed) {
+    for (IntList fids: postings) {
+      if (fids != null) {
+        int numKept = 0;
+        for (int i = 0; i < fids.size; i++) {
+          if (! removed[fids.data[i]]) {
+            fids.data[numKept++] = fids.data[i];
+          }
+        }
+        fids.size = numKept;
+      }
+    }
+  }
+
+  ///////////////////////////////////////////////////
+  // Lookups
+  ///////////////////////////////////////////////////
+  boolean hasGuesses(int f) {
+    return f < present.length && typeIds[f] != NO_ID;
+  }
+
+  public synchronized long getCrawlId(long fid) {
+    int f = (int) fid;
+    return (f < present.length && present[f]) ? crawlIds[f] : -1L;
+  }
+
+  /**
+   * <code>getFidRange</code> returns the lowest and highest fid of a crawl, or
+   * null if it has no files.  Other crawls' fids may fall inside the range.
+   */
+  public synchronized long[] getFidRange(long crawlid) {
+    int[] range = fidRangeByCrawl.get((int) crawlid);
+    return (range == null) ? null : new long[] {range[0], range[1]};
+  }
+
+  public synchronized long getTypeId(long fid) {
+    int f = (int) fid;
+    return hasGuesses(f) ? typeIds[f] : -1L;
+  }
+
+  public synchronized long[] getSchemaIds(long fid) {
+    int f = (int) fid;
+    if (! hasGuesses(f)) {
+      return EMPTY;
+    }
+    int[] extras = extraSchemaIds[f];
+    long[] result = new long[1 + (extras == null ? 0 : extras.length)];
+    result[0] = schemaIds[f];
+    for (int i = 1; i < result.length; i++) {
+      result[i] = extras[i-1];
+    }
+    return result;
+  }
+
+  /**
+   * Fids with guesses, in fid order.  If <code>path</code> is null, every
+   * matching file in the store is returned; otherwise only those whose
+   * parent directory is exactly <code>path</code>.
+   */
+  public synchronized long[] getGuessedFidsInDir(String path, boolean dirsOnly) {
+    IntList out = new IntList();
+    if (path == null) {
+      for (int f = 0; f < present.length; f++) {
+        if (present[f] && isDir[f] == dirsOnly && hasGuesses(f)) {
+          out.add(f);
+        }
+      }
+    } else {
+      Integer pathId = pathIdMap.get(path);
+      if (pathId != null) {
+        IntList fids = fidsByPath.get(pathId);
+        for (int i = 0; i < fids.size; i++) {
+          int f = fids.data[i];
+          if (isDir[f] == dirsOnly && hasGuesses(f)) {
+            out.add(f);
+          }
+        }
+      }
+    }
+    return toLongs(out);
+  }
+
+  /**
+   * Fids guessed to have the given type or schema, in fid order.
+   */
+  public synchronized long[] getFidsForType(long typeid) {
+    return toLongs(lookup(fidsByType, typeid));
+  }
+
+  public synchronized long[] getFidsForSchema(long schemaid) {
+    return toLongs(lookup(fidsBySchema, schemaid));
+  }
+
+  public synchronized int countFidsForSchema(long schemaid) {
+    IntList fids = lookup(fidsBySchema, schemaid);
+    return fids == null ? 0 : fids.size;
+  }
+
+  static IntList lookup(List<IntList> postings, long id) {
+    return (id >= 0 && id < postings.size()) ? postings.get((int) id) : null;
+  }
+
+  /**
+   * <code>getFidsBySchema</code> returns every schema's fids, ordered by
+   * schemaid and fids within a schema by fid.
+   */
+  public synchronized Map<Long, long[]> getFidsBySchema() {
+    Map<Long, long[]> result = new TreeMap<Long, long[]>();
+    for (int s = 0; s < fidsBySchema.size(); s++) {
+      IntList fids = fidsBySchema.get(s);
+      if (fids != null && fids.size > 0) {
+        result.put((long) s, toLongs(fids));
+      }
+    }
+    return result;
+  }
+
+  static long[] toLongs(IntList list) {
+    if (list == null) {
+      return EMPTY;
+    }
+    list.sort();
+    long[] result = new long[list.size];
+    for (int i = 0; i < list.size; i++) {
+      result[i] = list.data[i];
+    }
+    return result;
+  }
+}
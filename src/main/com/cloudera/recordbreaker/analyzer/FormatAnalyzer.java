@@ -16,8 +16,18 @@ package com.cloudera.recordbreaker.analyzer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 import java.util.List;
 import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.ServiceLoader;
+import java.util.ServiceConfigurationError;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
@@ -42,57 +52,149 @@ import org.apache.avro.generic.GenericData;
 public class FormatAnalyzer {
   private static final Log LOG = LogFactory.getLog(FormatAnalyzer.class);    
   final static int MAX_ANALYSIS_LINES = 400;
+  final static int MAX_REMEMBERED_DIRS = 1024;
   File schemaDbDir;
+  List<FormatDetector> detectors;
+  String detectorFingerprint;
+  Map<String, FormatDetector> lastMatchByDir;
   
   /**
    * Creates a new <code>FormatAnalyzer</code> instance.
    */
   public FormatAnalyzer(File schemaDbDir) {
     this.schemaDbDir = schemaDbDir;
+    this.detectors = loadDetectors();
+    this.detectorFingerprint = fingerprintDetectors(detectors);
+    this.lastMatchByDir = new LinkedHashMap<String, FormatDetector>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, FormatDetector> eldest) {
+        return size() > MAX_REMEMBERED_DIRS;
+      }
+    };
+  }
+
+  /**
+   * Load the FormatDetectors listed in META-INF/services, cheapest first.
+   * Detectors of equal cost keep their listed order.
+   */
+  static List<FormatDetector> loadDetectors() {
+    List<FormatDetector> detectors = new ArrayList<FormatDetector>();
+    try {
+      for (FormatDetector detector: ServiceLoader.load(FormatDetector.class, FormatAnalyzer.class.getClassLoader())) {
+        detectors.add(detector);
+      }
+    } catch (ServiceConfigurationError sce) {
+      LOG.error("Could not load format detectors", sce);
+    }
+    Collections.sort(detectors, new Comparator<FormatDetector>() {
+        public int compare(FormatDetector d1, FormatDetector d2) {
+          return d1.getCost() - d2.getCost();
+        }
+      });
+    return detectors;
+  }
+
+  /**
+   * <code>fingerprintDetectors</code> digests each detector's class,
+   * implementation version, cost and confidence.  Adding, removing or
+   * upgrading a detector changes the fingerprint.
+   */
+  static String fingerprintDetectors(List<FormatDetector> detectors) {
+    StringBuffer buf = new StringBuffer();
+    for (FormatDetector detector: detectors) {
+      Package pkg = detector.getClass().getPackage();
+      buf.append(detector.getClass().getName());
+      buf.append("/" + ((pkg == null) ? null : pkg.getImplementationVersion()));
+      buf.append("/" + detector.getCost() + "/" + detector.getConfidence() + ";");
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(buf.toString().getBytes("UTF-8"));
+      StringBuffer hex = new StringBuffer();
+      for (int i = 0; i < digest.length; i++) {
+        hex.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException nsae) {
+      return Integer.toHexString(buf.toString().hashCode());
+    } catch (UnsupportedEncodingException uee) {
+      return Integer.toHexString(buf.toString().hashCode());
+    }
+  }
+
+  /**
+   * Identifies the installed detector set.  Cached detection results made
+   * under a different fingerprint must be redone.
+   */
+  public String getDetectorFingerprint() {
+    return detectorFingerprint;
+  }
+
+  /**
+   * The detectors to try for a file in the given directory.  Files in one
+   * directory tend to share a format, so whichever detector last made a
+   * confident match there goes first.
+   */
+  List<FormatDetector> getDetectorOrder(String dirKey) {
+    FormatDetector lastMatch;
+    synchronized (lastMatchByDir) {
+      lastMatch = lastMatchByDir.get(dirKey);
+    }
+    if (lastMatch == null || lastMatch == detectors.get(0)) {
+      return detectors;
+    }
+    List<FormatDetector> order = new ArrayList<FormatDetector>(detectors.size());
+    order.add(lastMatch);
+    for (FormatDetector detector: detectors) {
+      if (detector != lastMatch) {
+        order.add(detector);
+      }
+    }
+    return order;
   }
 
   /**
    * Create a file-appropriate DataDescriptor instance.
    *
-   * Right now we just use the file ending to figure out what to do,
-   * but this will become unsatisfactory pretty quickly.
+   * Detectors run cheapest first, and the first confident match wins.
+   * If no detector is confident, the best weaker match is used; if
+   * there is none, the file is unstructured.
    *
    * @param f a <code>File</code> value
    * @return a <code>DataDescriptor</code> value
    */
   public DataDescriptor describeData(FileSystem fs, Path p) throws IOException {
-    FileStatus fstatus = fs.getFileStatus(p);
-    String fname = p.getName();
+    String dirKey = (p.getParent() == null) ? "" : p.getParent().toString();
 
-    // Test to see if the file is one of a handful of known structured formats.
-    if (CSVDataDescriptor.isCSV(fs, p)) {
-      return new CSVDataDescriptor(p, fs);
-    } else if (fname.endsWith(".xml")) {
-      return new XMLDataDescriptor(p, fs);
-    } else if (fname.endsWith(".avro")) {
-      return new AvroDataDescriptor(p, fs);
-    } else if (AvroSequenceFileDataDescriptor.isAvroSequenceFile(fs, p)) {
-      return new AvroSequenceFileDataDescriptor(p, fs);
-    } else if (SequenceFileDataDescriptor.isSequenceFile(fs, p)) {
-      return new SequenceFileDataDescriptor(p, fs);
-    } else if (ApacheDataDescriptor.isApacheLogFile(fs, p)) {
-      return new ApacheDataDescriptor(p, fs);
-    } else if (SyslogDataDescriptor.isSyslogFile(fs, p)) {
-      return new SyslogDataDescriptor(p, fs);      
-    } else {
-      // It's not one of the known formats, so apply LearnStructure 
-      // to obtain the structure.
-      if (UnknownTextDataDescriptor.isTextData(fs, p)) {
-        try {
-          return new UnknownTextDataDescriptor(fs, p, schemaDbDir);
-        } catch (Exception iex) {
-          //iex.printStackTrace();
+    // Every detector shares one bounded read of the file's head.  It is
+    // only performed if a detector actually needs the contents.
+    FileHead head = new FileHead(fs, p);
+
+    FormatDetector bestWeakMatch = null;
+    for (FormatDetector detector: getDetectorOrder(dirKey)) {
+      if (detector.getConfidence() >= FormatDetector.CONFIDENT) {
+        if (detector.matches(head)) {
+          DataDescriptor descriptor = detector.describe(fs, p, schemaDbDir);
+          if (descriptor != null) {
+            synchronized (lastMatchByDir) {
+              lastMatchByDir.put(dirKey, detector);
+            }
+            return descriptor;
+          }
+        }
+      } else if (bestWeakMatch == null || detector.getConfidence() > bestWeakMatch.getConfidence()) {
+        if (detector.matches(head)) {
+          bestWeakMatch = detector;
         }
       }
-      // If that doesn't work, then give up and call it unstructured.  You
-      // can't run queries on data in this format.
-      return new UnstructuredFileDescriptor(fs, p);
     }
+    if (bestWeakMatch != null) {
+      DataDescriptor descriptor = bestWeakMatch.describe(fs, p, schemaDbDir);
+      if (descriptor != null) {
+        return descriptor;
+      }
+    }
+    // If that doesn't work, then give up and call it unstructured.  You
+    // can't run queries on data in this format.
+    return new UnstructuredFileDescriptor(fs, p);
   }
 
   public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, String identifier, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
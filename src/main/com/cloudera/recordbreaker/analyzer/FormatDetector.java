@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+
+/*****************************************************************
+ * A <code>FormatDetector</code> recognizes one file format and builds
+ * its DataDescriptor.  FormatAnalyzer discovers detectors with
+ * java.util.ServiceLoader, so a new format can be added by listing
+ * its detector in META-INF/services/
+ * com.cloudera.recordbreaker.analyzer.FormatDetector.
+ *
+ * Detectors are tried in increasing order of <code>getCost()</code>.
+ * A match whose <code>getConfidence()</code> is at least CONFIDENT
+ * ends the search; a weaker match is only used if nothing better
+ * turns up.
+ *****************************************************************/
+public interface FormatDetector {
+  /**
+   * Relative costs of the usual kinds of test.
+   */
+  public final static int COST_FILENAME = 0;
+  public final static int COST_MAGIC = 10;
+  public final static int COST_HEADER = 20;
+  public final static int COST_TEXT_SAMPLE = 30;
+  public final static int COST_REGEXP = 50;
+  public final static int COST_PARSE = 80;
+
+  public final static double CONFIDENT = 0.9;
+
+  /**
+   * The type identifier of the descriptors this detector builds.
+   */
+  public String getFileTypeIdentifier();
+
+  public int getCost();
+
+  /**
+   * How likely a file that <code>matches()</code> really is in this format, from 0 to 1.
+   */
+  public double getConfidence();
+
+  /**
+   * Test the file, using only its name and the shared head buffer.
+   */
+  public boolean matches(FileHead head) throws IOException;
+
+  /**
+   * Build the descriptor for a matching file.  Returns null if the
+   * file turns out not to be describable after all.
+   */
+  public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) throws IOException;
+}
@@ -36,6 +36,8 @@ import org.apache.commons.logging.LogFactory;
 
 import au.com.bytecode.opencsv.CSVParser;
 
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
 /*****************************************************************
  * Describe class <code>GenericDataDescriptor</code> here.
  *
@@ -81,7 +83,10 @@ public abstract class GenericDataDescriptor implements DataDescriptor {
     return schemas;
   }
   public InputStream getRawBytes() throws IOException {
-    return fs.open(p);
+    return CompressedFiles.open(fs, p);
+  }
+  public List<String> getSampleLines(int maxLines) throws IOException {
+    return LineSampler.sample(fs, p, maxLines);
   }
 
   //////////////////////////
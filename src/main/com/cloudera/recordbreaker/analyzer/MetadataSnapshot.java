@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.HashMap;
+import java.util.ArrayList;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.almworks.sqlite4java.SQLiteJob;
+import com.almworks.sqlite4java.SQLiteStatement;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteConnection;
+
+/*****************************************************************
+ * <code>MetadataSnapshot</code> exports a single crawl's metadata
+ * (files, types, schemas with their payloads, and guesses) to an
+ * Avro container file, and imports such a file into another store.
+ * It lets a new FishEye instance be seeded without re-crawling.
+ *
+ * The file holds a stream of <code>SnapshotEntry</code> records, each
+ * wrapping one of four kinds: a single crawl header, then types, then
+ * schemas, then files.  A file entry carries its own type and schema
+ * ids, so guesses need no separate records.  Ids in the snapshot are
+ * those of the exporting store; import remaps them.
+ *****************************************************************/
+public class MetadataSnapshot {
+  private static final Log LOG = LogFactory.getLog(MetadataSnapshot.class);
+  static int IMPORT_BATCH = 8192;
+
+  static String SNAPSHOT_SCHEMA_JSON =
+    "{\"type\": \"record\", \"name\": \"SnapshotEntry\", \"namespace\": \"com.cloudera.recordbreaker.snapshot\", \"fields\": [" +
+    "  {\"name\": \"entry\", \"type\": [" +
+    "    {\"type\": \"record\", \"name\": \"CrawlEntry\", \"fields\": [" +
+    "      {\"name\": \"fsname\", \"type\": \"string\"}," +
+    "      {\"name\": \"started\", \"type\": \"string\"}," +
+    "      {\"name\": \"finished\", \"type\": \"string\"}]}," +
+    "    {\"type\": \"record\", \"name\": \"TypeEntry\", \"fields\": [" +
+    "      {\"name\": \"typeid\", \"type\": \"long\"}," +
+    "      {\"name\": \"label\", \"type\": \"string\"}]}," +
+    "    {\"type\": \"record\", \"name\": \"SchemaEntry\", \"fields\": [" +
+    "      {\"name\": \"schemaid\", \"type\": \"long\"}," +
+    "      {\"name\": \"repr\", \"type\": \"string\"}," +
+    "      {\"name\": \"desc\", \"type\": \"string\"}," +
+    "      {\"name\": \"payload\", \"type\": \"bytes\"}]}," +
+    "    {\"type\": \"record\", \"name\": \"FileEntry\", \"fields\": [" +
+    "      {\"name\": \"fid\", \"type\": \"long\"}," +
+    "      {\"name\": \"isDir\", \"type\": \"boolean\"}," +
+    "      {\"name\": \"fname\", \"type\": \"string\"}," +
+    "      {\"name\": \"owner\", \"type\": \"string\"}," +
+    "      {\"name\": \"group\", \"type\": \"string\"}," +
+    "      {\"name\": \"permissions\", \"type\": \"string\"}," +
+    "      {\"name\": \"size\", \"type\": \"long\"}," +
+    "      {\"name\": \"modified\", \"type\": \"string\"}," +
+    "      {\"name\": \"path\", \"type\": \"string\"}," +
+    "      {\"name\": \"typeid\", \"type\": \"long\"}," +
+    "      {\"name\": \"schemaids\", \"type\": {\"type\": \"array\", \"items\": \"long\"}}]}" +
+    "  ]}]}";
+  static Schema SNAPSHOT_SCHEMA = new Schema.Parser().parse(SNAPSHOT_SCHEMA_JSON);
+  static Schema ENTRY_SCHEMA = SNAPSHOT_SCHEMA.getField("entry").schema();
+  static Schema CRAWL_SCHEMA = ENTRY_SCHEMA.getTypes().get(0);
+  static Schema TYPE_SCHEMA = ENTRY_SCHEMA.getTypes().get(1);
+  static Schema SCHEMA_SCHEMA = ENTRY_SCHEMA.getTypes().get(2);
+  static Schema FILE_SCHEMA = ENTRY_SCHEMA.getTypes().get(3);
+
+  FSAnalyzer analyzer;
+
+  // Per-import state, keyed by the ids assigned in this store
+  Map<Long, String> typeLabels = new HashMap<Long, String>();
+  Map<Long, Set<String>> schemaTerms = new HashMap<Long, Set<String>>();
+
+  public MetadataSnapshot(FSAnalyzer analyzer) {
+    this.analyzer = analyzer;
+  }
+
+  static String str(String s) {
+    return s == null ? "" : s;
+  }
+
+  static IOException wrapError(String msg, Throwable cause) {
+    IOException iex = new IOException(msg);
+    iex.initCause(cause);
+    return iex;
+  }
+
+  ///////////////////////////////////////////////////
+  // Export
+  ///////////////////////////////////////////////////
+  /**
+   * <code>exportCrawl</code> writes the given crawl to a deflate-compressed
+   * Avro container file.  It returns the number of files written.  The export
+   * runs as a single job, so it sees a consistent view of the store.
+   */
+  public long exportCrawl(final long crawlid, final File outFile) throws IOException {
+    SQLiteJob<Long> exportJob = analyzer.dbQueue.execute(new SQLiteJob<Long>() {
+        protected Long job(SQLiteConnection db) throws SQLiteException, IOException {
+          DataFileWriter<GenericRecord> out = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(SNAPSHOT_SCHEMA));
+          out.setCodec(CodecFactory.deflateCodec(6));
+          out.create(SNAPSHOT_SCHEMA, outFile);
+          try {
+            // 1.  Crawl header
+            SQLiteStatement stmt = db.prepare("SELECT Filesystems.fsname, Crawls.crawlstarted, Crawls.crawlfinished FROM Crawls, Filesystems WHERE Crawls.crawlid = ? AND Filesystems.fsid = Crawls.fsid");
+            try {
+              stmt.bind(1, crawlid);
+              if (! stmt.step()) {
+                throw new IOException("No such crawl: " + crawlid);
+              }
+              GenericData.Record crawl = new GenericData.Record(CRAWL_SCHEMA);
+              crawl.put("fsname", str(stmt.columnString(0)));
+              crawl.put("started", str(stmt.columnString(1)));
+              crawl.put("finished", str(stmt.columnString(2)));
+              out.append(wrap(crawl));
+            } finally {
+              stmt.dispose();
+            }
+
+            // 2.  Types.  The table is small, so all of it goes along.
+            stmt = db.prepare("SELECT typeid, typelabel FROM Types");
+            try {
+              while (stmt.step()) {
+                GenericData.Record type = new GenericData.Record(TYPE_SCHEMA);
+                type.put("typeid", stmt.columnLong(0));
+                type.put("label", stmt.columnString(1));
+                out.append(wrap(type));
+              }
+            } finally {
+              stmt.dispose();
+            }
+
+            // 3.  Schemas used by this crawl.  Payloads are copied as stored.
+            Set<Long> schemaIds = new TreeSet<Long>();
+            stmt = db.prepare("SELECT fid FROM Files WHERE crawlid = ?");
+            try {
+              stmt.bind(1, crawlid);
+              while (stmt.step()) {
+                long[] fileSchemaIds = analyzer.fileIndex.getSchemaIds(stmt.columnLong(0));
+                for (int i = 0; i < fileSchemaIds.length; i++) {
+                  schemaIds.add(fileSchemaIds[i]);
+                }
+              }
+            } finally {
+              stmt.dispose();
+            }
+            stmt = db.prepare("SELECT schemarepr, schemasrcdescription, schemapayload FROM Schemas WHERE schemaid = ?");
+            try {
+              for (Long schemaId: schemaIds) {
+                stmt.bind(1, schemaId);
+                if (stmt.step()) {
+                  byte[] payload = stmt.columnBlob(2);
+                  GenericData.Record schema = new GenericData.Record(SCHEMA_SCHEMA);
+                  schema.put("schemaid", schemaId);
+                  schema.put("repr", str(stmt.columnString(0)));
+                  schema.put("desc", str(stmt.columnString(1)));
+                  schema.put("payload", ByteBuffer.wrap(payload == null ? new byte[0] : payload));
+                  out.append(wrap(schema));
+                }
+                stmt.reset();
+              }
+            } finally {
+              stmt.dispose();
+            }
+
+            // 4.  Files, with their guesses
+            long numFiles = 0;
+            stmt = db.prepare("SELECT fid, isDir, fname, owner, groupowner, permissions, size, modified, path FROM Files WHERE crawlid = ?");
+            try {
+              stmt.bind(1, crawlid);
+              while (stmt.step()) {
+                long fid = stmt.columnLong(0);
+                GenericData.Record file = new GenericData.Record(FILE_SCHEMA);
+                file.put("fid", fid);
+                file.put("isDir", "True".equals(stmt.columnString(1)));
+                file.put("fname", str(stmt.columnString(2)));
+                file.put("owner", str(stmt.columnString(3)));
+                file.put("group", str(stmt.columnString(4)));
+                file.put("permissions", str(stmt.columnString(5)));
+                file.put("size", stmt.columnLong(6));
+                file.put("modified", str(stmt.columnString(7)));
+                file.put("path", str(stmt.columnString(8)));
+                file.put("typeid", analyzer.fileIndex.getTypeId(fid));
+                List<Long> fileSchemaIds = new ArrayList<Long>();
+                long[] ids = analyzer.fileIndex.getSchemaIds(fid);
+                for (int i = 0; i < ids.length; i++) {
+                  fileSchemaIds.add(ids[i]);
+                }
+                file.put("schemaids", fileSchemaIds);
+                out.append(wrap(file));
+                numFiles++;
+              }
+            } finally {
+              stmt.dispose();
+            }
+            return numFiles;
+          } finally {
+            out.close();
+          }
+        }
+      });
+    Long numFiles = exportJob.complete();
+    if (numFiles == null) {
+      throw wrapError("Could not export crawl " + crawlid + " to " + outFile, exportJob.getError());
+    }
+    LOG.info("Exported " + numFiles + " files from crawl " + crawlid + " to " + outFile);
+    return numFiles;
+  }
+
+  static GenericData.Record wrap(GenericData.Record entry) {
+    GenericData.Record result = new GenericData.Record(SNAPSHOT_SCHEMA);
+    result.put("entry", entry);
+    return result;
+  }
+
+  ///////////////////////////////////////////////////
+  // Import
+  ///////////////////////////////////////////////////
+  /**
+   * <code>importCrawl</code> loads a snapshot as a new, completed crawl of the
+   * snapshot's filesystem and returns its crawlid.  Types and schemas are
+   * matched against the ones already in the store.  The load runs in bulk
+   * mode, in large transactions.
+   */
+  public long importCrawl(File inFile) throws IOException {
+    DataFileReader<GenericRecord> in = new DataFileReader<GenericRecord>(inFile, new GenericDatumReader<GenericRecord>(SNAPSHOT_SCHEMA));
+    try {
+      if (! in.hasNext()) {
+        throw new IOException("Empty snapshot: " + inFile);
+      }
+      GenericRecord crawl = (GenericRecord) in.next().get("entry");
+      if (! CRAWL_SCHEMA.getFullName().equals(crawl.getSchema().getFullName())) {
+        throw new IOException("Snapshot " + inFile + " does not start with a crawl header");
+      }
+      final String started = crawl.get("started").toString();
+      final String finished = crawl.get("finished").toString();
+      long fsid;
+      try {
+        fsid = analyzer.getCreateFilesystem(new URI(crawl.get("fsname").toString()), true);
+      } catch (URISyntaxException use) {
+        throw wrapError("Bad filesystem name in snapshot " + inFile, use);
+      }
+      if (analyzer.getCreatePendingCrawl(fsid, false) >= 0) {
+        throw new IOException("A crawl of " + crawl.get("fsname") + " is in progress; not importing");
+      }
+      final long crawlid = insertPendingCrawl(fsid, started);
+
+      // A failed import removes whatever it stored, so it doesn't leave a
+      // pending crawl behind that would block the next attempt
+      boolean imported = false;
+      analyzer.beginBulkLoad(crawlid);
+      try {
+        Map<Long, Long> typeMap = new HashMap<Long, Long>();
+        Map<Long, Long> schemaMap = new HashMap<Long, Long>();
+        List<GenericRecord> batch = new ArrayList<GenericRecord>();
+        long numFiles = 0;
+        while (in.hasNext()) {
+          batch.add((GenericRecord) in.next().get("entry"));
+          if (batch.size() >= IMPORT_BATCH) {
+            numFiles += importBatch(crawlid, batch, typeMap, schemaMap);
+            batch.clear();
+          }
+        }
+        numFiles += importBatch(crawlid, batch, typeMap, schemaMap);
+
+        // Builds the directory tree and diff, and ends the bulk load
+        try {
+          analyzer.completeCrawl(crawlid);
+        } catch (SQLiteException sqe) {
+          throw wrapError("Could not complete imported crawl " + crawlid, sqe);
+        }
+        restoreFinishedDate(crawlid, finished);
+        imported = true;
+        LOG.info("Imported " + numFiles + " files from " + inFile + " as crawl " + crawlid);
+        return crawlid;
+      } finally {
+        analyzer.endBulkLoad(crawlid);
+        if (! imported) {
+          try {
+            analyzer.deleteCrawl(crawlid);
+          } catch (IOException iex) {
+            LOG.error("Could not remove partially imported crawl " + crawlid + ": " + iex.toString());
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  long insertPendingCrawl(final long fsid, final String started) {
+    return analyzer.dbQueue.execute(new SQLiteJob<Long>() {
+        protected Long job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare("INSERT into Crawls VALUES(null, ?, ?, 'True', ?)");
+          try {
+            stmt.bind(1, started).bind(2, started).bind(3, fsid);
+            stmt.step();
+            return db.getLastInsertId();
+          } finally {
+            stmt.dispose();
+          }
+        }
+      }).complete();
+  }
+
+  void restoreFinishedDate(final long crawlid, final String finished) {
+    analyzer.dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare("UPDATE Crawls SET crawlfinished = ? WHERE crawlid = ?");
+          try {
+            stmt.bind(1, finished).bind(2, crawlid);
+            stmt.step();
+          } finally {
+            stmt.dispose();
+          }
+          return null;
+        }
+      }).complete();
+  }
+
+  /**
+   * An imported file's entry for the resident index, held until its batch commits.
+   */
+  static class IndexUpdate {
+    long fid;
+    String path;
+    boolean isDir;
+    List<Long> typeGuesses;
+    IndexUpdate(long fid, String path, boolean isDir, List<Long> typeGuesses) {
+      this.fid = fid;
+      this.path = path;
+      this.isDir = isDir;
+      this.typeGuesses = typeGuesses;
+    }
+  }
+
+  /**
+   * <code>importBatch</code> stores a run of snapshot entries in one
+   * transaction, and updates the resident index once it commits.
+   */
+  long importBatch(final long crawlid, final List<GenericRecord> batch, final Map<Long, Long> typeMap, final Map<Long, Long> schemaMap) throws IOException {
+    final List<IndexUpdate> indexUpdates = new ArrayList<IndexUpdate>();
+    SQLiteJob<Long> importJob = analyzer.dbQueue.execute(new SQLiteJob<Long>() {
+        protected Long job(SQLiteConnection db) throws SQLiteException {
+          long numFiles = 0;
+          db.exec("BEGIN");
+          boolean committed = false;
+          SQLiteStatement fileStmt = db.prepare("INSERT into Files VALUES(null, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+          try {
+            for (GenericRecord entry: batch) {
+              String kind = entry.getSchema().getFullName();
+              if (TYPE_SCHEMA.getFullName().equals(kind)) {
+                long typeId = analyzer.getCreateType(db, entry.get("label").toString());
+                typeMap.put((Long) entry.get("typeid"), typeId);
+                typeLabels.put(typeId, entry.get("label").toString());
+              } else if (SCHEMA_SCHEMA.getFullName().equals(kind)) {
+                ByteBuffer buf = (ByteBuffer) entry.get("payload");
+                byte[] payload = new byte[buf.remaining()];
+                buf.duplicate().get(payload);
+                long schemaId = analyzer.getCreateSchema(db, entry.get("repr").toString(), entry.get("desc").toString(), payload);
+                schemaMap.put((Long) entry.get("schemaid"), schemaId);
+                Set<String> fieldTerms = new TreeSet<String>();
+                SearchTerms.addFieldTerms(fieldTerms, entry.get("repr").toString());
+                schemaTerms.put(schemaId, fieldTerms);
+              } else if (FILE_SCHEMA.getFullName().equals(kind)) {
+                boolean isDir = ((Boolean) entry.get("isDir")).booleanValue();
+                long size = (Long) entry.get("size");
+                String path = entry.get("path").toString();
+                fileStmt.bind(1, isDir ? "True" : "False").bind(2, crawlid).bind(3, entry.get("fname").toString()).bind(4, entry.get("owner").toString()).bind(5, entry.get("group").toString()).bind(6, entry.get("permissions").toString()).bind(7, size).bind(8, entry.get("modified").toString()).bind(9, path);
+                fileStmt.step();
+                fileStmt.reset();
+                long fid = db.getLastInsertId();
+
+                List<Long> typeGuesses = new ArrayList<Long>();
+                Set<String> terms = new TreeSet<String>();
+                Long typeId = typeMap.get((Long) entry.get("typeid"));
+                if (typeId != null) {
+                  SearchTerms.addTypeTerm(terms, typeLabels.get(typeId));
+                  for (Object oldSchemaId: (List<?>) entry.get("schemaids")) {
+                    Long schemaId = schemaMap.get((Long) oldSchemaId);
+                    if (schemaId != null) {
+                      typeGuesses.add(typeId);
+                      typeGuesses.add(fid);
+                      typeGuesses.add(schemaId);
+                      terms.addAll(schemaTerms.get(schemaId));
+                    }
+                  }
+                }
+                if (typeGuesses.size() > 0) {
+                  analyzer.insertGuesses(db, crawlid, size, path, typeGuesses);
+                }
+                if (! isDir) {
+                  SearchTerms.addPathTerms(terms, path, entry.get("fname").toString());
+                  analyzer.insertTerms(db, fid, terms);
+                }
+                indexUpdates.add(new IndexUpdate(fid, path, isDir, typeGuesses));
+                numFiles++;
+              }
+            }
+            db.exec("COMMIT");
+            committed = true;
+          } finally {
+            fileStmt.dispose();
+            if (! committed) {
+              db.exec("ROLLBACK");
+            }
+          }
+          return numFiles;
+        }
+      });
+    Long numFiles = importJob.complete();
+    if (numFiles == null) {
+      throw wrapError("Could not import snapshot batch into crawl " + crawlid, importJob.getError());
+    }
+
+    // The resident index only learns about rows that were committed
+    for (IndexUpdate update: indexUpdates) {
+      analyzer.fileIndex.addFile(update.fid, crawlid, update.path, update.isDir);
+      List<Long> typeGuesses = update.typeGuesses;
+      for (int i = 0; i < typeGuesses.size(); i+=3) {
+        analyzer.fileIndex.addGuess(typeGuesses.get(i+1), typeGuesses.get(i), typeGuesses.get(i+2));
+      }
+    }
+    return numFiles;
+  }
+}
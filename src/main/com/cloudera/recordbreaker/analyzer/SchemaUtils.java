@@ -234,6 +234,47 @@ public class SchemaUtils {
     }
   }
 
+  /**
+   * Like <code>flattenNames</code>, but the Schema may contain unions.  The
+   * names from every branch of a union are returned, without duplicates.
+   */
+  public static List<String> flattenNamesAcrossUnions(Schema schema) {
+    if (schema.getType() == Schema.Type.RECORD) {
+      List<String> schemaLabels = new ArrayList<String>();
+      for (Schema.Field field: schema.getFields()) {
+        List<String> subnames = SchemaUtils.flattenNamesAcrossUnions(field.schema());
+        if (subnames == null) {
+          schemaLabels.add(field.name());
+        } else {
+          for (String s: subnames) {
+            schemaLabels.add(field.name() + "." + s);
+          }
+        }
+      }
+      return schemaLabels;
+    } else if (schema.getType() == Schema.Type.UNION) {
+      List<String> schemaLabels = null;
+      for (Schema branch: schema.getTypes()) {
+        List<String> subnames = flattenNamesAcrossUnions(branch);
+        if (subnames != null) {
+          if (schemaLabels == null) {
+            schemaLabels = new ArrayList<String>();
+          }
+          for (String s: subnames) {
+            if (! schemaLabels.contains(s)) {
+              schemaLabels.add(s);
+            }
+          }
+        }
+      }
+      return schemaLabels;
+    } else if (schema.getType() == Schema.Type.ARRAY) {
+      return flattenNamesAcrossUnions(schema.getElementType());
+    } else {
+      return null;
+    }
+  }
+
   /**
    * Grab a value from a record that is potentially deeply-nested, using
    * a dot-notation field label.
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.util.Set;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.avro.Schema;
+
+/*****************************************************************
+ * <code>SearchTerms</code> turns file metadata into the terms of
+ * FSAnalyzer's inverted index, and turns a search string into the
+ * terms to look up.
+ *
+ * Terms are lowercased and carry a prefix naming what they describe:
+ * <ul>
+ * <li><code>field:</code> a flattened schema field name, such as
+ *     <code>field:user.id</code>, plus each of its dotted components
+ * <li><code>path:</code> a directory or file name along the file's path.
+ *     It matches that name at any depth, so <code>path:logs</code> finds
+ *     both /logs/x and /a/logs/x
+ * <li><code>under:</code> a directory the file lies beneath, as a full path
+ *     such as <code>under:/var/logs</code>.  It finds everything below
+ *     /var/logs but not /a/var/logs
+ * <li><code>type:</code> the file's type label
+ * </ul>
+ *****************************************************************/
+public class SearchTerms {
+  public final static String FIELD_PREFIX = "field:";
+  public final static String PATH_PREFIX = "path:";
+  public final static String TYPE_PREFIX = "type:";
+  public final static String UNDER_PREFIX = "under:";
+  // A bare query word may be any of these; under: terms must be asked for
+  final static String[] PREFIXES = {FIELD_PREFIX, PATH_PREFIX, TYPE_PREFIX};
+  final static int MAX_TERM_LENGTH = 256;
+
+  static void add(Set<String> terms, String prefix, String word) {
+    if (word != null && word.length() > 0) {
+      String term = prefix + word.toLowerCase();
+      if (term.length() <= MAX_TERM_LENGTH) {
+        terms.add(term);
+      }
+    }
+  }
+
+  /**
+   * Path terms for a file.  <code>parentPath</code> is the Files.path value,
+   * such as "file:/var/logs/", so the scheme is skipped.  Besides a path: term
+   * per name, the file gets an under: term for "/" and for each ancestor
+   * directory, here "/var" and "/var/logs".
+   */
+  public static void addPathTerms(Set<String> terms, String parentPath, String fname) {
+    String localPath = parentPath;
+    int start = localPath.indexOf(":/");
+    if (start >= 0) {
+      localPath = localPath.substring(start + 1);
+    }
+    if (localPath.startsWith("//")) {
+      // Skip the authority, as in hdfs://namenode:8020/
+      int end = localPath.indexOf('/', 2);
+      localPath = (end < 0) ? "" : localPath.substring(end);
+    }
+    String[] components = localPath.split("/");
+    StringBuffer ancestor = new StringBuffer();
+    add(terms, UNDER_PREFIX, "/");
+    for (int i = 0; i < components.length; i++) {
+      add(terms, PATH_PREFIX, components[i]);
+      if (components[i].length() > 0) {
+        ancestor.append('/').append(components[i]);
+        add(terms, UNDER_PREFIX, ancestor.toString());
+      }
+    }
+    add(terms, PATH_PREFIX, fname);
+  }
+
+  public static void addTypeTerm(Set<String> terms, String typeLabel) {
+    add(terms, TYPE_PREFIX, typeLabel);
+  }
+
+  /**
+   * Field terms for a schema: each flattened name, and each component of it.
+   */
+  public static void addFieldTerms(Set<String> terms, Schema schema) {
+    List<String> names = SchemaUtils.flattenNamesAcrossUnions(schema);
+    if (names == null) {
+      return;
+    }
+    for (String name: names) {
+      add(terms, FIELD_PREFIX, name);
+      if (name.indexOf('.') >= 0) {
+        String[] components = name.split("\\.");
+        for (int i = 0; i < components.length; i++) {
+          add(terms, FIELD_PREFIX, components[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Field terms from a stored schema repr (its JSON).  Reprs that don't parse,
+   * such as the empty "no schema" placeholder, contribute nothing.
+   */
+  public static void addFieldTerms(Set<String> terms, String schemaRepr) {
+    if (schemaRepr == null || schemaRepr.length() == 0) {
+      return;
+    }
+    try {
+      addFieldTerms(terms, new Schema.Parser().parse(schemaRepr));
+    } catch (RuntimeException rex) {
+      // Not an Avro schema; nothing to index
+    }
+  }
+
+  /**
+   * <code>parseQuery</code> splits a search string on whitespace.  Every word
+   * must match (AND).  A word with a known prefix is looked up as-is; a bare
+   * word may match a field, path or type term (OR), so each word becomes a
+   * list of alternative terms.  An under: directory is taken from the root,
+   * without a trailing slash, so <code>under:logs/</code> means
+   * <code>under:/logs</code>.
+   */
+  public static List<List<String>> parseQuery(String query) {
+    List<List<String>> clauses = new ArrayList<List<String>>();
+    String[] words = query.trim().toLowerCase().split("\\s+");
+    for (int i = 0; i < words.length; i++) {
+      String word = words[i];
+      if (word.length() == 0) {
+        continue;
+      }
+      List<String> alternatives = new ArrayList<String>();
+      if (word.startsWith(UNDER_PREFIX)) {
+        if (! word.startsWith(UNDER_PREFIX + "/")) {
+          word = UNDER_PREFIX + "/" + word.substring(UNDER_PREFIX.length());
+        }
+        while (word.length() > UNDER_PREFIX.length() + 1 && word.endsWith("/")) {
+          word = word.substring(0, word.length() - 1);
+        }
+        alternatives.add(word);
+      }
+      for (int j = 0; j < PREFIXES.length && alternatives.size() == 0; j++) {
+        if (word.startsWith(PREFIXES[j])) {
+          alternatives.add(word);
+          break;
+        }
+      }
+      if (alternatives.size() == 0) {
+        for (int j = 0; j < PREFIXES.length; j++) {
+          alternatives.add(PREFIXES[j] + word);
+        }
+      }
+      clauses.add(alternatives);
+    }
+    return clauses;
+  }
+}
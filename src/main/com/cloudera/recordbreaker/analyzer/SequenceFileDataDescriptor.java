@@ -39,16 +39,14 @@ public class SequenceFileDataDescriptor extends GenericDataDescriptor {
    * Test whether this is a SequenceFile or not.
    */
   public static boolean isSequenceFile(FileSystem fs, Path p) {
-    try {
-      SequenceFile.Reader in = new SequenceFile.Reader(fs, p, new Configuration());
-      try {
-        return true;
-      } finally {
-        in.close();
-      }
-    } catch (IOException iex) {
-      return false;
-    }
+    return isSequenceFile(new FileHead(fs, p));
+  }
+
+  /**
+   * Test whether this is a SequenceFile, from its header in the shared file head.
+   */
+  public static boolean isSequenceFile(FileHead head) {
+    return head.getSequenceFileMetadata() != null;
   }
   
   public SequenceFileDataDescriptor(Path p, FileSystem fs) throws IOException {
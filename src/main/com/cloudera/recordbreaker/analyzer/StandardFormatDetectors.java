@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.avro.file.DataFileConstants;
+
+/*****************************************************************
+ * <code>StandardFormatDetectors</code> holds the FormatDetectors for
+ * the formats that ship with RecordBreaker.  Each is listed in
+ * META-INF/services so FormatAnalyzer can find it.
+ *****************************************************************/
+public class StandardFormatDetectors {
+  public static class AvroDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return AvroDataDescriptor.AVRO_TYPE;
+    }
+    public int getCost() {
+      return COST_MAGIC;
+    }
+    public double getConfidence() {
+      return 1.0;
+    }
+    public boolean matches(FileHead head) throws IOException {
+      if (head.getLogicalName().endsWith(".avro")) {
+        return true;
+      }
+      byte[] magic = DataFileConstants.MAGIC;
+      if (head.getLength() < magic.length) {
+        return false;
+      }
+      byte[] bytes = head.getBytes();
+      for (int i = 0; i < magic.length; i++) {
+        if (bytes[i] != magic[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+    public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) throws IOException {
+      return new AvroDataDescriptor(p, fs);
+    }
+  }
+
+  public static class XMLDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return XMLDataDescriptor.XML_TYPE;
+    }
+    public int getCost() {
+      return COST_FILENAME;
+    }
+    public double getConfidence() {
+      return CONFIDENT;
+    }
+    public boolean matches(FileHead head) {
+      return head.getLogicalName().endsWith(".xml");
+    }
+    public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) throws IOException {
+      return new XMLDataDescriptor(p, fs);
+    }
+  }
+
+  public static class AvroSequenceFileDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return AvroSequenceFileDataDescriptor.AVROSEQFILE_TYPE;
+    }
+    public int getCost() {
+      return COST_HEADER;
+    }
+    public double getConfidence() {
+      return 1.0;
+    }
+    public boolean matches(FileHead head) {
+      return AvroSequenceFileDataDescriptor.isAvroSequenceFile(head);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) throws IOException {
+      return new AvroSequenceFileDataDescriptor(p, fs);
+    }
+  }
+
+  public static class SequenceFileDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return SequenceFileDataDescriptor.SEQFILE_TYPE;
+    }
+    public int getCost() {
+      return COST_HEADER;
+    }
+    public double getConfidence() {
+      return 1.0;
+    }
+    public boolean matches(FileHead head) {
+      // Every AvroSequenceFile is also a SequenceFile; leave those to the
+      // more specific detector, whatever order the two run in.
+      return SequenceFileDataDescriptor.isSequenceFile(head) &&
+        ! AvroSequenceFileDataDescriptor.isAvroSequenceFile(head);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) throws IOException {
+      return new SequenceFileDataDescriptor(p, fs);
+    }
+  }
+
+  public static class ApacheLogDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return ApacheDataDescriptor.APACHE_TYPE;
+    }
+    public int getCost() {
+      return COST_REGEXP;
+    }
+    public double getConfidence() {
+      return CONFIDENT;
+    }
+    public boolean matches(FileHead head) {
+      return ApacheDataDescriptor.isApacheLogFile(head);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) throws IOException {
+      return new ApacheDataDescriptor(p, fs);
+    }
+  }
+
+  public static class SyslogDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return SyslogDataDescriptor.SYSLOG_TYPE;
+    }
+    public int getCost() {
+      return COST_REGEXP;
+    }
+    public double getConfidence() {
+      return CONFIDENT;
+    }
+    public boolean matches(FileHead head) throws IOException {
+      return SyslogDataDescriptor.isSyslogFile(head);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) throws IOException {
+      return new SyslogDataDescriptor(p, fs);
+    }
+  }
+
+  public static class CSVDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return CSVDataDescriptor.CSV_TYPE;
+    }
+    public int getCost() {
+      return COST_PARSE;
+    }
+    public double getConfidence() {
+      return CONFIDENT;
+    }
+    public boolean matches(FileHead head) {
+      return CSVDataDescriptor.isCSV(head);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) throws IOException {
+      return new CSVDataDescriptor(p, fs);
+    }
+  }
+
+  /**
+   * Mostly-ASCII data is only weak evidence, so this match never ends
+   * the search.  It is what's left when no structured format applies.
+   */
+  public static class TextDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return UnknownTextDataDescriptor.TEXTDATA_TYPE;
+    }
+    public int getCost() {
+      return COST_TEXT_SAMPLE;
+    }
+    public double getConfidence() {
+      return 0.5;
+    }
+    public boolean matches(FileHead head) {
+      return UnknownTextDataDescriptor.isTextData(head);
+    }
+    public DataDescriptor describe(FileSystem fs, Path p, File schemaDbDir) {
+      try {
+        return new UnknownTextDataDescriptor(fs, p, schemaDbDir);
+      } catch (Exception iex) {
+        //iex.printStackTrace();
+        return null;
+      }
+    }
+  }
+}
@@ -45,7 +45,10 @@ public class SyslogDataDescriptor extends TextRegexpDataDescriptor {
   }
 
   public static boolean isSyslogFile(FileSystem fs, Path p) throws IOException {
-    return TextRegexpDataDescriptor.isTextRegexpFile(fs, p, syslogRegexps);
+    return isSyslogFile(new FileHead(fs, p));
+  }
+  public static boolean isSyslogFile(FileHead head) throws IOException {
+    return TextRegexpDataDescriptor.isTextRegexpFile(head, syslogRegexps);
   }
   
   public SyslogDataDescriptor(Path p, FileSystem fs) throws IOException {
@@ -50,6 +50,18 @@ public class TypeSummary {
     }
     return tsd.typeLabel;
   }
+  public long getNumFiles() {
+    if (tsd == null || tsd.numFiles < 0) {
+      this.tsd = analyzer.getTypeSummaryData(this.typeid);
+    }
+    return tsd.numFiles;
+  }
+  public long getNumBytes() {
+    if (tsd == null || tsd.numBytes < 0) {
+      this.tsd = analyzer.getTypeSummaryData(this.typeid);
+    }
+    return tsd.numBytes;
+  }
   public List<TypeGuessSummary> getTypeGuesses() {
     if (this.tgs == null) {
       this.tgs = analyzer.getTypeGuessesForType(this.typeid);
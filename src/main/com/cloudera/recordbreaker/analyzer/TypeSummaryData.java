@@ -20,9 +20,16 @@ package com.cloudera.recordbreaker.analyzer;
 public class TypeSummaryData {
   long typeid;
   String typeLabel;
+  long numFiles;
+  long numBytes;
 
   public TypeSummaryData(long typeid, String typeLabel) {
+    this(typeid, typeLabel, -1L, -1L);
+  }
+  public TypeSummaryData(long typeid, String typeLabel, long numFiles, long numBytes) {
     this.typeid = typeid;
     this.typeLabel = typeLabel;
+    this.numFiles = numFiles;
+    this.numBytes = numBytes;
   }
 }
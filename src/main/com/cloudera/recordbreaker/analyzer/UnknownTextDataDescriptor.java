@@ -61,24 +61,26 @@ public class UnknownTextDataDescriptor extends GenericDataDescriptor {
    */
   final static double asciiThreshold = 0.9;
   public static boolean isTextData(FileSystem fs, Path p) {
+    return isTextData(new FileHead(fs, p));
+  }
+
+  /**
+   * Test the first 1024 bytes of the shared file head for mostly-ASCII content.
+   */
+  public static boolean isTextData(FileHead head) {
     try {
-      BufferedInputStream in = new BufferedInputStream(fs.open(p));
-      try {
-        byte buf[] = new byte[1024];
-        int numBytes = in.read(buf);
-        if (numBytes < 0) {
-          return false;
-        }
-        int numASCIIChars = 0;
-        for (int i = 0; i < numBytes; i++) {
-          if (buf[i] >= 32 && buf[i] < 128) {
-            numASCIIChars++;
-          }
+      byte buf[] = head.getBytes();
+      int numBytes = Math.min(1024, head.getLength());
+      if (numBytes <= 0) {
+        return false;
+      }
+      int numASCIIChars = 0;
+      for (int i = 0; i < numBytes; i++) {
+        if (buf[i] >= 32 && buf[i] < 128) {
+          numASCIIChars++;
         }
-        return ((numASCIIChars / (1.0 * numBytes)) > asciiThreshold);
-      } finally {
-        in.close();
       }
+      return ((numASCIIChars / (1.0 * numBytes)) > asciiThreshold);
     } catch (IOException iex) {
       return false;
     }
@@ -105,9 +107,13 @@ public class UnknownTextDataDescriptor extends GenericDataDescriptor {
       it.next();
     }
     int numLines = 0;
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-    while (in.readLine() != null) {
-      numLines++;
+    BufferedReader in = new BufferedReader(new InputStreamReader(CompressedFiles.open(fs, p)));
+    try {
+      while (in.readLine() != null) {
+        numLines++;
+      }
+    } finally {
+      in.close();
     }
 
     numTuples = Math.min(numTuples, UnknownTextSchemaDescriptor.MAX_LINES);
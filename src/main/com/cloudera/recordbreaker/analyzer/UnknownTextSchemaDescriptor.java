@@ -35,6 +35,7 @@ import org.apache.avro.file.DataFileReader;
 import org.apache.avro.generic.GenericContainer;
 import org.apache.avro.generic.GenericDatumReader;
 
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
 import com.cloudera.recordbreaker.learnstructure.InferredType;
 import com.cloudera.recordbreaker.learnstructure.LearnStructure;
 
@@ -58,6 +59,7 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
   private static final Log LOG = LogFactory.getLog(UnknownTextSchemaDescriptor.class);    
   public static String SCHEMA_ID = "recordbreaker-recovered";
   public static int MAX_LINES = 1000;
+  public static int MIN_LINES_PER_SHAPE = LineSampler.DEFAULT_MIN_PER_SHAPE;
   InferredType typeTree;
 
   public UnknownTextSchemaDescriptor(DataDescriptor dd) throws IOException {
@@ -82,6 +84,7 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
   void computeSchema() throws IOException {
     this.randId = new Random().nextInt();    
     LearnStructure ls = new LearnStructure();
+    ls.setAdaptiveSampling(true);
     FileSystem fs = FSAnalyzer.getInstance().getFS();
     FileSystem localFS = FileSystem.getLocal(new Configuration());
     Path inputPath = dd.getFilename();
@@ -89,7 +92,13 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
     File workingParserFile = File.createTempFile("textdesc", "typetree", null);
     File workingSchemaFile = File.createTempFile("textdesc", "schema", null);
     
-    ls.inferRecordFormat(fs, inputPath, localFS, new Path(workingSchemaFile.getCanonicalPath()), new Path(workingParserFile.getCanonicalPath()), null, null, false, MAX_LINES);
+    // Learn from regions spread across the file, not just its head, which
+    // for a rotated log is often startup noise.  The byte budget bounds the read.
+    // Every adaptive round keeps the per-shape lines, so rare layouts get a branch.
+    List<Integer> stratifiedLineNos = new ArrayList<Integer>();
+    List<String> lines = LineSampler.reservoirSample(fs, inputPath, MAX_LINES, MIN_LINES_PER_SHAPE, LineSampler.DEFAULT_SEED,
+                                                     LineSampler.DEFAULT_BYTE_BUDGET, LineSampler.DEFAULT_NUM_REGIONS, stratifiedLineNos);
+    ls.inferRecordFormat(fs, inputPath, lines, stratifiedLineNos, localFS, new Path(workingSchemaFile.getCanonicalPath()), new Path(workingParserFile.getCanonicalPath()), null, null, false);
 
     this.schema = Schema.parse(workingSchemaFile);
     DataInputStream in = new DataInputStream(localFS.open(new Path(workingParserFile.getCanonicalPath())));
@@ -28,6 +28,8 @@ import org.apache.hadoop.conf.Configuration;
 
 import org.apache.avro.Schema;
 
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
 /********************************************************************
  * <code>UnstructuredFileDescriptor</code> holds no structured data.
  * It doesn't have a schema to recover.
@@ -58,7 +60,10 @@ public class UnstructuredFileDescriptor implements DataDescriptor {
   }
 
   public InputStream getRawBytes() throws IOException {
-    return fs.open(p);
+    return CompressedFiles.open(fs, p);
+  }
+  public List<String> getSampleLines(int maxLines) throws IOException {
+    return LineSampler.sample(fs, p, maxLines);
   }
   public boolean isHiveSupported() {
     return false;
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.fisheye;
+
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.markup.html.list.ListView;
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.basic.Label;
+
+import java.util.List;
+
+import com.cloudera.recordbreaker.analyzer.CrawlDiff;
+import com.cloudera.recordbreaker.analyzer.FileSummary;
+
+/**
+ * The <code>CrawlDiffPage</code> lists the files that appeared, disappeared,
+ * or changed type or schema between a crawl and the one before it.
+ */
+public class CrawlDiffPage extends WebPage {
+
+  final class CrawlDiffListing extends WebMarkupContainer {
+    public CrawlDiffListing(String name, final long crawlid) {
+      super(name);
+      final FishEye fe = FishEye.getInstance();
+      final AccessController accessCtrl = fe.getAccessController();
+      List<CrawlDiff> diffs = fe.getCrawlDiffs(crawlid);
+      long prevCrawlid = crawlid >= 0 ? fe.getAnalyzer().getPreviousCompleteCrawl(crawlid) : -1L;
+
+      add(new Label("crawlid", "" + crawlid));
+      add(new Label("prevcrawlid", prevCrawlid >= 0 ? "" + prevCrawlid : "none"));
+      add(new Label("numchanges", "" + diffs.size()));
+      add(new ListView<CrawlDiff>("difflisting", diffs) {
+          protected void populateItem(ListItem<CrawlDiff> item) {
+            CrawlDiff diff = item.getModelObject();
+            item.add(new Label("changelabel", diff.change));
+
+            // Link to whichever version of the file still exists, if the user may read it
+            long fid = diff.newFid >= 0 ? diff.newFid : diff.oldFid;
+            if (accessCtrl.hasReadAccess(new FileSummary(fe.getAnalyzer(), fid))) {
+              String fileUrl = urlFor(FilePage.class, new PageParameters("fid=" + fid)).toString();
+              item.add(new Label("pathlabel", "<a href=\"" + fileUrl + "\">" + diff.path + "</a>").setEscapeModelStrings(false));
+            } else {
+              item.add(new Label("pathlabel", diff.path));
+            }
+            item.add(new Label("oldtypelabel", diff.oldType == null ? "" : diff.oldType));
+            item.add(new Label("newtypelabel", diff.newType == null ? "" : diff.newType));
+          }
+        });
+
+      setOutputMarkupPlaceholderTag(true);
+      setVisibilityAllowed(false);
+    }
+    public void onConfigure() {
+      FishEye fe = FishEye.getInstance();
+      setVisibilityAllowed(fe.hasFSAndCrawl());
+    }
+  }
+
+  public CrawlDiffPage() {
+    add(new CrawlDiffListing("currentCrawlDiffListing", FishEye.getInstance().getLatestCrawlId()));
+    add(new SettingsWarningBox());
+    add(new CrawlWarningBox());
+  }
+  public CrawlDiffPage(PageParameters params) {
+    add(new CrawlDiffListing("currentCrawlDiffListing", Long.parseLong(params.get("crawlid").toString())));
+    add(new SettingsWarningBox());
+    add(new CrawlWarningBox());
+  }
+}
@@ -22,6 +22,7 @@ import org.apache.wicket.markup.html.list.ListItem;
 import org.apache.wicket.markup.html.link.ExternalLink;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
 
+import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -138,6 +139,16 @@ public class FilesPage extends WebPage {
         //
         List<FileSummary> filelist = FishEye.getInstance().getAnalyzer().getPrecachedFileSummariesInDir(false, targetDir);
         add(new Label("numFisheyeFiles", "" + filelist.size()));
+
+        add(new Label("dirTypeMix", formatTypeMix(fe.getDirTypeCounts(targetDir))));
+
+        // Totals for everything beneath this directory, from the directory tree
+        String subtreeSummary = "";
+        long[] subtreeTotals = fe.getSubtreeTotals(targetDir);
+        if (subtreeTotals != null) {
+          subtreeSummary = " The tree below it holds " + subtreeTotals[0] + " files, " + subtreeTotals[1] + " bytes" + formatTypeMix(fe.getSubtreeTypeCounts(targetDir)) + ".";
+        }
+        add(new Label("subtreeSummary", subtreeSummary));
         add(new ListView<FileSummary>("filelisting", filelist) {
             protected void populateItem(ListItem<FileSummary> item) {
               long start = System.currentTimeMillis();
@@ -197,6 +208,21 @@ public class FilesPage extends WebPage {
     }
   }
   
+  /**
+   * Render a label-to-count map as " (csv: 3, text: 1)", or "" if it is empty.
+   */
+  static String formatTypeMix(Map<String, Long> typeCounts) {
+    StringBuffer typeMix = new StringBuffer();
+    if (typeCounts != null && typeCounts.size() > 0) {
+      for (Map.Entry<String, Long> e: typeCounts.entrySet()) {
+        typeMix.append(typeMix.length() == 0 ? " (" : ", ");
+        typeMix.append(e.getKey() + ": " + e.getValue());
+      }
+      typeMix.append(")");
+    }
+    return typeMix.toString();
+  }
+
   public FilesPage() {
     FishEye fe = FishEye.getInstance();
     String targetDir = fe.getTopDir() != null ? fe.getTopDir() : "/";    
@@ -35,13 +35,15 @@ public class FiletypesPage extends WebPage {
     public FiletypesListing(String name) {
       super(name);
       FishEye fe = FishEye.getInstance();
-      List<TypeSummary> list = fe.getAnalyzer().getTypeSummaries();
+      List<TypeSummary> list = fe.getTypeSummaries();
       ListView<TypeSummary> listview = new ListView<TypeSummary>("listview", list) {
         protected void populateItem(ListItem<TypeSummary> item) {
           TypeSummary ts = item.getModelObject();
 
           String typeUrl = urlFor(FiletypePage.class, new PageParameters("typeid=" + ts.getTypeId())).toString();
           item.add(new ExternalLink("typelabel", typeUrl, ts.getLabel()));
+          item.add(new Label("numfiles", "" + ts.getNumFiles()));
+          item.add(new Label("numbytes", "" + ts.getNumBytes()));
         }
       };
       add(listview);
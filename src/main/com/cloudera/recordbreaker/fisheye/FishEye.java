@@ -39,6 +39,8 @@ import com.cloudera.recordbreaker.analyzer.DataQuery;
 import com.cloudera.recordbreaker.analyzer.FSCrawler;
 import com.cloudera.recordbreaker.analyzer.FSAnalyzer;
 import com.cloudera.recordbreaker.analyzer.FileSummary;
+import com.cloudera.recordbreaker.analyzer.TypeSummary;
+import com.cloudera.recordbreaker.analyzer.CrawlDiff;
 import com.cloudera.recordbreaker.analyzer.CrawlRuntimeStatus;
 
 /***************************************************************
@@ -213,6 +215,64 @@ public class FishEye {
     }
     return null;
   }
+  /**
+   * Id of the latest complete crawl of the current filesystem, or -1.
+   */
+  public long getLatestCrawlId() {
+    URI fsUri = getFSURI();
+    if (fsUri == null) {
+      return -1L;
+    }
+    long fsid = analyzer.getCreateFilesystem(fsUri, false);
+    if (fsid >= 0) {
+      return analyzer.getLatestCompleteCrawl(fsid);
+    }
+    return -1L;
+  }
+  public List<TypeSummary> getTypeSummaries() {
+    long crawlid = getLatestCrawlId();
+    if (crawlid >= 0) {
+      return analyzer.getTypeSummariesForCrawl(crawlid);
+    }
+    return new ArrayList<TypeSummary>();
+  }
+  /**
+   * Files in the latest crawl that match a search string.
+   */
+  public List<FileSummary> searchFiles(String query, int maxResults) {
+    long crawlid = getLatestCrawlId();
+    if (crawlid >= 0) {
+      return analyzer.searchFiles(query, crawlid, maxResults);
+    }
+    return new ArrayList<FileSummary>();
+  }
+  public List<CrawlDiff> getCrawlDiffs(long crawlid) {
+    if (crawlid >= 0) {
+      return analyzer.getCrawlDiffs(crawlid);
+    }
+    return new ArrayList<CrawlDiff>();
+  }
+  public Map<String, Long> getDirTypeCounts(String targetDir) {
+    long crawlid = getLatestCrawlId();
+    if (crawlid >= 0) {
+      return analyzer.getDirTypeCounts(crawlid, targetDir);
+    }
+    return null;
+  }
+  public long[] getSubtreeTotals(String targetDir) {
+    long crawlid = getLatestCrawlId();
+    if (crawlid >= 0) {
+      return analyzer.getSubtreeTotals(crawlid, targetDir);
+    }
+    return null;
+  }
+  public Map<String, Long> getSubtreeTypeCounts(String targetDir) {
+    long crawlid = getLatestCrawlId();
+    if (crawlid >= 0) {
+      return analyzer.getSubtreeTypeCounts(crawlid, targetDir);
+    }
+    return null;
+  }
   public FSAnalyzer getAnalyzer() {
     return analyzer;
   }
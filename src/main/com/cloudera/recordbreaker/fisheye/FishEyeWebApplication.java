@@ -40,6 +40,8 @@ public class FishEyeWebApplication extends WebApplication {
     mountPage("/QueryResults", QueryResultsPage.class);
     mountPage("/Filetypes", FiletypesPage.class);
     mountPage("/Schemas", SchemasPage.class);    
+    mountPage("/CrawlDiff", CrawlDiffPage.class);
+    mountPage("/Search", SearchPage.class);
 
     mountPage("/File", FilePage.class);    
     mountPage("/Filetype", FiletypePage.class);    
@@ -25,6 +25,7 @@ import org.apache.wicket.markup.html.link.ExternalLink;
 
 import org.codehaus.jackson.JsonNode;
 
+import java.util.Map;
 import java.util.List;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -47,12 +48,15 @@ public class SchemasPage extends WebPage {
       FishEye fe = FishEye.getInstance();
       if (fe.hasFSAndCrawl()) {
         List<SchemaSummary> list = fe.getAnalyzer().getPrecachedSchemaSummaries();
+        final Map<Long, Long> schemaFileCounts = fe.getAnalyzer().getSchemaFileCounts();
         ListView<SchemaSummary> listview = new ListView<SchemaSummary>("listview", list) {
           protected void populateItem(ListItem<SchemaSummary> item) {
             long localStart = System.currentTimeMillis();
 
             SchemaSummary ss = item.getModelObject();
             item.add(new Label("schemadesc", ss.getDesc()));
+            Long numFiles = schemaFileCounts.get(ss.getSchemaId());
+            item.add(new Label("schemanumfiles", "" + (numFiles == null ? 0 : numFiles.longValue())));
 
             StringBuffer schemalabel = new StringBuffer();
             try {
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.fisheye;
+
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.markup.html.list.ListView;
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.basic.Label;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import com.cloudera.recordbreaker.analyzer.FileSummary;
+
+/**
+ * The <code>SearchPage</code> finds files by schema field name, path
+ * component or type label, e.g. "user_id" or "path:logs type:apache".
+ */
+public class SearchPage extends WebPage {
+  final static int MAX_RESULTS = 1000;
+
+  final class SearchResults extends WebMarkupContainer {
+    public SearchResults(String name, final String query) {
+      super(name);
+      final FishEye fe = FishEye.getInstance();
+      final AccessController accessCtrl = fe.getAccessController();
+      List<FileSummary> results = new ArrayList<FileSummary>();
+      if (query != null && query.trim().length() > 0) {
+        results = fe.searchFiles(query, MAX_RESULTS);
+      }
+
+      add(new Label("query", query == null ? "" : query));
+      add(new Label("numresults", "" + results.size() + (results.size() >= MAX_RESULTS ? "+" : "")));
+      add(new ListView<FileSummary>("resultlisting", results) {
+          protected void populateItem(ListItem<FileSummary> item) {
+            FileSummary fs = item.getModelObject();
+            if (accessCtrl.hasReadAccess(fs)) {
+              String fileUrl = urlFor(FilePage.class, new PageParameters("fid=" + fs.getFid())).toString();
+              item.add(new Label("filelabel", "<a href=\"" + fileUrl + "\">" + fs.getFname() + "</a>").setEscapeModelStrings(false));
+            } else {
+              item.add(new Label("filelabel", fs.getFname()));
+            }
+            item.add(new Label("dirlabel", fs.getParentDir()));
+            item.add(new Label("sizelabel", "" + fs.getSize()));
+          }
+        });
+
+      setOutputMarkupPlaceholderTag(true);
+      setVisibilityAllowed(false);
+    }
+    public void onConfigure() {
+      FishEye fe = FishEye.getInstance();
+      setVisibilityAllowed(fe.hasFSAndCrawl());
+    }
+  }
+
+  public SearchPage() {
+    add(new SearchResults("currentSearchResults", null));
+    add(new SettingsWarningBox());
+    add(new CrawlWarningBox());
+  }
+  public SearchPage(PageParameters params) {
+    add(new SearchResults("currentSearchResults", params.get("q").toOptionalString()));
+    add(new SettingsWarningBox());
+    add(new CrawlWarningBox());
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+
+/*********************************************************
+ * ChunkList is the set of chunks that TypeInference works on.
+ *
+ * TypeInference only ever splits a chunk into runs of adjacent tokens,
+ * so each chunk here is a slice of a TokenChunk: the TokenChunk plus a
+ * start and end token index.  The slices are stored as parallel arrays,
+ * so splitting a chunkset allocates no per-chunk objects.
+ *********************************************************/
+public class ChunkList {
+  TokenChunk chunks[];
+  int froms[];
+  int tos[];
+  int size = 0;
+
+  public ChunkList() {
+    this(16);
+  }
+
+  public ChunkList(int capacity) {
+    capacity = Math.max(capacity, 1);
+    this.chunks = new TokenChunk[capacity];
+    this.froms = new int[capacity];
+    this.tos = new int[capacity];
+  }
+
+  /**
+   * Wrap lists of Token objects, one list per chunk.
+   */
+  public static ChunkList fromTokenLists(List<List<Token.AbstractToken>> tokenLists) {
+    ChunkList chunkList = new ChunkList(tokenLists.size());
+    for (List<Token.AbstractToken> toks: tokenLists) {
+      chunkList.add(TokenChunk.fromTokens(toks));
+    }
+    return chunkList;
+  }
+
+  public void add(TokenChunk chunk) {
+    add(chunk, 0, chunk.size());
+  }
+
+  /**
+   * Add the slice of <code>chunk</code> from token <code>from</code> up to <code>to</code>.
+   */
+  public void add(TokenChunk chunk, int from, int to) {
+    if (size == chunks.length) {
+      int capacity = size * 2;
+      TokenChunk newChunks[] = new TokenChunk[capacity];
+      int newFroms[] = new int[capacity];
+      int newTos[] = new int[capacity];
+      System.arraycopy(chunks, 0, newChunks, 0, size);
+      System.arraycopy(froms, 0, newFroms, 0, size);
+      System.arraycopy(tos, 0, newTos, 0, size);
+      chunks = newChunks;
+      froms = newFroms;
+      tos = newTos;
+    }
+    chunks[size] = chunk;
+    froms[size] = from;
+    tos[size] = to;
+    size++;
+  }
+
+  /**
+   * Add chunk <code>k</code> of another ChunkList.
+   */
+  public void add(ChunkList other, int k) {
+    add(other.chunks[k], other.froms[k], other.tos[k]);
+  }
+
+  /**
+   * The number of chunks.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The number of tokens in chunk <code>k</code>.
+   */
+  public int length(int k) {
+    return tos[k] - froms[k];
+  }
+
+  public int getTypeId(int k, int i) {
+    return chunks[k].typeIds[froms[k] + i];
+  }
+
+  public String getTypeStr(int k, int i) {
+    return TokenChunk.getTypeStr(getTypeId(k, i));
+  }
+
+  public boolean isMetaToken(int k, int i) {
+    return chunks[k].isMetaToken(froms[k] + i);
+  }
+
+  public TokenChunk getContents(int k, int i) {
+    return chunks[k].getContents(froms[k] + i);
+  }
+
+  public Token.AbstractToken getToken(int k, int i) {
+    return chunks[k].getToken(froms[k] + i);
+  }
+
+  /**
+   * The same chunks, less any that have no tokens.
+   */
+  public ChunkList withoutEmptyChunks() {
+    ChunkList nonEmpty = null;
+    for (int k = 0; k < size; k++) {
+      if (length(k) == 0 && nonEmpty == null) {
+        nonEmpty = new ChunkList(size);
+        for (int j = 0; j < k; j++) {
+          nonEmpty.add(this, j);
+        }
+      } else if (length(k) > 0 && nonEmpty != null) {
+        nonEmpty.add(this, k);
+      }
+    }
+    return (nonEmpty == null) ? this : nonEmpty;
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*********************************************************
+ * DaemonThreadFactory makes the named daemon threads of the shared
+ * structure-learning pools.  The pools live for the life of the
+ * process, and daemon threads never keep it from exiting.
+ *********************************************************/
+class DaemonThreadFactory implements ThreadFactory {
+  final String namePrefix;
+  final AtomicInteger numThreads = new AtomicInteger();
+
+  DaemonThreadFactory(String namePrefix) {
+    this.namePrefix = namePrefix;
+  }
+
+  public Thread newThread(Runnable r) {
+    Thread t = new Thread(r, namePrefix + "-" + numThreads.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }
+}
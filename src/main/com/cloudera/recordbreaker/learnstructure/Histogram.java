@@ -27,34 +27,7 @@ public class Histogram {
   static double CLUSTER_TOLERANCE = 0.01;
   static double MAX_RESIDUAL_MASS = 0.1;
   static double MIN_COVERAGE_FACTOR = 0.2;
-
-  ///////////////////////////////////////////////////
-  // static classes
-  ///////////////////////////////////////////////////
-  static class FrequencyPair implements Comparable {
-    int perChunkFrequency;
-    int overallChunkCount;
-    public FrequencyPair(int perChunkFrequency, int overallChunkCount) {
-      this.perChunkFrequency = perChunkFrequency;
-      this.overallChunkCount = overallChunkCount;
-    }
-    public int compareTo(Object o) {
-      FrequencyPair other = (FrequencyPair) o;
-      int cmp = overallChunkCount - other.overallChunkCount;
-      if (cmp != 0) {
-        return -1 * cmp;
-      } else {
-        cmp = perChunkFrequency - other.perChunkFrequency;
-        return cmp;
-      }
-    }
-    public int getPerChunkFrequency() {
-      return perChunkFrequency;
-    }
-    public int getCount() {
-      return overallChunkCount;
-    }
-  }
+  final static double LOG_2 = Math.log(2);
 
   //////////////////////////////////////////////////////////////
   // Static methods: for computing histograms from data,
@@ -68,91 +41,126 @@ public class Histogram {
    * Thus, the size of the output of this function is relatively small: no larger 
    * than the number of potential token types.  However, it can take awhile to compute
    * if the input data size is huge.  
-   *
-   * REMIND mjc - This fn may be a good candidate for runtime-perf optimization
    */
   public static List<Histogram> computeNormalizedHistograms(List<List<Token.AbstractToken>> chunks) {
-    Map<String, Map<Integer, Integer>> allHistograms = new TreeMap<String, Map<Integer, Integer>>();
+    return computeNormalizedHistograms(ChunkList.fromTokenLists(chunks));
+  }
+
+  /**
+   * Compute the histograms directly from the compact chunks.  Tokens are
+   * counted by their interned type id into primitive arrays, and each token
+   * type's getId() string is only looked up once.
+   */
+  public static List<Histogram> computeNormalizedHistograms(ChunkList chunks) {
+    // freqCounts[typeId][f] is the number of chunks with exactly f tokens of that type
+    int freqCounts[][] = new int[TokenChunk.getNumTypes()][];
     List<Histogram> normalizedHistograms = new ArrayList<Histogram>();
 
     //
     // 1.  Compute some per-chunk statistics
     //
-    for (List<Token.AbstractToken> chunk: chunks) {
+    int localFreq[] = new int[freqCounts.length];
+    int chunkTypeIds[] = new int[16];
+    for (int k = 0; k < chunks.size(); k++) {
       // Compute frequencies of token-type within this chunk
-      HashMap<String, Integer> localFreq = new HashMap<String, Integer>();
-      for (Token.AbstractToken tok: chunk) {
-        Integer count = (Integer) localFreq.get(tok.getId());
-        if (count == null) {
-          localFreq.put(tok.getId(), 1);
-        } else {
-          localFreq.put(tok.getId(), count.intValue() + 1);
+      int numChunkTypes = 0;
+      for (int i = 0; i < chunks.length(k); i++) {
+        int typeId = chunks.getTypeId(k, i);
+        if (typeId >= localFreq.length) {
+          int newLength = Math.max(typeId + 1, localFreq.length * 2);
+          int grown[] = new int[newLength];
+          System.arraycopy(localFreq, 0, grown, 0, localFreq.length);
+          localFreq = grown;
+          int grownCounts[][] = new int[newLength][];
+          System.arraycopy(freqCounts, 0, grownCounts, 0, freqCounts.length);
+          freqCounts = grownCounts;
         }
+        if (localFreq[typeId] == 0) {
+          if (numChunkTypes == chunkTypeIds.length) {
+            int grown[] = new int[chunkTypeIds.length * 2];
+            System.arraycopy(chunkTypeIds, 0, grown, 0, numChunkTypes);
+            chunkTypeIds = grown;
+          }
+          chunkTypeIds[numChunkTypes++] = typeId;
+        }
+        localFreq[typeId]++;
       }
 
       // Now adjust the "histogram of frequencies" associated with each token type
-      for (String tokenId: localFreq.keySet()) {
-        Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-        if (perTokenTypeHistogram == null) {
-          perTokenTypeHistogram = new HashMap<Integer, Integer>();
-          allHistograms.put(tokenId, perTokenTypeHistogram);
-        }
-        Integer currentTokenTypeCount = localFreq.get(tokenId);
-        Integer countSoFar = perTokenTypeHistogram.get(currentTokenTypeCount);
-        if (countSoFar == null) {
-          perTokenTypeHistogram.put(currentTokenTypeCount, 1);
-        } else {
-          perTokenTypeHistogram.put(currentTokenTypeCount, countSoFar.intValue() + 1);
+      for (int t = 0; t < numChunkTypes; t++) {
+        int typeId = chunkTypeIds[t];
+        int f = localFreq[typeId];
+        int counts[] = freqCounts[typeId];
+        if (counts == null || f >= counts.length) {
+          int grown[] = new int[Math.max(f + 1, (counts == null) ? 4 : counts.length * 2)];
+          if (counts != null) {
+            System.arraycopy(counts, 0, grown, 0, counts.length);
+          }
+          counts = grown;
+          freqCounts[typeId] = counts;
         }
+        counts[f]++;
+        localFreq[typeId] = 0;
       }
     }
 
-    //
-    // 2.  Now for each per-token-type histogram, compute how many times the
-    //     token was observed in *no chunk at all*.
-    //
-    for (String tokenId: allHistograms.keySet()) {
-      Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-      int numberOfChunksForObservedTokenTypeCount = 0;
-      for (Integer currentTokenTypeCount: perTokenTypeHistogram.keySet()) {
-        numberOfChunksForObservedTokenTypeCount += perTokenTypeHistogram.get(currentTokenTypeCount);
+    // Histograms are built in order of their token type's getId() string
+    Map<String, Integer> typeIdsByStr = new TreeMap<String, Integer>();
+    for (int typeId = 0; typeId < freqCounts.length; typeId++) {
+      if (freqCounts[typeId] != null) {
+        typeIdsByStr.put(TokenChunk.getTypeStr(typeId), typeId);
       }
-      perTokenTypeHistogram.put(0, chunks.size() - numberOfChunksForObservedTokenTypeCount);
     }
 
-    //
-    // 3.  Normalize the per-token-type histograms
-    //
-    for (Map.Entry<String, Map<Integer, Integer>> e1: allHistograms.entrySet()) {
-      String tokenId = e1.getKey();
-      Map<Integer, Integer> perTokenTypeHistogram = e1.getValue();
-      double coverage = 0;
-      double totalMass = 0;
+    for (Map.Entry<String, Integer> e: typeIdsByStr.entrySet()) {
+      String tokenId = e.getKey();
+      int typeId = e.getValue();
+      int counts[] = freqCounts[typeId];
+
+      //
+      // 2.  Compute how many times the token was observed in *no chunk at all*,
+      //     and some metainfo stats along the way.
+      //
+      int width = 0;
+      int coverage = 0;
+      for (int f = 1; f < counts.length; f++) {
+        if (counts[f] != 0) {
+          width++;
+          coverage += counts[f];
+        }
+      }
+      int zeroCount = chunks.size() - coverage;
 
-      // 3.1.  Compute the histogram's normal form: all the counts in descending order of prevalence in the chunk set.
-      //       Also, compute some metainfo stats along the way
-      SortedSet<FrequencyPair> sorter = new TreeSet<FrequencyPair>();
-      for (Map.Entry<Integer, Integer> e2: perTokenTypeHistogram.entrySet()) {
-        Integer perChunkFrequency = e2.getKey();
-        Integer overallChunkCount = e2.getValue();
-        if (perChunkFrequency.intValue() != 0) {
-          coverage += overallChunkCount.intValue();
-          sorter.add(new FrequencyPair(perChunkFrequency, overallChunkCount));
+      //
+      // 3.  Normalize the per-token-type histogram.  Its normal form is all the
+      //     counts in descending order of prevalence in the chunk set, ties broken
+      //     by ascending per-chunk frequency, after the count for frequency zero.
+      //     Each pair is packed into a long whose natural order is that order.
+      //
+      long sorter[] = new long[width];
+      int n = 0;
+      for (int f = 1; f < counts.length; f++) {
+        if (counts[f] != 0) {
+          sorter[n++] = (((long) (Integer.MAX_VALUE - counts[f])) << 32) | f;
         }
-        totalMass += overallChunkCount.intValue();
       }
-      List<FrequencyPair> normalForm = new ArrayList<FrequencyPair>();
-      for (FrequencyPair p: sorter) {
-        normalForm.add(p);
+      Arrays.sort(sorter);
+      int perChunkFrequencies[] = new int[width + 1];
+      int chunkCounts[] = new int[width + 1];
+      perChunkFrequencies[0] = 0;
+      chunkCounts[0] = zeroCount;
+      for (int m = 0; m < width; m++) {
+        perChunkFrequencies[m + 1] = (int) sorter[m];
+        chunkCounts[m + 1] = Integer.MAX_VALUE - (int) (sorter[m] >>> 32);
       }
-      normalForm.add(0, new FrequencyPair(0, perTokenTypeHistogram.get(0)));
 
-      // 3.2.  Compute metainfo
-      double width = perTokenTypeHistogram.size()-1;
-      double residualMass = (totalMass - normalForm.get(1).getCount()) / totalMass;
+      double totalMass = chunks.size();
+      double residualMass = (totalMass - chunkCounts[1]) / totalMass;
 
-      // 3.3   Done with the histogram!
-      normalizedHistograms.add(new Histogram(tokenId, normalForm, width, residualMass, coverage));
+      // 3.1   Done with the histogram!
+      Histogram h = new Histogram(tokenId, perChunkFrequencies, chunkCounts, width, residualMass, coverage);
+      h.typeId = typeId;
+      normalizedHistograms.add(h);
     }
     return normalizedHistograms;
   }
@@ -175,95 +183,130 @@ public class Histogram {
       return clusters;
     }
 
-    // 2.  Otherwise, compute pairwise symmetric relative entropy among histograms
-    class Score implements Comparable {
-      double s;
-      int i;
-      int j;
-      public Score(double s, int i, int j) {
-        this.s = s;
-        this.i = i;
-        this.j = j;
-      }
-      public int getIndex1() {
-        return i;
-      }
-      public int getIndex2() {
-        return j;
-      }
-      public int compareTo(Object o) {
-        Score other = (Score) o;
-        if (this.s < other.s) {
-          return -1;
-        } else if (this.s > other.s) {
-          return 1;
-        } else {
-          int cmp = this.i - other.i;
-          if (cmp == 0) {
-            cmp = this.j - other.j;
-          }
-          return cmp;
+    // 2.  Otherwise, compute pairwise symmetric relative entropy among histograms.
+    //     Pairs that can't be under CLUSTER_TOLERANCE are skipped (see lowerBoundSymmetricRelativeEntropy()).
+    int numHistograms = inputHistograms.size();
+    Histogram histograms[] = inputHistograms.toArray(new Histogram[numHistograms]);
+    int numScores = 0;
+    double scores[] = new double[16];
+    int scoreIndex1[] = new int[16];
+    int scoreIndex2[] = new int[16];
+    for (int i = 0; i < numHistograms; i++) {
+      for (int j = i+1; j < numHistograms; j++) {
+        Histogram h1 = histograms[i];
+        Histogram h2 = histograms[j];
+        if (h1.lowerBoundSymmetricRelativeEntropy(h2) >= CLUSTER_TOLERANCE) {
+          continue;
         }
-      }
-    }
-    SortedSet<Score> scores = new TreeSet<Score>();
-    for (int i = 0; i < inputHistograms.size(); i++) {
-      for (int j = i+1; j < inputHistograms.size(); j++) {
-        Histogram h1 = inputHistograms.get(i);
-        Histogram h2 = inputHistograms.get(j);
         double sre = h1.computeSymmetricRelativeEntropy(h2);
         if (sre < CLUSTER_TOLERANCE) {
-          scores.add(new Score(sre, i, j));
+          if (numScores == scores.length) {
+            double grownScores[] = new double[numScores * 2];
+            int grown1[] = new int[numScores * 2];
+            int grown2[] = new int[numScores * 2];
+            System.arraycopy(scores, 0, grownScores, 0, numScores);
+            System.arraycopy(scoreIndex1, 0, grown1, 0, numScores);
+            System.arraycopy(scoreIndex2, 0, grown2, 0, numScores);
+            scores = grownScores;
+            scoreIndex1 = grown1;
+            scoreIndex2 = grown2;
+          }
+          scores[numScores] = sre;
+          scoreIndex1[numScores] = i;
+          scoreIndex2[numScores] = j;
+          numScores++;
         }
       }
     }
 
-    // Initialize clusters
-    Map<Integer, Integer> histogramToCluster = new TreeMap<Integer, Integer>();
-    Map<Integer, Set<Integer>> clusterToHistograms = new TreeMap<Integer, Set<Integer>>();
-    for (int i = 0; i < inputHistograms.size(); i++) {
-      histogramToCluster.put(i, i);
-      Set<Integer> containedHistograms = new HashSet<Integer>();
-      containedHistograms.add(i);
-      clusterToHistograms.put(i, containedHistograms);
-    } 
-    // Start merging clusters
-    for (Score s: scores) {
-      int idx1 = s.getIndex1();
-      int idx2 = s.getIndex2();
-      int cluster1 = histogramToCluster.get(idx1);
-      int cluster2 = histogramToCluster.get(idx2);
+    // Merge in order of increasing score.  Pairs were found in (i, j) order,
+    // and the sort is stable, so equal scores stay in that order.
+    final double sortScores[] = scores;
+    Integer mergeOrder[] = new Integer[numScores];
+    for (int k = 0; k < numScores; k++) {
+      mergeOrder[k] = k;
+    }
+    Arrays.sort(mergeOrder, new Comparator<Integer>() {
+        public int compare(Integer k1, Integer k2) {
+          return Double.compare(sortScores[k1], sortScores[k2]);
+        }
+      });
 
+    //
+    // Start merging clusters, with a union-find forest.  A cluster is labelled by the
+    // index of one of its histograms: the label of the first histogram's cluster survives
+    // each merge, and clusters are returned in label order.
+    //
+    int parent[] = new int[numHistograms];
+    int rank[] = new int[numHistograms];
+    int label[] = new int[numHistograms];
+    for (int i = 0; i < numHistograms; i++) {
+      parent[i] = i;
+      label[i] = i;
+    }
+    for (int k = 0; k < numScores; k++) {
+      int cluster1 = find(parent, scoreIndex1[mergeOrder[k]]);
+      int cluster2 = find(parent, scoreIndex2[mergeOrder[k]]);
       if (cluster1 == cluster2) {
         continue;
       }
-      for (Integer histogramId: clusterToHistograms.get(cluster2)) {
-        histogramToCluster.put(histogramId, cluster1);
+      int survivingLabel = label[cluster1];
+      if (rank[cluster1] < rank[cluster2]) {
+        parent[cluster1] = cluster2;
+        label[cluster2] = survivingLabel;
+      } else {
+        parent[cluster2] = cluster1;
+        if (rank[cluster1] == rank[cluster2]) {
+          rank[cluster1]++;
+        }
       }
-      clusterToHistograms.get(cluster1).addAll(clusterToHistograms.get(cluster2));
-      clusterToHistograms.remove(cluster2);
     }
 
     // Build the clustered histogram list.
+    List<List<Histogram>> clustersByLabel = new ArrayList<List<Histogram>>(numHistograms);
+    for (int i = 0; i < numHistograms; i++) {
+      clustersByLabel.add(null);
+    }
+    for (int i = 0; i < numHistograms; i++) {
+      int clusterLabel = label[find(parent, i)];
+      if (clustersByLabel.get(clusterLabel) == null) {
+        clustersByLabel.set(clusterLabel, new ArrayList<Histogram>());
+      }
+      clustersByLabel.get(clusterLabel).add(histograms[i]);
+    }
     List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
-    for (Map.Entry<Integer, Set<Integer>> entry: clusterToHistograms.entrySet()) {
-      Integer clusterId = entry.getKey();
-      Set<Integer> histograms = entry.getValue();
-
-      List<Histogram> curCluster = new ArrayList<Histogram>();
-      for (Integer histogramIndex: histograms) {
-        curCluster.add(inputHistograms.get(histogramIndex));
+    for (List<Histogram> cluster: clustersByLabel) {
+      if (cluster != null) {
+        clusters.add(cluster);
       }
-      clusters.add(curCluster);
     }
     return clusters;
   }
 
+  /**
+   * The root of <code>i</code>'s tree in a union-find forest, compressing the path to it.
+   */
+  static int find(int parent[], int i) {
+    int root = i;
+    while (parent[root] != root) {
+      root = parent[root];
+    }
+    while (parent[i] != root) {
+      int next = parent[i];
+      parent[i] = root;
+      i = next;
+    }
+    return root;
+  }
+
   //////////////////////////////////////////////////////////////
   // Members
   //////////////////////////////////////////////////////////////
   String histogramType;
-  List<FrequencyPair> normalForm;
+  int typeId = -1;
+  // The normal form: parallel arrays of (per-chunk frequency, overall chunk count)
+  int perChunkFrequencies[];
+  int chunkCounts[];
   double width;
   double residualMass;
   double coverage;
@@ -271,9 +314,10 @@ public class Histogram {
   //////////////////////////////////////////////////////////////
   // Methods
   //////////////////////////////////////////////////////////////
-  public Histogram(String histogramType, List<FrequencyPair> normalForm, double width, double residualMass, double coverage) {
+  public Histogram(String histogramType, int perChunkFrequencies[], int chunkCounts[], double width, double residualMass, double coverage) {
     this.histogramType = histogramType;
-    this.normalForm = normalForm;
+    this.perChunkFrequencies = perChunkFrequencies;
+    this.chunkCounts = chunkCounts;
     this.width = width;
     this.residualMass = residualMass;
     this.coverage = coverage;
@@ -288,6 +332,12 @@ public class Histogram {
   public String getHistogramType() {
     return histogramType;
   }
+  /**
+   * The TokenChunk type id of the histogram's token type, or -1 if unknown.
+   */
+  int getTypeId() {
+    return typeId;
+  }
   public double getWidth() {
     return width;
   }
@@ -301,8 +351,8 @@ public class Histogram {
   public String toString() {
     StringBuffer buf = new StringBuffer();
     buf.append("Histogram:  type=" + histogramType + ", width=" + width + ", residualMass=" + residualMass + ", coverage=" + coverage + ", normalForm=[");
-    for (FrequencyPair fp: normalForm) {
-      buf.append("(" + fp.getPerChunkFrequency() + ", " + fp.getCount() + ") ");
+    for (int i = 0; i < chunkCounts.length; i++) {
+      buf.append("(" + perChunkFrequencies[i] + ", " + chunkCounts[i] + ") ");
     }
     buf.append("]");
     return buf.toString();
@@ -314,30 +364,46 @@ public class Histogram {
    * we preprocess the data with computeSymmetricRelativeEntropy(), then pass the resulting
    * averaged values into this pretty generic method.
    */
-  double computeRelativeEntropy(List<Double> avgCounts) {
+  double computeRelativeEntropy(double avgCounts[]) {
     double total = 0;
-    for (int i = 1; i < normalForm.size(); i++) {
-      double selfOverallChunkCount = normalForm.get(i).getCount();
-      double otherOverallChunkCount = avgCounts.get(i);
+    for (int i = 1; i < chunkCounts.length; i++) {
+      double selfOverallChunkCount = chunkCounts[i];
+      double otherOverallChunkCount = avgCounts[i];
       total += selfOverallChunkCount * Math.log(selfOverallChunkCount / otherOverallChunkCount);
     }
     return total;
   }
 
+  /**
+   * A cheap lower bound on computeSymmetricRelativeEntropy(other).  Every term
+   * of the score is non-negative, and a count that only one normal form has
+   * contributes count * log(2) / 2.  So if the normal forms differ in length,
+   * the longer one's extra counts alone bound the score from below.
+   */
+  double lowerBoundSymmetricRelativeEntropy(Histogram other) {
+    int shared = Math.min(chunkCounts.length, other.chunkCounts.length);
+    int longer[] = (chunkCounts.length > other.chunkCounts.length) ? chunkCounts : other.chunkCounts;
+    double extraMass = 0;
+    for (int i = shared; i < longer.length; i++) {
+      extraMass += longer[i];
+    }
+    return 0.5 * extraMass * LOG_2;
+  }
+
   /**
    * The point of this method is to preprocess the data from two input Histograms,
    * getting it ready for the relative entropy computation.  Without this preprocessing,
    * the rel-entropy computation would be sensitive to varying numbers of components in each histogram.
    */
   double computeSymmetricRelativeEntropy(Histogram other) {
-    List<Double> avgCounts = new ArrayList<Double>();
-    for (int i = 0; i < Math.max(normalForm.size(), other.normalForm.size()); i++) {
-      if ((i < normalForm.size()) && (i < other.normalForm.size())) {
-        avgCounts.add((normalForm.get(i).getCount() + other.normalForm.get(i).getCount()) / 2.0);
-      } else if (i < normalForm.size()) {
-        avgCounts.add(normalForm.get(i).getCount() * 0.5);
+    double avgCounts[] = new double[Math.max(chunkCounts.length, other.chunkCounts.length)];
+    for (int i = 0; i < avgCounts.length; i++) {
+      if ((i < chunkCounts.length) && (i < other.chunkCounts.length)) {
+        avgCounts[i] = (chunkCounts[i] + other.chunkCounts[i]) / 2.0;
+      } else if (i < chunkCounts.length) {
+        avgCounts[i] = chunkCounts[i] * 0.5;
       } else {
-        avgCounts.add(other.normalForm.get(i).getCount() * 0.5);
+        avgCounts[i] = other.chunkCounts[i] * 0.5;
       }
     }
     return 0.5 * this.computeRelativeEntropy(avgCounts) + 0.5 * other.computeRelativeEntropy(avgCounts);
@@ -16,6 +16,11 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import org.apache.avro.Schema;
 import org.apache.avro.io.JsonEncoder;
 import org.apache.avro.io.EncoderFactory;
@@ -26,6 +31,8 @@ import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.conf.Configuration;
 
 /*********************************************************
@@ -41,51 +48,180 @@ public class LearnStructure {
   public static String JSONDATA_FILENAME = "data.avro.json";
   public static String DATA_FILENAME = "data.avro";
   public static String PARSER_FILENAME = "parser.dat";
+  final static int TOKENIZE_BLOCK_SIZE = 1000;
+  final static int MIN_ADAPTIVE_CHUNKS = 100;
+  static int numTokenizerThreads = Runtime.getRuntime().availableProcessors();
+  static ExecutorService tokenizerPool;
+  boolean adaptiveSampling = false;
 
   public LearnStructure() {
   }
+
+  /**
+   * If set, inference runs on growing subsets of the sampled lines and
+   * stops once the result stabilizes (see TypeInference.inferAdaptively()),
+   * instead of always using every sampled line.
+   */
+  public void setAdaptiveSampling(boolean adaptiveSampling) {
+    this.adaptiveSampling = adaptiveSampling;
+  }
+
+  /**
+   * Open the input, decompressing it if its suffix names a Hadoop codec.
+   */
+  static InputStream openInput(FileSystem fs, Path p) throws IOException {
+    CompressionCodec codec = new CompressionCodecFactory(fs.getConf() == null ? new Configuration() : fs.getConf()).getCodec(p);
+    InputStream in = fs.open(p);
+    return (codec == null) ? in : codec.createInputStream(in);
+  }
   
+  /**
+   * The pool shared by every tokenizeLines() call.  It is made on first use
+   * and lives for the life of the process.
+   */
+  static synchronized ExecutorService getTokenizerPool() {
+    if (tokenizerPool == null) {
+      tokenizerPool = Executors.newFixedThreadPool(numTokenizerThreads, new DaemonThreadFactory("tokenizer"));
+    }
+    return tokenizerPool;
+  }
+
+  /**
+   * Tokenize every line into compact TokenChunks.  Blocks of lines are
+   * tokenized in parallel on the shared tokenizer pool.  The result holds one
+   * entry per line, in line order; an entry is null if its line could not be
+   * tokenized.
+   */
+  static List<TokenChunk> tokenizeLines(List<String> lines) throws IOException {
+    int numBlocks = (lines.size() + TOKENIZE_BLOCK_SIZE - 1) / TOKENIZE_BLOCK_SIZE;
+    if (numTokenizerThreads <= 1 || numBlocks <= 1) {
+      return tokenizeBlock(lines);
+    }
+    ExecutorService pool = getTokenizerPool();
+    List<Future<List<TokenChunk>>> blocks = new ArrayList<Future<List<TokenChunk>>>();
+    try {
+      for (int i = 0; i < lines.size(); i += TOKENIZE_BLOCK_SIZE) {
+        final List<String> block = lines.subList(i, Math.min(i + TOKENIZE_BLOCK_SIZE, lines.size()));
+        blocks.add(pool.submit(new Callable<List<TokenChunk>>() {
+            public List<TokenChunk> call() throws IOException {
+              return tokenizeBlock(block);
+            }
+          }));
+      }
+      List<TokenChunk> results = new ArrayList<TokenChunk>(lines.size());
+      for (Future<List<TokenChunk>> block: blocks) {
+        results.addAll(block.get());
+      }
+      return results;
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while tokenizing");
+    } catch (ExecutionException eex) {
+      Throwable cause = eex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      IOException iex = new IOException("Tokenizing failed");
+      iex.initCause(cause);
+      throw iex;
+    } finally {
+      // Don't leave the pool working on a call that has failed
+      for (Future<List<TokenChunk>> block: blocks) {
+        block.cancel(true);
+      }
+    }
+  }
+
+  static List<TokenChunk> tokenizeBlock(List<String> lines) throws IOException {
+    List<TokenChunk> results = new ArrayList<TokenChunk>(lines.size());
+    for (String s: lines) {
+      results.add(Tokenizer.tokenizeChunk(s));
+    }
+    return results;
+  }
+
   /**
    */
   public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose, int maxLines) throws IOException {
+    long startRead = System.currentTimeMillis();
+    List<String> lines = LineSampler.sample(fs, p, maxLines);
+    inferRecordFormat(fs, p, lines, null, startRead, fs2, schemaFile, parseTreeFile, jsonDataFile, avroDataFile, verbose);
+  }
+
+  /**
+   * Infer the format from lines the caller has already sampled from
+   * <code>p</code>, for instance with LineSampler.reservoirSample().  The
+   * whole of <code>p</code> is still read to write the data files.
+   */
+  public void inferRecordFormat(FileSystem fs, Path p, List<String> lines, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose) throws IOException {
+    inferRecordFormat(fs, p, lines, null, System.currentTimeMillis(), fs2, schemaFile, parseTreeFile, jsonDataFile, avroDataFile, verbose);
+  }
+
+  /**
+   * As above, but with adaptive sampling every round also learns from the
+   * lines at the sorted positions in <code>requiredLineNos</code>, such as
+   * the rare layouts a stratified sample keeps.
+   */
+  public void inferRecordFormat(FileSystem fs, Path p, List<String> lines, List<Integer> requiredLineNos, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose) throws IOException {
+    inferRecordFormat(fs, p, lines, requiredLineNos, System.currentTimeMillis(), fs2, schemaFile, parseTreeFile, jsonDataFile, avroDataFile, verbose);
+  }
+
+  void inferRecordFormat(FileSystem fs, Path p, List<String> lines, List<Integer> requiredLineNos, long startRead, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose) throws IOException {
     // Store parse errors and results
     List<Integer> unparseableLineNos = new ArrayList<Integer>();
     List<String> unparseableStrs = new ArrayList<String>();
     List<Integer> parseableLineNos = new ArrayList<Integer>();
-    List<List<Token.AbstractToken>> allChunks = new ArrayList<List<Token.AbstractToken>>();
+    ChunkList allChunks = new ChunkList();
 
     //
-    // Transform the text into a list of "chunks".  A single chunk corresponds to a line of text.  A chunk is a list of Tokens.
+    // Transform the text into a list of "chunks".  A single chunk corresponds to a line of text.  A chunk is a list of Tokens,
+    // kept in compact form (see TokenChunk).  Empty chunks carry no structure, so they are left out.
     //
-    long startRead = System.currentTimeMillis();
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-    try {
-      String s = in.readLine();
-      int lineno = 0;
-      while (s != null) {
-        if (maxLines >= 0 && lineno >= maxLines) {
-          break;
-        }
-        List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
-        if (chunkToks != null) {
-          allChunks.add(chunkToks);
-          parseableLineNos.add(lineno);
-        } else {
-          unparseableStrs.add(s);
-          unparseableLineNos.add(lineno);
+    // The lines may be a sample from across the file (see LineSampler), so
+    // line numbers are positions in the sample.
+    //
+    List<TokenChunk> lineChunks = tokenizeLines(lines);
+    List<Integer> requiredChunks = new ArrayList<Integer>();
+    int nextRequired = 0;
+    for (int sampleNo = 0; sampleNo < lines.size(); sampleNo++) {
+      String s = lines.get(sampleNo);
+      TokenChunk chunk = lineChunks.get(sampleNo);
+      boolean isRequired = false;
+      while (requiredLineNos != null && nextRequired < requiredLineNos.size() && requiredLineNos.get(nextRequired) <= sampleNo) {
+        isRequired |= (requiredLineNos.get(nextRequired++) == sampleNo);
+      }
+      if (chunk != null) {
+        if (chunk.size() > 0) {
+          if (isRequired) {
+            requiredChunks.add(allChunks.size());
+          }
+          allChunks.add(chunk);
         }
-        s = in.readLine();
-        lineno++;
+        parseableLineNos.add(sampleNo);
+      } else {
+        unparseableStrs.add(s);
+        unparseableLineNos.add(sampleNo);
       }
-    } finally {
-      in.close();
     }
 
     //
     // Infer type structure from the tokenized chunks
     //
     long start = System.currentTimeMillis();
-    InferredType typeTree = TypeInference.infer(allChunks);
+    InferredType typeTree;
+    if (adaptiveSampling) {
+      int required[] = new int[requiredChunks.size()];
+      for (int i = 0; i < required.length; i++) {
+        required[i] = requiredChunks.get(i);
+      }
+      typeTree = TypeInference.inferAdaptively(allChunks, MIN_ADAPTIVE_CHUNKS, required);
+    } else {
+      typeTree = TypeInference.infer(allChunks);
+    }
     long end = System.currentTimeMillis();
     double loadTime = (start - startRead) / 1000.0;
     double inferTime = (end - start) / 1000.0;
@@ -131,67 +267,71 @@ public class LearnStructure {
     }
 
     //
-    // Apply the typetree's parser.
+    // Apply the typetree's parser.  Each line is read and parsed once, and
+    // the record goes to both the JSON and the Avro output.
     //
-    if (jsonDataFile != null) {
-      Schema schema = typeTree.getAvroSchema();
-      GenericDatumWriter jsonGDWriter = new GenericDatumWriter(schema);      
-      BufferedOutputStream outJson = new BufferedOutputStream(fs2.create(jsonDataFile));
-      JsonEncoder encoder = EncoderFactory.get().jsonEncoder(schema, outJson);
-      try {
-        in = new BufferedReader(new InputStreamReader(fs.open(p)));
-        try {
-          String str = in.readLine();
-          while (str != null) {
-            GenericContainer gct = typeTree.parse(str);
-
-            if (gct != null) {
-              jsonGDWriter.write(gct, encoder);
-            }
-            str = in.readLine();
-          }      
-        } finally {
-          in.close();
-        }
-      } finally {
-        encoder.flush();
-        outJson.close();
-      }
-    }
-
-    if (avroDataFile != null) {
+    if (jsonDataFile != null || avroDataFile != null) {
       int numGoodParses = 0;
       int lineno = 0;
       Schema schema = typeTree.getAvroSchema();
 
-      GenericDatumWriter gdWriter = new GenericDatumWriter(schema);
-      DataFileWriter outData = new DataFileWriter(gdWriter);
-      outData = outData.create(schema, fs2.create(avroDataFile));
-
+      GenericDatumWriter jsonGDWriter = null;
+      BufferedOutputStream outJson = null;
+      JsonEncoder encoder = null;
+      DataFileWriter outData = null;
       try {
-        in = new BufferedReader(new InputStreamReader(fs.open(p)));
+        if (jsonDataFile != null) {
+          jsonGDWriter = new GenericDatumWriter(schema);
+          outJson = new BufferedOutputStream(fs2.create(jsonDataFile));
+          encoder = EncoderFactory.get().jsonEncoder(schema, outJson);
+        }
+        if (avroDataFile != null) {
+          outData = new DataFileWriter(new GenericDatumWriter(schema));
+          outData = outData.create(schema, fs2.create(avroDataFile));
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(openInput(fs, p)));
         try {
           String str = in.readLine();
           while (str != null) {
             GenericContainer gct = typeTree.parse(str);
             if (gct != null) {
               numGoodParses++;
-              outData.append(gct);
+              if (encoder != null) {
+                jsonGDWriter.write(gct, encoder);
+              }
+              if (outData != null) {
+                outData.append(gct);
+              }
             } else {
-              if (verbose) {
+              if (verbose && outData != null) {
                 System.err.println("unparsed line: '" + str + "'");
               }
             }
             str = in.readLine();
             lineno++;
-          }      
+          }
         } finally {
           in.close();
         }
       } finally {
-        outData.close();
+        try {
+          if (encoder != null) {
+            encoder.flush();
+          }
+        } finally {
+          try {
+            if (outJson != null) {
+              outJson.close();
+            }
+          } finally {
+            if (outData != null) {
+              outData.close();
+            }
+          }
+        }
       }
-      if (verbose) {
+      if (verbose && avroDataFile != null) {
         System.err.println();
         System.err.println("Total # input lines: " + lineno);
         System.err.println("Total # lines parsed correctly: " + numGoodParses);
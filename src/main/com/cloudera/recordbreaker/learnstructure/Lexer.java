@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+
+/*********************************************************
+ * Lexer recognizes Tokenizer's token classes by hand, in a single
+ * left-to-right scan.  A table of character classes decides which
+ * token classes can start at the current character, and each of those
+ * is recognized with a small hand-written matcher instead of a regex.
+ *
+ * Every recognizer accepts exactly what the corresponding regex Pattern
+ * of the original tokenizer accepts, and returns the same end offset that
+ * <code>Matcher.lookingAt()</code> would.  The date matcher tries its
+ * alternatives in the same order as the regex backtracker, so
+ * ambiguous dates are split the same way.  The Patterns are kept in the
+ * test tree as the reference definition; see PatternTokenizer.
+ *********************************************************/
+class Lexer {
+  // Character classes
+  final static int DIGIT = 1;
+  final static int SPACE = 2;
+  final static int MONTH_INITIAL = 4;
+  final static int PERMISSION = 8;
+  final static int SIGN = 16;
+  final static int DOT = 32;
+  final static int STAR = 64;
+  final static int STRING_EXCLUDED = 128;
+
+  // The token classes each character class may start
+  final static int STARTS_IPADDR = DIGIT | STAR;
+  final static int STARTS_DATE = DIGIT | MONTH_INITIAL;
+  final static int STARTS_FLOAT = DIGIT | SIGN | DOT;
+
+  final static int CHAR_CLASSES[] = new int[128];
+
+  static {
+    for (char c = '0'; c <= '9'; c++) {
+      CHAR_CLASSES[c] |= DIGIT;
+    }
+    for (char c: " \t\n\u000B\f\r".toCharArray()) {
+      CHAR_CLASSES[c] |= SPACE;
+    }
+    for (char c: "JFMASONDjfmasond".toCharArray()) {
+      CHAR_CLASSES[c] |= MONTH_INITIAL;
+    }
+    for (char c: "drwx-".toCharArray()) {
+      CHAR_CLASSES[c] |= PERMISSION;
+    }
+    for (char c: "\",;|[]{}<>()'".toCharArray()) {
+      CHAR_CLASSES[c] |= STRING_EXCLUDED;
+    }
+    CHAR_CLASSES['+'] |= SIGN;
+    CHAR_CLASSES['-'] |= SIGN;
+    CHAR_CLASSES['.'] |= DOT;
+    CHAR_CLASSES['*'] |= STAR;
+  }
+
+  static int classOf(char c) {
+    return c < 128 ? CHAR_CLASSES[c] : 0;
+  }
+
+  // Month names, in the order the month regex alternation tries them
+  final static String MONTH_WORDS[] = {"January", "Jan", "jan", "February", "Feb", "feb", "March", "Mar", "mar",
+                                       "April", "Apr", "apr", "May", "may", "June", "Jun", "jun", "July", "Jul", "jul",
+                                       "August", "Aug", "aug", "September", "Sep", "sep", "October", "Oct", "oct",
+                                       "November", "Nov", "nov", "December", "Dec", "dec"};
+
+  // Date elements.  A date layout alternates fields and separators.
+  final static int MONTH_WORD = 0;
+  final static int MONTH_NUM = 1;
+  final static int DAY = 2;
+  final static int YEAR = 3;
+  final static int SEP_SPACE = 4;
+  final static int SEP_DOT = 5;
+  final static int SEP_SLASH = 6;
+
+  /**
+   * A <code>DateLayout</code> is one of the reference date Patterns: three
+   * fields (or two, with no year) and the separator between them.
+   */
+  static class DateLayout {
+    final int elements[];
+    final int dayField;
+    final int monthField;
+    final int yearField;
+
+    DateLayout(int elements[], int dayField, int monthField, int yearField) {
+      this.elements = elements;
+      this.dayField = dayField;
+      this.monthField = monthField;
+      this.yearField = yearField;
+    }
+  }
+
+  // Date layouts, in the order the reference tokenizer tries its date Patterns
+  final static DateLayout DATE_LAYOUTS[];
+
+  static {
+    int seps[] = {SEP_SPACE, SEP_DOT, SEP_SLASH};
+    int months[] = {MONTH_WORD, MONTH_NUM};
+    List<DateLayout> monthFirst = new ArrayList<DateLayout>();
+    List<DateLayout> yearFirst = new ArrayList<DateLayout>();
+    List<DateLayout> dayFirst = new ArrayList<DateLayout>();
+    for (int sep: seps) {
+      for (int month: months) {
+        monthFirst.add(new DateLayout(new int[] {month, sep, DAY, sep, YEAR}, 1, 0, 2));
+        yearFirst.add(new DateLayout(new int[] {YEAR, sep, month, sep, DAY}, 2, 1, 0));
+        dayFirst.add(new DateLayout(new int[] {DAY, sep, month, sep, YEAR}, 0, 1, 2));
+      }
+    }
+    for (int sep: seps) {
+      monthFirst.add(new DateLayout(new int[] {MONTH_WORD, sep, DAY}, 1, 0, -1));
+      dayFirst.add(new DateLayout(new int[] {DAY, sep, MONTH_WORD}, 0, 1, -1));
+    }
+    List<DateLayout> all = new ArrayList<DateLayout>();
+    all.addAll(monthFirst);
+    all.addAll(yearFirst);
+    all.addAll(dayFirst);
+    DATE_LAYOUTS = all.toArray(new DateLayout[all.size()]);
+  }
+
+  /**
+   * Lexes the next token at <code>pos</code>, trying the token classes in
+   * Tokenizer's priority order.  MetaTokens are left to the caller.
+   * Returns the offset just past the token(s) added, or -1 if nothing applies.
+   */
+  static int nextToken(CharSequence s, int pos, int end, List<Token.AbstractToken> outputToks) {
+    int cls = classOf(s.charAt(pos));
+    int newPos;
+    if ((cls & STARTS_IPADDR) != 0 && (newPos = lex(Token.IPADDR_TOKENCLASSID, null, s, pos, end, outputToks)) >= 0) {
+      return newPos;
+    }
+    if ((cls & PERMISSION) != 0 && (newPos = lex(Token.PERMISSIONS_TOKENCLASSID, null, s, pos, end, outputToks)) >= 0) {
+      return newPos;
+    }
+    if ((cls & STARTS_DATE) != 0 && (newPos = lex(Token.DATE_TOKENCLASSID, null, s, pos, end, outputToks)) >= 0) {
+      return newPos;
+    }
+    if ((cls & DIGIT) != 0 && (newPos = lex(Token.TIME_TOKENCLASSID, null, s, pos, end, outputToks)) >= 0) {
+      return newPos;
+    }
+    if ((cls & (DIGIT | DOT)) != 0) {
+      // FLOAT RANGE
+      int mid = unsignedFloatEnd(s, pos, end);
+      if (mid >= 0 && mid < end && s.charAt(mid) == '-') {
+        int rangeEnd = unsignedFloatEnd(s, mid + 1, end);
+        if (rangeEnd >= 0) {
+          outputToks.add(new Token.FloatToken(s.subSequence(pos, mid).toString()));
+          outputToks.add(new Token.CharToken('-'));
+          outputToks.add(new Token.FloatToken(s.subSequence(mid + 1, rangeEnd).toString()));
+          return rangeEnd;
+        }
+      }
+    }
+    if ((cls & DIGIT) != 0) {
+      // INTEGER RANGE
+      int mid = rangeIntEnd(s, pos, end);
+      if (mid >= 0 && mid < end && s.charAt(mid) == '-') {
+        int rangeEnd = rangeIntEnd(s, mid + 1, end);
+        if (rangeEnd >= 0) {
+          outputToks.add(new Token.IntToken(s.subSequence(pos, mid).toString()));
+          outputToks.add(new Token.CharToken('-'));
+          outputToks.add(new Token.IntToken(s.subSequence(mid + 1, rangeEnd).toString()));
+          return rangeEnd;
+        }
+      }
+    }
+    if ((cls & STARTS_FLOAT) != 0 && (newPos = lex(Token.FLOAT_TOKENCLASSID, null, s, pos, end, outputToks)) >= 0) {
+      return newPos;
+    }
+    if ((cls & (DIGIT | SIGN)) != 0 && (newPos = lex(Token.INT_TOKENCLASSID, null, s, pos, end, outputToks)) >= 0) {
+      return newPos;
+    }
+    if ((cls & (SPACE | STRING_EXCLUDED)) == 0 && (newPos = lex(Token.STRING_TOKENCLASSID, null, s, pos, end, outputToks)) >= 0) {
+      return newPos;
+    }
+    if ((cls & SPACE) == 0) {
+      return lex(Token.CHAR_TOKENCLASSID, null, s, pos, end, outputToks);
+    }
+    if ((newPos = lex(Token.EOL_TOKENCLASSID, null, s, pos, end, outputToks)) >= 0) {
+      return newPos;
+    }
+    return lex(Token.WHITESPACE_TOKENCLASSID, null, s, pos, end, outputToks);
+  }
+
+  /**
+   * The hand-written equivalent of the reference tokenizer's pattern-based attemptParse().
+   * Tries the token-class at <code>start</code>, reading no further than
+   * <code>end</code>.  Returns the offset just past the token, or -1 if it
+   * does not parse.
+   */
+  static int lex(int tokenClassId, String tokenParameter, CharSequence s, int start, int end, List<Token.AbstractToken> outputToks) {
+    if (start >= end) {
+      return -1;
+    }
+    switch (tokenClassId) {
+    case Token.IPADDR_TOKENCLASSID: {
+      int tokEnd = ipAddrEnd(s, start, end);
+      if (tokEnd >= 0) {
+        outputToks.add(new Token.IPAddrToken(s.subSequence(start, tokEnd).toString()));
+      }
+      return tokEnd;
+    }
+    case Token.PERMISSIONS_TOKENCLASSID: {
+      int tokEnd = start;
+      while (tokEnd < end && (classOf(s.charAt(tokEnd)) & PERMISSION) != 0) {
+        tokEnd++;
+      }
+      if (tokEnd - start < 9) {
+        return -1;
+      }
+      outputToks.add(new Token.PermissionBits(s.subSequence(start, tokEnd).toString()));
+      return tokEnd;
+    }
+    case Token.DATE_TOKENCLASSID: {
+      int bounds[] = new int[10];
+      for (DateLayout layout: DATE_LAYOUTS) {
+        if (! matchDate(s, end, layout.elements, 0, start, bounds)) {
+          continue;
+        }
+        String day = field(s, bounds, layout.dayField);
+        String month = field(s, bounds, layout.monthField);
+        try {
+          if (layout.yearField < 0) {
+            outputToks.add(new Token.DateToken(day, month));
+          } else {
+            outputToks.add(new Token.DateToken(day, month, field(s, bounds, layout.yearField)));
+          }
+        } catch (IOException iex) {
+          continue;
+        }
+        return bounds[2 * (layout.elements.length - 1) + 1];
+      }
+      return -1;
+    }
+    case Token.TIME_TOKENCLASSID: {
+      if (! isTwoDigits(s, start, end) || ! isChar(s, start + 2, end, ':') || ! isTwoDigits(s, start + 3, end)) {
+        return -1;
+      }
+      String hr = s.subSequence(start, start + 2).toString();
+      String min = s.subSequence(start + 3, start + 5).toString();
+      if (isChar(s, start + 5, end, ':') && isTwoDigits(s, start + 6, end)) {
+        outputToks.add(new Token.TimeToken(hr, min, s.subSequence(start + 6, start + 8).toString()));
+        return start + 8;
+      }
+      outputToks.add(new Token.TimeToken(hr, min, "00"));
+      return start + 5;
+    }
+    case Token.CHAR_TOKENCLASSID: {
+      char c = s.charAt(start);
+      if ((classOf(c) & SPACE) != 0) {
+        return -1;
+      }
+      if (tokenParameter != null && ! (tokenParameter.length() == 1 && tokenParameter.charAt(0) == c)) {
+        return -1;
+      }
+      outputToks.add(new Token.CharToken(c));
+      return start + 1;
+    }
+    case Token.FLOAT_TOKENCLASSID: {
+      int tokEnd = floatEnd(s, start, end);
+      if (tokEnd >= 0) {
+        outputToks.add(new Token.FloatToken(s.subSequence(start, tokEnd).toString()));
+      }
+      return tokEnd;
+    }
+    case Token.INT_TOKENCLASSID: {
+      int tokEnd = intEnd(s, start, end);
+      if (tokEnd >= 0) {
+        String str = s.subSequence(start, tokEnd).toString();
+        try {
+          outputToks.add(new Token.IntToken(str));
+        } catch (NumberFormatException nfe) {
+          outputToks.add(new Token.StringToken(str));
+        }
+      }
+      return tokEnd;
+    }
+    case Token.STRING_TOKENCLASSID: {
+      int tokEnd = start;
+      while (tokEnd < end && (classOf(s.charAt(tokEnd)) & (SPACE | STRING_EXCLUDED)) == 0) {
+        tokEnd++;
+      }
+      if (tokEnd - start < 2 || intEnd(s, start, end) >= 0 || floatEnd(s, start, end) >= 0) {
+        return -1;
+      }
+      outputToks.add(new Token.StringToken(s.subSequence(start, tokEnd).toString()));
+      return tokEnd;
+    }
+    case Token.EOL_TOKENCLASSID: {
+      if (s.charAt(start) != '\n') {
+        return -1;
+      }
+      outputToks.add(new Token.EOLToken());
+      return start + 1;
+    }
+    case Token.WHITESPACE_TOKENCLASSID: {
+      int tokEnd = spaceEnd(s, start, end);
+      if (tokEnd == start) {
+        return -1;
+      }
+      outputToks.add(new Token.WhitespaceToken(s.subSequence(start, tokEnd).toString()));
+      return tokEnd;
+    }
+    default: {
+      return -1;
+    }
+    }
+  }
+
+  static boolean isDigit(CharSequence s, int i, int end) {
+    if (i >= end) {
+      return false;
+    }
+    char c = s.charAt(i);
+    return c >= '0' && c <= '9';
+  }
+
+  static boolean isChar(CharSequence s, int i, int end, char c) {
+    return i < end && s.charAt(i) == c;
+  }
+
+  static boolean isTwoDigits(CharSequence s, int i, int end) {
+    return isDigit(s, i, end) && isDigit(s, i + 1, end);
+  }
+
+  static int digitsEnd(CharSequence s, int i, int end) {
+    while (isDigit(s, i, end)) {
+      i++;
+    }
+    return i;
+  }
+
+  static int spaceEnd(CharSequence s, int i, int end) {
+    while (i < end && (classOf(s.charAt(i)) & SPACE) != 0) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * <code>(?:\d+\.){3,}\d+</code> or <code>\*\.(?:(?:\d+|\*)\.)*(?:\d+|\*)</code>
+   */
+  static int ipAddrEnd(CharSequence s, int start, int end) {
+    if (isDigit(s, start, end)) {
+      int tokEnd = digitsEnd(s, start, end);
+      int numParts = 1;
+      while (isChar(s, tokEnd, end, '.') && isDigit(s, tokEnd + 1, end)) {
+        tokEnd = digitsEnd(s, tokEnd + 1, end);
+        numParts++;
+      }
+      return numParts >= 4 ? tokEnd : -1;
+    }
+    if (isChar(s, start, end, '*') && isChar(s, start + 1, end, '.')) {
+      int tokEnd = wildcardPartEnd(s, start + 2, end);
+      if (tokEnd < 0) {
+        return -1;
+      }
+      int next;
+      while (isChar(s, tokEnd, end, '.') && (next = wildcardPartEnd(s, tokEnd + 1, end)) >= 0) {
+        tokEnd = next;
+      }
+      return tokEnd;
+    }
+    return -1;
+  }
+
+  static int wildcardPartEnd(CharSequence s, int i, int end) {
+    if (isDigit(s, i, end)) {
+      return digitsEnd(s, i, end);
+    }
+    return isChar(s, i, end, '*') ? i + 1 : -1;
+  }
+
+  /**
+   * <code>\d*\.\d+</code>
+   */
+  static int unsignedFloatEnd(CharSequence s, int i, int end) {
+    int dot = digitsEnd(s, i, end);
+    if (isChar(s, dot, end, '.') && isDigit(s, dot + 1, end)) {
+      return digitsEnd(s, dot + 1, end);
+    }
+    return -1;
+  }
+
+  /**
+   * <code>[+-]?\d*\.\d+</code>
+   */
+  static int floatEnd(CharSequence s, int i, int end) {
+    if (isChar(s, i, end, '+') || isChar(s, i, end, '-')) {
+      i++;
+    }
+    return unsignedFloatEnd(s, i, end);
+  }
+
+  /**
+   * <code>[-+]?[1-9][0-9]*</code>
+   */
+  static int intEnd(CharSequence s, int i, int end) {
+    if (isChar(s, i, end, '+') || isChar(s, i, end, '-')) {
+      i++;
+    }
+    if (! isDigit(s, i, end) || s.charAt(i) == '0') {
+      return -1;
+    }
+    return digitsEnd(s, i + 1, end);
+  }
+
+  /**
+   * <code>[1-9][0-9]+</code>, one side of an integer range
+   */
+  static int rangeIntEnd(CharSequence s, int i, int end) {
+    if (! isDigit(s, i, end) || s.charAt(i) == '0' || ! isDigit(s, i + 1, end)) {
+      return -1;
+    }
+    return digitsEnd(s, i + 1, end);
+  }
+
+  static String field(CharSequence s, int bounds[], int field) {
+    return s.subSequence(bounds[4 * field], bounds[4 * field + 1]).toString();
+  }
+
+  /**
+   * Matches date elements <code>k</code> onwards at <code>pos</code>, trying
+   * each element's possible lengths in the order the regex engine would.
+   * Element <code>k</code> spans <code>bounds[2k]</code> to <code>bounds[2k+1]</code>.
+   */
+  static boolean matchDate(CharSequence s, int end, int elements[], int k, int pos, int bounds[]) {
+    if (k == elements.length) {
+      return true;
+    }
+    bounds[2 * k] = pos;
+    switch (elements[k]) {
+    case MONTH_WORD: {
+      for (String word: MONTH_WORDS) {
+        if (regionMatches(s, pos, end, word) && matchDateAt(s, end, elements, k, pos + word.length(), bounds)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    case MONTH_NUM: {
+      // [01]*\d
+      int binaryEnd = pos;
+      while (isChar(s, binaryEnd, end, '0') || isChar(s, binaryEnd, end, '1')) {
+        binaryEnd++;
+      }
+      for (int i = binaryEnd; i >= pos; i--) {
+        if (isDigit(s, i, end) && matchDateAt(s, end, elements, k, i + 1, bounds)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    case DAY: {
+      // [0123]?\d
+      char c = pos < end ? s.charAt(pos) : 0;
+      if (c >= '0' && c <= '3' && isDigit(s, pos + 1, end) && matchDateAt(s, end, elements, k, pos + 2, bounds)) {
+        return true;
+      }
+      return isDigit(s, pos, end) && matchDateAt(s, end, elements, k, pos + 1, bounds);
+    }
+    case YEAR: {
+      // [12]\d{3}
+      char c = pos < end ? s.charAt(pos) : 0;
+      return (c == '1' || c == '2') && isDigit(s, pos + 1, end) && isDigit(s, pos + 2, end) && isDigit(s, pos + 3, end) &&
+        matchDateAt(s, end, elements, k, pos + 4, bounds);
+    }
+    case SEP_SPACE: {
+      for (int i = spaceEnd(s, pos, end); i > pos; i--) {
+        if (matchDateAt(s, end, elements, k, i, bounds)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    case SEP_DOT: {
+      return isChar(s, pos, end, '.') && matchDateAt(s, end, elements, k, pos + 1, bounds);
+    }
+    case SEP_SLASH: {
+      return isChar(s, pos, end, '/') && matchDateAt(s, end, elements, k, pos + 1, bounds);
+    }
+    default: {
+      return false;
+    }
+    }
+  }
+
+  /**
+   * Ends element <code>k</code> at <code>elementEnd</code> and matches the rest.
+   */
+  static boolean matchDateAt(CharSequence s, int end, int elements[], int k, int elementEnd, int bounds[]) {
+    bounds[2 * k + 1] = elementEnd;
+    return matchDate(s, end, elements, k + 1, elementEnd, bounds);
+  }
+
+  static boolean regionMatches(CharSequence s, int pos, int end, String word) {
+    if (pos + word.length() > end) {
+      return false;
+    }
+    for (int i = 0; i < word.length(); i++) {
+      if (s.charAt(pos + i) != word.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
+import java.util.Map;
+import java.util.List;
+import java.util.Random;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/*********************************************************
+ * LineSampler pulls a representative set of lines from a text file
+ * without reading all of it.
+ *
+ * A file that fits in the byte budget is read from the start, as before.
+ * A larger one is sampled from several evenly spaced regions: the head,
+ * the middle, and the tail.  Each region gets an equal share of the
+ * budget and of the line limit.  The reader seeks to each region, skips
+ * the partial line at its start, and drops the partial line at its end,
+ * so every sample is a whole line.  The head region always comes first,
+ * so a header line is still line 0.
+ *
+ * Compressed files can't seek, so they are read from the start.
+ *
+ * reservoirSample() reads the same bounded regions, but keeps every
+ * whole line in them as a candidate, and then draws a uniform sample of
+ * those candidates.  It can also stratify by line layout, so that rare
+ * kinds of line are not lost among common ones.
+ *********************************************************/
+public class LineSampler {
+  public final static long DEFAULT_BYTE_BUDGET = 4 * 1024 * 1024;
+  public final static int DEFAULT_NUM_REGIONS = 8;
+  public final static int DEFAULT_MIN_PER_SHAPE = 5;
+  public final static long DEFAULT_SEED = 0x5eed;
+
+  /**
+   * Up to <code>maxLines</code> lines, using the default budget and region count.
+   * A negative <code>maxLines</code> reads the whole file.
+   */
+  public static List<String> sample(FileSystem fs, Path p, int maxLines) throws IOException {
+    return sample(fs, p, maxLines, DEFAULT_BYTE_BUDGET, DEFAULT_NUM_REGIONS);
+  }
+
+  public static List<String> sample(FileSystem fs, Path p, int maxLines, long byteBudget, int numRegions) throws IOException {
+    long fileLen = fs.getFileStatus(p).getLen();
+    boolean isCompressed = new CompressionCodecFactory(fs.getConf() == null ? new Configuration() : fs.getConf()).getCodec(p) != null;
+    if (maxLines < 0 || numRegions < 2 || fileLen <= byteBudget || isCompressed) {
+      return readHead(fs, p, maxLines);
+    }
+
+    int linesPerRegion = Math.max(1, (maxLines + numRegions - 1) / numRegions);
+    return readRegions(fs, p, fileLen, maxLines, linesPerRegion, byteBudget, numRegions);
+  }
+
+  /**
+   * Read <code>numRegions</code> evenly spaced regions that together fill the
+   * byte budget, keeping up to <code>linesPerRegion</code> whole lines from
+   * each and <code>maxLines</code> in all.  The file must be larger than the
+   * budget and seekable.
+   */
+  static List<String> readRegions(FileSystem fs, Path p, long fileLen, int maxLines, int linesPerRegion, long byteBudget, int numRegions) throws IOException {
+    long regionBytes = byteBudget / numRegions;
+    List<String> lines = new ArrayList<String>();
+    FSDataInputStream in = fs.open(p);
+    try {
+      byte[] buf = new byte[(int) regionBytes];
+      for (int i = 0; i < numRegions && lines.size() < maxLines; i++) {
+        // Regions are evenly spaced from the head to the tail.  Since the
+        // file is larger than the budget, they never overlap.
+        long offset = (i * (fileLen - regionBytes)) / (numRegions - 1);
+        in.seek(offset);
+        int numRead = 0;
+        int n = 0;
+        while (numRead < buf.length && (n = in.read(buf, numRead, buf.length - numRead)) > 0) {
+          numRead += n;
+        }
+        boolean reachesEnd = (offset + numRead >= fileLen);
+        int maxForRegion = Math.min(linesPerRegion, maxLines - lines.size());
+        splitLines(buf, numRead, offset > 0, reachesEnd, maxForRegion, lines);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Every whole line within the byte budget: the whole file if it fits,
+   * the budget's regions if it is larger, or the first budget's worth of
+   * a compressed file.
+   */
+  static List<String> readBudget(FileSystem fs, Path p, long byteBudget, int numRegions) throws IOException {
+    long fileLen = fs.getFileStatus(p).getLen();
+    boolean isCompressed = new CompressionCodecFactory(fs.getConf() == null ? new Configuration() : fs.getConf()).getCodec(p) != null;
+    if (numRegions >= 2 && fileLen > byteBudget && ! isCompressed) {
+      return readRegions(fs, p, fileLen, Integer.MAX_VALUE, Integer.MAX_VALUE, byteBudget, numRegions);
+    }
+    byte[] buf = new byte[(int) (isCompressed ? byteBudget : Math.min(byteBudget, fileLen))];
+    InputStream in = LearnStructure.openInput(fs, p);
+    try {
+      int numRead = 0;
+      int n = 0;
+      while (numRead < buf.length && (n = in.read(buf, numRead, buf.length - numRead)) > 0) {
+        numRead += n;
+      }
+      boolean reachesEnd = (numRead < buf.length) || (in.read() < 0);
+      List<String> lines = new ArrayList<String>();
+      splitLines(buf, numRead, false, reachesEnd, Integer.MAX_VALUE, lines);
+      return lines;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Up to <code>maxLines</code> lines drawn from the default byte budget.
+   * See reservoirSample(FileSystem, Path, int, int, long, long, int).
+   */
+  public static List<String> reservoirSample(FileSystem fs, Path p, int maxLines, int minPerShape) throws IOException {
+    return reservoirSample(fs, p, maxLines, minPerShape, DEFAULT_SEED, DEFAULT_BYTE_BUDGET, DEFAULT_NUM_REGIONS);
+  }
+
+  public static List<String> reservoirSample(FileSystem fs, Path p, int maxLines, int minPerShape, long seed, long byteBudget, int numRegions) throws IOException {
+    return reservoirSample(fs, p, maxLines, minPerShape, seed, byteBudget, numRegions, null);
+  }
+
+  /**
+   * Read the lines within the byte budget (see readBudget()) and return up
+   * to <code>maxLines</code> of them, in file order.
+   *
+   * The first <code>minPerShape</code> lines of each line layout (see
+   * Tokenizer.layoutOf()) are kept, so a rare layout gets at least that many samples.  At most half
+   * of <code>maxLines</code> goes to these per-shape lines; once that is used
+   * up, later lines only compete for the rest.  All other lines are sampled uniformly with a
+   * reservoir.  Line 0 is always kept, in case it is a header.
+   *
+   * If <code>stratifiedOut</code> is not null, the positions in the result
+   * of line 0 and the per-shape lines are added to it, in order.  A caller
+   * that learns from a subset of the sample should keep these, or the rare
+   * layouts are lost again.
+   *
+   * The same <code>seed</code> gives the same sample.  A negative
+   * <code>maxLines</code> reads the whole file.
+   */
+  public static List<String> reservoirSample(FileSystem fs, Path p, int maxLines, int minPerShape, long seed, long byteBudget, int numRegions, List<Integer> stratifiedOut) throws IOException {
+    if (maxLines < 0) {
+      return readHead(fs, p, maxLines);
+    }
+    Random r = new Random(seed);
+    int maxStratified = (minPerShape > 0) ? maxLines / 2 : 0;
+    Map<String, Integer> shapeCounts = new HashMap<String, Integer>();
+    List<SampledLine> stratified = new ArrayList<SampledLine>();
+    List<SampledLine> reservoir = new ArrayList<SampledLine>();
+    long numCandidates = 0;
+
+    List<String> candidates = readBudget(fs, p, byteBudget, numRegions);
+    for (int lineNo = 0; maxLines > 0 && lineNo < candidates.size(); lineNo++) {
+      String s = candidates.get(lineNo);
+      if (lineNo == 0) {
+        stratified.add(new SampledLine(lineNo, s, true));
+      } else {
+        // Keep the line for its shape, if the shape is still short of samples
+        boolean kept = false;
+        if (stratified.size() < maxStratified) {
+          String shape = Tokenizer.layoutOf(s);
+          Integer count = shapeCounts.get(shape);
+          if (count == null) {
+            count = 0;
+          }
+          if (count < minPerShape) {
+            shapeCounts.put(shape, count + 1);
+            stratified.add(new SampledLine(lineNo, s, true));
+            kept = true;
+          }
+        }
+
+        // Otherwise it's a candidate for the uniform reservoir
+        if (! kept) {
+          numCandidates++;
+          if (reservoir.size() < maxLines) {
+            reservoir.add(new SampledLine(lineNo, s, false));
+          } else {
+            long j = (long) (r.nextDouble() * numCandidates);
+            if (j < maxLines) {
+              reservoir.set((int) j, new SampledLine(lineNo, s, false));
+            }
+          }
+        }
+      }
+    }
+
+    // The reservoir is a uniform sample, so a random subset of it is too
+    int numFromReservoir = Math.max(0, maxLines - stratified.size());
+    if (reservoir.size() > numFromReservoir) {
+      Collections.shuffle(reservoir, r);
+      reservoir = reservoir.subList(0, numFromReservoir);
+    }
+    List<SampledLine> samples = new ArrayList<SampledLine>(stratified);
+    samples.addAll(reservoir);
+    Collections.sort(samples);
+
+    List<String> lines = new ArrayList<String>(samples.size());
+    for (SampledLine sample: samples) {
+      if (sample.isStratified && stratifiedOut != null) {
+        stratifiedOut.add(lines.size());
+      }
+      lines.add(sample.line);
+    }
+    return lines;
+  }
+
+  static class SampledLine implements Comparable<SampledLine> {
+    long lineNo;
+    String line;
+    boolean isStratified;
+    SampledLine(long lineNo, String line, boolean isStratified) {
+      this.lineNo = lineNo;
+      this.line = line;
+      this.isStratified = isStratified;
+    }
+    public int compareTo(SampledLine other) {
+      return (lineNo < other.lineNo) ? -1 : ((lineNo == other.lineNo) ? 0 : 1);
+    }
+  }
+
+  /**
+   * Split <code>buf[0..len)</code> into lines the way BufferedReader.readLine()
+   * would, ending lines at \n, \r or \r\n.  A leading partial line is skipped
+   * if <code>skipFirst</code>; a trailing partial line is kept only if
+   * <code>isEnd</code>.
+   */
+  static void splitLines(byte[] buf, int len, boolean skipFirst, boolean isEnd, int maxLines, List<String> lines) {
+    int pos = 0;
+    if (skipFirst) {
+      while (pos < len && buf[pos] != '\n' && buf[pos] != '\r') {
+        pos++;
+      }
+      pos = skipTerminator(buf, pos, len);
+    }
+    int numAdded = 0;
+    while (pos < len && numAdded < maxLines) {
+      int end = pos;
+      while (end < len && buf[end] != '\n' && buf[end] != '\r') {
+        end++;
+      }
+      if (end == len && ! isEnd) {
+        break;
+      }
+      lines.add(new String(buf, pos, end - pos));
+      numAdded++;
+      pos = skipTerminator(buf, end, len);
+    }
+  }
+
+  static int skipTerminator(byte[] buf, int pos, int len) {
+    if (pos < len && buf[pos] == '\r') {
+      pos++;
+      if (pos < len && buf[pos] == '\n') {
+        pos++;
+      }
+    } else if (pos < len && buf[pos] == '\n') {
+      pos++;
+    }
+    return pos;
+  }
+
+  static List<String> readHead(FileSystem fs, Path p, int maxLines) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(LearnStructure.openInput(fs, p)));
+    try {
+      String s = null;
+      while ((maxLines < 0 || lines.size() < maxLines) && (s = in.readLine()) != null) {
+        lines.add(s);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+}
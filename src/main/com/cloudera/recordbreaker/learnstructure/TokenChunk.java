@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*********************************************************
+ * TokenChunk is the compact form of a tokenized line.  Instead of one
+ * Token object per token, it keeps parallel int arrays: an interned
+ * type id for each token, and the token's start and end offsets in the
+ * original line.  Token objects are only built when inference asks for
+ * a sample value, by re-reading the token's text.
+ *
+ * The type id stands for the token's getId() string, so two tokens have
+ * the same type id exactly when their getId() strings are equal.
+ *
+ * A few tokens can't be rebuilt from the line's text, such as the
+ * rewritten fields of a CSV line.  Those chunks keep their Token objects.
+ *********************************************************/
+public class TokenChunk {
+  ///////////////////////////////////////////////////
+  // Interned token types
+  ///////////////////////////////////////////////////
+  //
+  // Only CharTokens carry a parameter, so there is at most one type per
+  // token class plus one per distinct character.  Lookups of known types
+  // take no lock: ids are found in a concurrent map, and a type's string
+  // and class are written to the arrays before its id is published.
+  //
+  static Object internLock = new Object();
+  static ConcurrentHashMap<String, Integer> typeIdsByStr = new ConcurrentHashMap<String, Integer>();
+  static volatile String typeStrs[] = new String[256];
+  static volatile int typeClassIds[] = new int[256];
+  static volatile int numTypes = 0;
+  static int classTypeIds[] = new int[Token.NOOP_TOKENCLASSID + 1];
+  static int asciiCharTypeIds[] = new int[128];
+
+  static {
+    for (int classId = 0; classId < classTypeIds.length; classId++) {
+      classTypeIds[classId] = internType(classId, null);
+    }
+    for (char c = 0; c < asciiCharTypeIds.length; c++) {
+      asciiCharTypeIds[c] = internType(Token.CHAR_TOKENCLASSID, "" + c);
+    }
+  }
+
+  static int internType(int classId, String tokenParameter) {
+    String typeStr = Token.AbstractToken.getStrDesc(classId, tokenParameter);
+    Integer typeId = typeIdsByStr.get(typeStr);
+    if (typeId != null) {
+      return typeId;
+    }
+    synchronized (internLock) {
+      typeId = typeIdsByStr.get(typeStr);
+      if (typeId == null) {
+        typeId = numTypes;
+        if (typeId == typeStrs.length) {
+          String newTypeStrs[] = new String[typeStrs.length * 2];
+          int newTypeClassIds[] = new int[typeClassIds.length * 2];
+          System.arraycopy(typeStrs, 0, newTypeStrs, 0, typeId);
+          System.arraycopy(typeClassIds, 0, newTypeClassIds, 0, typeId);
+          typeStrs = newTypeStrs;
+          typeClassIds = newTypeClassIds;
+        }
+        typeStrs[typeId] = typeStr;
+        typeClassIds[typeId] = classId;
+        typeIdsByStr.put(typeStr, typeId);
+        numTypes = typeId + 1;
+      }
+      return typeId;
+    }
+  }
+
+  /**
+   * The type id of a token with the given class, and parameter if it's a CharToken.
+   */
+  static int getTypeId(int classId, char c) {
+    if (classId != Token.CHAR_TOKENCLASSID) {
+      return classTypeIds[classId];
+    } else if (c < asciiCharTypeIds.length) {
+      return asciiCharTypeIds[c];
+    } else {
+      return internType(classId, "" + c);
+    }
+  }
+
+  static int getTypeId(Token.AbstractToken tok) {
+    if (tok.getClassId() == Token.CHAR_TOKENCLASSID) {
+      return getTypeId(Token.CHAR_TOKENCLASSID, ((Token.CharToken) tok).getChar());
+    } else if (tok.tokenParameter == null && tok.getClassId() < classTypeIds.length) {
+      return classTypeIds[tok.getClassId()];
+    } else {
+      return internType(tok.getClassId(), tok.tokenParameter);
+    }
+  }
+
+  /**
+   * The getId() string of tokens with the given type id.
+   */
+  static String getTypeStr(int typeId) {
+    return typeStrs[typeId];
+  }
+
+  static int getTypeClassId(int typeId) {
+    return typeClassIds[typeId];
+  }
+
+  static int getNumTypes() {
+    return numTypes;
+  }
+
+  ///////////////////////////////////////////////////
+  // Members
+  ///////////////////////////////////////////////////
+  final CharSequence line;
+  final int limit;
+  final int typeIds[];
+  final int starts[];
+  final int ends[];
+  final TokenChunk contents[];
+  final Token.AbstractToken tokens[];
+
+  /**
+   * <code>limit</code> is where lexing stopped, so dates and times can be
+   * re-lexed exactly as they were first read.  <code>contents</code> holds
+   * each MetaToken's contents, and <code>tokens</code> holds tokens that
+   * can't be rebuilt from text; either may be null.
+   */
+  TokenChunk(CharSequence line, int limit, int typeIds[], int starts[], int ends[], TokenChunk contents[], Token.AbstractToken tokens[]) {
+    this.line = line;
+    this.limit = limit;
+    this.typeIds = typeIds;
+    this.starts = starts;
+    this.ends = ends;
+    this.contents = contents;
+    this.tokens = tokens;
+  }
+
+  /**
+   * Wrap a list of Token objects.  The tokens are kept as they are.
+   */
+  public static TokenChunk fromTokens(List<Token.AbstractToken> toks) {
+    int typeIds[] = new int[toks.size()];
+    TokenChunk contents[] = null;
+    Token.AbstractToken tokens[] = toks.toArray(new Token.AbstractToken[toks.size()]);
+    for (int i = 0; i < tokens.length; i++) {
+      typeIds[i] = getTypeId(tokens[i]);
+      if (tokens[i] instanceof Token.MetaToken) {
+        if (contents == null) {
+          contents = new TokenChunk[tokens.length];
+        }
+        List<Token.AbstractToken> middle = ((Token.MetaToken) tokens[i]).getMiddleChunk();
+        contents[i] = (middle == null) ? null : fromTokens(middle);
+      }
+    }
+    return new TokenChunk(null, 0, typeIds, null, null, contents, tokens);
+  }
+
+  /**
+   * The token types alone, without the line, for Tokenizer's layout cache.
+   * Null if the chunk keeps Token objects, as they can't be laid over
+   * another line.
+   */
+  TokenChunk layout() {
+    if (tokens != null) {
+      return null;
+    }
+    TokenChunk layoutContents[] = null;
+    if (contents != null) {
+      layoutContents = new TokenChunk[contents.length];
+      for (int i = 0; i < contents.length; i++) {
+        if (contents[i] != null && (layoutContents[i] = contents[i].layout()) == null) {
+          return null;
+        }
+      }
+    }
+    return new TokenChunk(null, 0, typeIds, null, null, layoutContents, null);
+  }
+
+  /**
+   * Lex another line, expecting this layout's token classes in order.  Each
+   * token is read from the new line just as Tokenizer.tokenizeChunk() would
+   * read it, so the offsets and values are the new line's own.  Returns
+   * null as soon as a token's class differs from the layout's, or if the
+   * line would get the CSV special case.
+   */
+  TokenChunk withLine(CharSequence newLine) {
+    return withLine(newLine, 0, newLine.length(), new ArrayList<Token.AbstractToken>(3));
+  }
+
+  private TokenChunk withLine(CharSequence s, int start, int end, List<Token.AbstractToken> lexed) {
+    int numToks = typeIds.length;
+    int newTypeIds[] = new int[numToks];
+    int newStarts[] = new int[numToks];
+    int newEnds[] = new int[numToks];
+    TokenChunk newContents[] = (contents == null) ? null : new TokenChunk[numToks];
+    int commaCount = 0;
+
+    int pos = start;
+    int i = 0;
+    while (i < numToks) {
+      if (pos >= end) {
+        return null;
+      }
+      int classId = getTypeClassId(typeIds[i]);
+      int closeIndex = Tokenizer.closeIndexOf(s, pos, end);
+      if (classId == Token.META_TOKENCLASSID || closeIndex >= 0) {
+        if (classId != Token.META_TOKENCLASSID || closeIndex < 0) {
+          return null;
+        }
+        TokenChunk middle = contents[i].withLine(s, pos + 1, closeIndex, lexed);
+        if (middle == null) {
+          return null;
+        }
+        newContents[i] = middle;
+        newTypeIds[i] = typeIds[i];
+        newStarts[i] = pos;
+        newEnds[i] = closeIndex + 1;
+        i++;
+        pos = closeIndex + 1;
+        continue;
+      }
+
+      // Plain whitespace and punctuation can't start any other token
+      char c = s.charAt(pos);
+      int charClass = Lexer.classOf(c);
+      if (classId == Token.WHITESPACE_TOKENCLASSID && (charClass & Lexer.SPACE) != 0 && c != '\n') {
+        newTypeIds[i] = typeIds[i];
+        newStarts[i] = pos;
+        newEnds[i] = pos = Lexer.spaceEnd(s, pos, end);
+        i++;
+        continue;
+      }
+      if (classId == Token.CHAR_TOKENCLASSID && charClass == Lexer.STRING_EXCLUDED) {
+        newTypeIds[i] = getTypeId(Token.CHAR_TOKENCLASSID, c);
+        newStarts[i] = pos;
+        newEnds[i] = ++pos;
+        i++;
+        if (c == ',') {
+          commaCount++;
+        }
+        continue;
+      }
+
+      lexed.clear();
+      int newPos = Lexer.nextToken(s, pos, end, lexed);
+      if (newPos < 0 || i + lexed.size() > numToks) {
+        return null;
+      }
+      // A range lexes as three tokens: the low value, '-', and the high value
+      int dash = pos;
+      if (lexed.size() > 1) {
+        while (s.charAt(dash) != '-') {
+          dash++;
+        }
+      }
+      for (int j = 0; j < lexed.size(); j++) {
+        Token.AbstractToken tok = lexed.get(j);
+        if (tok.getClassId() != getTypeClassId(typeIds[i])) {
+          return null;
+        }
+        if (tok instanceof Token.CharToken && ((Token.CharToken) tok).getChar() == ',') {
+          commaCount++;
+        }
+        newTypeIds[i] = getTypeId(tok);
+        newStarts[i] = (j == 0) ? pos : dash + j - 1;
+        newEnds[i] = (j == lexed.size() - 1) ? newPos : dash + j;
+        i++;
+      }
+      pos = newPos;
+    }
+    if (pos != end || Tokenizer.isCsv(commaCount, numToks)) {
+      return null;
+    }
+    return new TokenChunk(s, end, newTypeIds, newStarts, newEnds, newContents, null);
+  }
+
+  public int size() {
+    return typeIds.length;
+  }
+
+  public int getTypeId(int i) {
+    return typeIds[i];
+  }
+
+  public boolean isMetaToken(int i) {
+    return contents != null && contents[i] != null;
+  }
+
+  /**
+   * The contents of the i'th token, which must be a MetaToken.
+   */
+  public TokenChunk getContents(int i) {
+    return contents[i];
+  }
+
+  /**
+   * Build the i'th token.  Each call returns a new object.
+   */
+  public Token.AbstractToken getToken(int i) {
+    if (tokens != null) {
+      return tokens[i];
+    }
+    int start = starts[i];
+    int end = ends[i];
+    int classId = getTypeClassId(typeIds[i]);
+    switch (classId) {
+    case Token.META_TOKENCLASSID: {
+      char startChar = line.charAt(start);
+      return new Token.MetaToken(new Token.CharToken(startChar), new Token.CharToken(Tokenizer.complementOf(startChar)), contents[i].toTokens());
+    }
+    case Token.CHAR_TOKENCLASSID:
+      return new Token.CharToken(line.charAt(start));
+    case Token.IPADDR_TOKENCLASSID:
+      return new Token.IPAddrToken(getText(i));
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return new Token.PermissionBits(getText(i));
+    case Token.INT_TOKENCLASSID:
+      return new Token.IntToken(getText(i));
+    case Token.FLOAT_TOKENCLASSID:
+      return new Token.FloatToken(getText(i));
+    case Token.STRING_TOKENCLASSID:
+      return new Token.StringToken(getText(i));
+    case Token.EOL_TOKENCLASSID:
+      return new Token.EOLToken();
+    case Token.WHITESPACE_TOKENCLASSID:
+      return new Token.WhitespaceToken(getText(i));
+    default: {
+      // Dates and times are re-lexed, as their fields aren't kept
+      List<Token.AbstractToken> toks = new ArrayList<Token.AbstractToken>(1);
+      if (Lexer.lex(classId, null, line, start, limit, toks) != end) {
+        throw new IllegalStateException("Cannot rebuild token from '" + getText(i) + "'");
+      }
+      return toks.get(0);
+    }
+    }
+  }
+
+  String getText(int i) {
+    return line.subSequence(starts[i], ends[i]).toString();
+  }
+
+  /**
+   * Build all the tokens, as Tokenizer.tokenize() would have returned them.
+   */
+  public List<Token.AbstractToken> toTokens() {
+    List<Token.AbstractToken> toks = new ArrayList<Token.AbstractToken>(size());
+    for (int i = 0; i < size(); i++) {
+      toks.add(getToken(i));
+    }
+    return toks;
+  }
+}
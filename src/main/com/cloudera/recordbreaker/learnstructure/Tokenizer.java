@@ -16,7 +16,6 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.*;
 
 import com.cloudera.recordbreaker.learnstructure.Token.AbstractToken;
 
@@ -26,33 +25,6 @@ import com.cloudera.recordbreaker.learnstructure.Token.AbstractToken;
  *
  *********************************************************/
 public class Tokenizer {
-  // The components of possible date patterns
-  static String monthPatternStrs[] = {"(January|Jan|jan|February|Feb|feb|March|Mar|mar|April|Apr|apr|May|may|June|Jun|jun|July|Jul|jul|August|Aug|aug|September|Sep|sep|October|Oct|oct|November|Nov|nov|December|Dec|dec)", "([01]*\\d)"};
-  static String dateSeparatorPatternStrs[] = {"(?:\\s+)", "(?:\\.)", "(?:\\/)"};
-  static String dateDayPatternStr = "([0123]?\\d)";
-  static String dateYearPatternStr = "([12]\\d{3})";
-
-  static List<Pattern> monthFirstPatterns = new ArrayList<Pattern>();
-  static List<Pattern> yearFirstPatterns = new ArrayList<Pattern>();
-  static List<Pattern> dayFirstPatterns = new ArrayList<Pattern>();
-
-  static Pattern ipAddrPattern = Pattern.compile("((?:(?:\\d+\\.){3,}\\d+)|(?:\\*\\.(?:(?:\\d+|\\*)\\.)*(?:\\d+|\\*)))");
-  static Pattern permissionBitPattern = Pattern.compile("([drwx-]{9,})");
-  static Pattern timePattern1 = Pattern.compile("(\\d\\d):(\\d\\d):(\\d\\d)");
-  static Pattern timePattern2 = Pattern.compile("(\\d\\d):(\\d\\d)");
-  //static Pattern intPattern = Pattern.compile("([-+]?\\d+)");		
-  static Pattern intPattern = Pattern.compile("([-+]?[1-9][0-9]*)");			// updated to not match leading zeroes
-  //static Pattern intRangePattern = Pattern.compile("(\\d+)-(\\d+)");
-  static Pattern intRangePattern = Pattern.compile("([1-9][0-9]+)-([1-9][0-9]+)");	// updated to not match leading zeroes
-  static Pattern floatPattern = Pattern.compile("([+-]?\\d*\\.\\d+)");
-  static Pattern floatRangePattern = Pattern.compile("(\\d*\\.\\d+)-(\\d*\\.\\d+)");
-  static Pattern stringPattern = Pattern.compile("((?:[\\S&&[^\\\"\\,\\;\\|\\[\\]\\{\\}\\<\\>\\(\\)\\']]){2,})");
-  static Pattern charPattern = Pattern.compile("(\\S)");
-  static Pattern eolPattern = Pattern.compile("(\\n)");
-  static Pattern wsPattern = Pattern.compile("(\\s+)");
-  static HashMap<String, String> complements;
-  static HashMap<String, String> reverseComplements;
-
   /**
    * attemptParse() tries to parse the input string with the given token-class.  
    * If successful, it returns the remaining string and adds the token to the given list.
@@ -70,165 +42,25 @@ public class Tokenizer {
    * InferredType.BaseType.internalParse().
    */
   public static String attemptParse(int tokenClassId, String tokenParameter, String inputStr, List<Token.AbstractToken> outputToks) {
-    switch (tokenClassId) {
-    case Token.IPADDR_TOKENCLASSID: {
-      Matcher m = ipAddrPattern.matcher(inputStr);
-      if (m.lookingAt()) {
-        outputToks.add(new Token.IPAddrToken(m.group(1)));
-        return cutChunk(m, inputStr);
-      } else {
-        return null;
-      }
-    }
-    case Token.PERMISSIONS_TOKENCLASSID: {
-      Matcher m = permissionBitPattern.matcher(inputStr);
-      if (m.lookingAt()) {
-        outputToks.add(new Token.PermissionBits(m.group(1)));
-        return cutChunk(m, inputStr);
-      } else {
-        return null;
-      }
-    }
-    case Token.DATE_TOKENCLASSID: {
-      String newStr = null;
-      for (Pattern p: monthFirstPatterns) {
-        Matcher m = p.matcher(inputStr);
-        if (m.lookingAt()) {
-          if (m.groupCount() == 2) {
-            try {
-              outputToks.add(new Token.DateToken(m.group(2), m.group(1)));
-            } catch (IOException iex) {
-              continue;
-            }
-          } else {
-            try {
-              outputToks.add(new Token.DateToken(m.group(2), m.group(1), m.group(3)));
-            } catch (IOException iex) {
-              continue;
-            }
-          }
-          return cutChunk(m, inputStr);
-        }
-      }
-
-      for (Pattern p: yearFirstPatterns) {
-        Matcher m = p.matcher(inputStr);
-        if (m.lookingAt()) {
-          try {
-            outputToks.add(new Token.DateToken(m.group(3), m.group(2), m.group(1)));
-          } catch (IOException iex) {
-            continue;
-          }
-          return cutChunk(m, inputStr);
-        }
-      }
-
-      for (Pattern p: dayFirstPatterns) {
-        Matcher m = p.matcher(inputStr);
-        if (m.lookingAt()) {
-          if (m.groupCount() == 2) {
-            try {
-              outputToks.add(new Token.DateToken(m.group(1), m.group(2)));
-            } catch (IOException iex) {
-              continue;
-            }
-          } else {
-            try {
-              outputToks.add(new Token.DateToken(m.group(1), m.group(2), m.group(3)));
-            } catch (IOException iex) {
-              continue;
-            }
-          }
-          return cutChunk(m, inputStr);
-        }
-      }
-      return null;
-    }
-    case Token.TIME_TOKENCLASSID: {
-      Matcher m = timePattern1.matcher(inputStr);
-      if (m.lookingAt()) {
-        outputToks.add(new Token.TimeToken(m.group(1), m.group(2), m.group(3)));
-        return cutChunk(m, inputStr);
-      }
-      m = timePattern2.matcher(inputStr);
-      if (m.lookingAt()) {
-        outputToks.add(new Token.TimeToken(m.group(1), m.group(2), "00"));
-        return cutChunk(m, inputStr);
-      }
-      return null;
-    }
-    case Token.CHAR_TOKENCLASSID: {
-      Matcher m = charPattern.matcher(inputStr);
-      if (m.lookingAt()) {
-        if (tokenParameter != null && ! tokenParameter.equals("" + m.group(1).charAt(0))) {
-          return null;
-        }
-        outputToks.add(new Token.CharToken(m.group(1).charAt(0)));
-        return cutChunk(m, inputStr);
-      }
-      return null;
-    }
-    case Token.FLOAT_TOKENCLASSID: {
-      Matcher m = floatPattern.matcher(inputStr);
-      if (m.lookingAt()) {
-        outputToks.add(new Token.FloatToken(m.group(1)));
-        return cutChunk(m, inputStr);
-      }
-      return null;
-    }
-    case Token.INT_TOKENCLASSID: {
-      Matcher m = intPattern.matcher(inputStr);
-      if (m.lookingAt()) {
-	  try {
-	      outputToks.add(new Token.IntToken(m.group(1)));
-	  } catch (NumberFormatException nfe) {
-	      outputToks.add(new Token.StringToken(m.group(1)));
-	  }
-	  return cutChunk(m, inputStr);
-      }
+    int newStart = Lexer.lex(tokenClassId, tokenParameter, inputStr, 0, inputStr.length(), outputToks);
+    if (newStart < 0) {
       return null;
     }
-    case Token.STRING_TOKENCLASSID: {
-      Matcher m = stringPattern.matcher(inputStr);
-      if (m.lookingAt()) {
-        Matcher m2 = intPattern.matcher(inputStr);
-        Matcher m3 = floatPattern.matcher(inputStr);
-        if (! (m2.lookingAt() || m3.lookingAt())) {
-          outputToks.add(new Token.StringToken(m.group(1)));
-          return cutChunk(m, inputStr);
-        }
-      }
-      return null;
-    }
-      // CHAR???
-    case Token.EOL_TOKENCLASSID: {
-      Matcher m = eolPattern.matcher(inputStr);
-      if (m.lookingAt()) {
-        outputToks.add(new Token.EOLToken());
-        return cutChunk(m, inputStr);
-      }
-      return null;
-    }
-    case Token.WHITESPACE_TOKENCLASSID: {
-      Matcher m = wsPattern.matcher(inputStr);
-      if (m.lookingAt()) {
-        outputToks.add(new Token.WhitespaceToken(m.group(1)));
-        return cutChunk(m, inputStr);
-      }
-      return null;
-    }
-    default: {
-      return null;
-    }
-    }
+    return inputStr.substring(newStart);
   }
 
-  private static String cutChunk(Matcher m, String curS) {
-    int lastGroupChar = m.end(m.groupCount());
-    if (curS.length() > lastGroupChar) {
-      return curS.substring(lastGroupChar);
-    } else {
-      return "";
+  /**
+   * The closing character for a character that opens a MetaToken, or 0.
+   */
+  static char complementOf(char c) {
+    switch (c) {
+    case '[': return ']';
+    case '{': return '}';
+    case '"': return '"';
+    case '\'': return '\'';
+    case '<': return '>';
+    case '(': return ')';
+    default: return 0;
     }
   }
 
@@ -244,37 +76,6 @@ public class Tokenizer {
   final static int WHITESPACE_TOKENCLASSID = 10;
   final static int NOOP_TOKENCLASSID = 11;
 
-  static {
-    complements = new HashMap<String, String>();
-    complements.put("[", "]");
-    complements.put("{", "}");
-    complements.put("\"", "\"");
-    complements.put("'", "'");
-    complements.put("<", ">");
-    complements.put("(", ")");
-    reverseComplements = new HashMap<String, String>();
-    reverseComplements.put("]", "[");
-    reverseComplements.put("}", "{");
-    reverseComplements.put("\"", "\"");
-    reverseComplements.put("'", "'");
-    reverseComplements.put(">", "<");
-    reverseComplements.put(")", "(");
-
-    // Construct the date patterns
-    for (String separatorPatternStr: dateSeparatorPatternStrs) {
-      for (String monthPatternStr: monthPatternStrs) {
-        // Create all legal combos of month, day, year, and separator
-        monthFirstPatterns.add(Pattern.compile(monthPatternStr + separatorPatternStr + dateDayPatternStr + separatorPatternStr + dateYearPatternStr));
-        yearFirstPatterns.add(Pattern.compile(dateYearPatternStr + separatorPatternStr + monthPatternStr + separatorPatternStr + dateDayPatternStr));
-        dayFirstPatterns.add(Pattern.compile(dateDayPatternStr + separatorPatternStr + monthPatternStr + separatorPatternStr + dateYearPatternStr));
-      }
-    }
-    for (String separatorPatternStr: dateSeparatorPatternStrs) {
-      monthFirstPatterns.add(Pattern.compile(monthPatternStrs[0] + separatorPatternStr + dateDayPatternStr));
-      dayFirstPatterns.add(Pattern.compile(dateDayPatternStr + separatorPatternStr + monthPatternStrs[0]));
-    }
-  }
-
   /**
    *	Added by VC to allow detection of CSV. Preserves the original call without inMetaToken 
    */
@@ -293,129 +94,255 @@ public class Tokenizer {
    * If the line cannot be parsed, we return null.
    */
   static public List<Token.AbstractToken> tokenize(String s, boolean hideType, boolean nullable, boolean inMetaToken) throws IOException {
-    String curS = s;
+    return tokenize(s, 0, s.length(), hideType, nullable, inMetaToken);
+  }
+
+  /**
+   * Tokenizes the characters from <code>start</code> up to <code>end</code>.
+   * This is the same as tokenizing <code>s.subSequence(start, end)</code>,
+   * but the input is scanned in place.
+   */
+  static public List<Token.AbstractToken> tokenize(CharSequence s, int start, int end, boolean hideType, boolean nullable, boolean inMetaToken) throws IOException {
+    int pos = start;
     List<Token.AbstractToken> toksSoFar = new ArrayList<Token.AbstractToken>();
 
     // We now repeatedly pass through a series of text-extractor tests.
-    while (curS.length() > 0) {
-      int newStart = -1;
-
+    while (pos < end) {
       // META
-      char startChar = curS.charAt(0);
-      if (complements.get("" + startChar) != null) {
-        String closeChar = complements.get("" + startChar);
-        int closeIndex = curS.indexOf(closeChar, 1);
+      char startChar = s.charAt(pos);
+      char closeChar = complementOf(startChar);
+      if (closeChar != 0) {
+        int closeIndex = -1;
+        for (int i = pos + 1; i < end; i++) {
+          if (s.charAt(i) == closeChar) {
+            closeIndex = i;
+            break;
+          }
+        }
         if (closeIndex >= 0) {
-          toksSoFar.add(new Token.MetaToken(new Token.CharToken(curS.charAt(0)), new Token.CharToken(closeChar.charAt(0)), tokenize(curS.substring(1, closeIndex), hideType, true)));
-          curS = curS.substring(closeIndex+1);
+          toksSoFar.add(new Token.MetaToken(new Token.CharToken(startChar), new Token.CharToken(closeChar), tokenize(s, pos + 1, closeIndex, hideType, true, false)));
+          pos = closeIndex + 1;
           continue;
         }
       }
 
-      // IP ADDR
-      // PERMISSION BITS
-      String attemptStr = attemptParse(Token.IPADDR_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
+      int newPos = Lexer.nextToken(s, pos, end, toksSoFar);
+      if (newPos >= 0) {
+        pos = newPos;
         continue;
       }
 
-      // PERMISSION BITS
-      attemptStr = attemptParse(Token.PERMISSIONS_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
-        continue;
-      }
+      // DEFAULT
+      // If execution reaches this point, it means no pattern applied, which means the line cannot be parsed.
+      return null;
+    }
+    
+    if(inMetaToken) { return toksSoFar; }
+    return csvSpecialCase(toksSoFar, hideType, nullable);
+  }
 
-      //
-      // DATE
-      //
-      // Because of the huge number of possible date patterns, and our desire to not perform 
-      // multi-token parsing, the date-processing here is a bit of a mess.
-      //
-      attemptStr = attemptParse(Token.DATE_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
-        continue;
+  /**
+   * Tokenizes a line into the compact TokenChunk form.  The chunk holds the
+   * same tokens that tokenize(s) returns, or is null if the line cannot be parsed.
+   *
+   * Lines from the same template usually share a layout (see layoutOf()),
+   * and lines with the same layout usually have the same token types.  So
+   * each thread keeps the token types of recent lines by layout, and a later
+   * line with that layout is lexed against them (see TokenChunk.withLine()).
+   * Each token is still read from the new line and checked, so a line whose
+   * values make it tokenize differently falls back to the full tokenizer.
+   */
+  static public TokenChunk tokenizeChunk(String s) throws IOException {
+    Map<String, TokenChunk> layouts = layoutCache.get();
+    String layoutKey = layoutOf(s);
+    TokenChunk layout = layouts.get(layoutKey);
+    if (layout != null) {
+      TokenChunk chunk = layout.withLine(s);
+      if (chunk != null) {
+        return chunk;
       }
+    }
 
-      // TIME
-      attemptStr = attemptParse(Token.TIME_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
-        continue;
+    TokenChunk chunk = tokenizeChunk(s, 0, s.length(), false, false);
+    if (chunk != null) {
+      layout = chunk.layout();
+      if (layout != null) {
+        layouts.put(layoutKey, layout);
       }
+    }
+    return chunk;
+  }
 
-      // FLOAT RANGE
-      Matcher m = floatRangePattern.matcher(curS);
-      if (m.lookingAt()) {
-        toksSoFar.add(new Token.FloatToken(m.group(1)));
-        toksSoFar.add(new Token.CharToken('-'));
-        toksSoFar.add(new Token.FloatToken(m.group(2)));
-        curS = cutChunk(m, curS);
-        continue;
-      }
+  final static int LAYOUT_CACHE_SIZE = 64;
+  static ThreadLocal<Map<String, TokenChunk>> layoutCache = new ThreadLocal<Map<String, TokenChunk>>() {
+    protected Map<String, TokenChunk> initialValue() {
+      return new LinkedHashMap<String, TokenChunk>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, TokenChunk> eldest) {
+          return size() > LAYOUT_CACHE_SIZE;
+        }
+      };
+    }
+  };
 
-      // INTEGER RANGE
-      // REMIND - mjc - Should there be a dedicated Token class for ranges?
-      m = intRangePattern.matcher(curS);
-      if (m.lookingAt()) {
-        toksSoFar.add(new Token.IntToken(m.group(1)));
-        toksSoFar.add(new Token.CharToken('-'));
-        toksSoFar.add(new Token.IntToken(m.group(2)));
-        curS = cutChunk(m, curS);
-        continue;
+  /**
+   * The layout of a line is a cheap signature of its token classes.  Each
+   * run of digits becomes '9', each run of letters 'a', and each run of
+   * whitespace a single space; punctuation is kept.  Lines from the same
+   * template usually share a layout even when their values differ.
+   */
+  static String layoutOf(CharSequence s) {
+    StringBuilder layout = new StringBuilder();
+    char prev = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      char cls;
+      if (Character.isDigit(c)) {
+        cls = '9';
+      } else if (Character.isLetter(c)) {
+        cls = 'a';
+      } else if (Character.isWhitespace(c)) {
+        cls = ' ';
+      } else {
+        cls = c;
       }
-
-      // FLOAT
-      attemptStr = attemptParse(Token.FLOAT_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
-        continue;
+      boolean isRun = (cls == '9' || cls == 'a' || cls == ' ');
+      if (! (isRun && cls == prev)) {
+        layout.append(cls);
       }
+      prev = cls;
+    }
+    return layout.toString();
+  }
 
-      // INTEGER
-      attemptStr = attemptParse(Token.INT_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
-        continue;
-      }
+  static TokenChunk tokenizeChunk(CharSequence s, int start, int end, boolean hideType, boolean nullable) throws IOException {
+    int numToks = 0;
+    int typeIds[] = new int[16];
+    int starts[] = new int[16];
+    int ends[] = new int[16];
+    TokenChunk contents[] = null;
+    List<Token.AbstractToken> lexed = new ArrayList<Token.AbstractToken>(3);
+    int commaCount = 0;
 
-      // STRING
-      attemptStr = attemptParse(Token.STRING_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
-        continue;
+    int pos = start;
+    while (pos < end) {
+      // Make room for a range, the most tokens one step can add
+      if (numToks + 3 > typeIds.length) {
+        typeIds = grow(typeIds);
+        starts = grow(starts);
+        ends = grow(ends);
+        if (contents != null) {
+          TokenChunk newContents[] = new TokenChunk[typeIds.length];
+          System.arraycopy(contents, 0, newContents, 0, numToks);
+          contents = newContents;
+        }
       }
 
-      // CHAR
-      attemptStr = attemptParse(Token.CHAR_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
+      // META
+      int closeIndex = closeIndexOf(s, pos, end);
+      if (closeIndex >= 0) {
+        TokenChunk middle = tokenizeChunk(s, pos + 1, closeIndex, hideType, true);
+        if (middle == null) {
+          List<Token.AbstractToken> toks = tokenize(s, start, end, hideType, nullable, false);
+          return (toks == null) ? null : TokenChunk.fromTokens(toks);
+        }
+        if (contents == null) {
+          contents = new TokenChunk[typeIds.length];
+        }
+        contents[numToks] = middle;
+        typeIds[numToks] = TokenChunk.getTypeId(Token.META_TOKENCLASSID, (char) 0);
+        starts[numToks] = pos;
+        ends[numToks] = closeIndex + 1;
+        numToks++;
+        pos = closeIndex + 1;
         continue;
       }
 
-      // EOL-Token
-      attemptStr = attemptParse(Token.EOL_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
-        continue;
+      lexed.clear();
+      int newPos = Lexer.nextToken(s, pos, end, lexed);
+      if (newPos < 0) {
+        return null;
       }
-
-      // Whitespace
-      attemptStr = attemptParse(Token.WHITESPACE_TOKENCLASSID, null, curS, toksSoFar);
-      if (attemptStr != null) {
-        curS = attemptStr;
-        continue;
+      if (lexed.size() == 1) {
+        Token.AbstractToken tok = lexed.get(0);
+        typeIds[numToks] = TokenChunk.getTypeId(tok);
+        starts[numToks] = pos;
+        ends[numToks] = newPos;
+        numToks++;
+        if (tok instanceof Token.CharToken && ((Token.CharToken) tok).getChar() == ',') {
+          commaCount++;
+        }
+      } else {
+        // A range lexes as three tokens: the low value, '-', and the high value
+        int dash = pos;
+        while (s.charAt(dash) != '-') {
+          dash++;
+        }
+        int tokStarts[] = {pos, dash, dash + 1};
+        int tokEnds[] = {dash, dash + 1, newPos};
+        for (int i = 0; i < 3; i++) {
+          typeIds[numToks] = TokenChunk.getTypeId(lexed.get(i));
+          starts[numToks] = tokStarts[i];
+          ends[numToks] = tokEnds[i];
+          numToks++;
+        }
       }
+      pos = newPos;
+    }
 
-      // DEFAULT
-      // If execution reaches this point, it means no pattern applied, which means the line cannot be parsed.
-      return null;
+    // The CSV special case rewrites tokens, so those lines keep Token objects
+    if (isCsv(commaCount, numToks)) {
+      List<Token.AbstractToken> toks = tokenize(s, start, end, hideType, nullable, false);
+      return (toks == null) ? null : TokenChunk.fromTokens(toks);
     }
-    
-    if(inMetaToken) { return toksSoFar; }
 
+    int trimmedTypeIds[] = new int[numToks];
+    int trimmedStarts[] = new int[numToks];
+    int trimmedEnds[] = new int[numToks];
+    System.arraycopy(typeIds, 0, trimmedTypeIds, 0, numToks);
+    System.arraycopy(starts, 0, trimmedStarts, 0, numToks);
+    System.arraycopy(ends, 0, trimmedEnds, 0, numToks);
+    TokenChunk trimmedContents[] = null;
+    if (contents != null) {
+      trimmedContents = new TokenChunk[numToks];
+      System.arraycopy(contents, 0, trimmedContents, 0, numToks);
+    }
+    return new TokenChunk(s, end, trimmedTypeIds, trimmedStarts, trimmedEnds, trimmedContents, null);
+  }
+
+  /**
+   * If a MetaToken starts at <code>pos</code>, the index of its closing
+   * character; otherwise -1.
+   */
+  static int closeIndexOf(CharSequence s, int pos, int end) {
+    char closeChar = complementOf(s.charAt(pos));
+    if (closeChar != 0) {
+      for (int i = pos + 1; i < end; i++) {
+        if (s.charAt(i) == closeChar) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Whether a chunk with these counts gets the CSV special case, which
+   * rewrites its tokens.
+   */
+  static boolean isCsv(int commaCount, int numToks) {
+    return commaCount > 1 || (commaCount == 1 && numToks == 3);
+  }
+
+  private static int[] grow(int array[]) {
+    int grown[] = new int[array.length * 2];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  /**
+   * The CSV special case, applied to a whole line's tokens.
+   */
+  static List<Token.AbstractToken> csvSpecialCase(List<Token.AbstractToken> toksSoFar, boolean hideType, boolean nullable) {
     // CSV SPECIAL CASE
     // Tokenisation has finished. Look for a potential CSV pattern and remove the commas if found
     // If we find more than one token which is a CharToken and consists of a , this 
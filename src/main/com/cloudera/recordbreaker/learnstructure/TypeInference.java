@@ -16,6 +16,11 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 
 /**********************************************************
  * TypeInference takes a set of parsed tokens and transforms them
@@ -24,6 +29,8 @@ import java.util.*;
  **********************************************************/
 public class TypeInference {
   static int MAX_SAMPLES = 5;
+  final static int PARALLEL_DISCOVERY_CHUNKS = 1000;
+  static int numDiscoveryThreads = Runtime.getRuntime().availableProcessors();
 
   /////////////////////////////////////
   // Inner Classes
@@ -47,42 +54,42 @@ public class TypeInference {
   }
 
   static class StructProphecy extends TypeProphecy {
-    List<List<List<Token.AbstractToken>>> structElts;
-    public StructProphecy(List<List<List<Token.AbstractToken>>> structElts) {
+    List<ChunkList> structElts;
+    public StructProphecy(List<ChunkList> structElts) {
       this.structElts = structElts;
     }
-    public List<List<List<Token.AbstractToken>>> getStructElts() {
+    public List<ChunkList> getStructElts() {
       return structElts;
     }
   }
 
   static class ArrayProphecy extends TypeProphecy {
-    List<List<Token.AbstractToken>> first;
-    List<List<Token.AbstractToken>> body;
-    List<List<Token.AbstractToken>> last;
+    ChunkList first;
+    ChunkList body;
+    ChunkList last;
 
-    public ArrayProphecy(List<List<Token.AbstractToken>> first, List<List<Token.AbstractToken>> body, List<List<Token.AbstractToken>> last) {
+    public ArrayProphecy(ChunkList first, ChunkList body, ChunkList last) {
       this.first = first;
       this.body = body;
       this.last = last;
     }
-    public List<List<Token.AbstractToken>> getFirst() {
+    public ChunkList getFirst() {
       return first;
     }
-    public List<List<Token.AbstractToken>> getBody() {
+    public ChunkList getBody() {
       return body;
     }
-    public List<List<Token.AbstractToken>> getLast() {
+    public ChunkList getLast() {
       return last;
     }
   }
 
   static class UnionProphecy extends TypeProphecy {
-    List<List<List<Token.AbstractToken>>> unionElts;
-    public UnionProphecy(List<List<List<Token.AbstractToken>>> unionElts) {
+    List<ChunkList> unionElts;
+    public UnionProphecy(List<ChunkList> unionElts) {
       this.unionElts = unionElts;
     }
-    public List<List<List<Token.AbstractToken>>> getUnionElements() {
+    public List<ChunkList> getUnionElements() {
       return unionElts;
     }
   }
@@ -97,31 +104,111 @@ public class TypeInference {
    * Accepts a list of chunks, each of which is a list of Tokens.
    * It uses patterns of token appearance to discern the record structure.
    * This is the core of the LearnPADS algorithm.
+   *
+   * Empty chunks are removed from the list.
    */
   public static InferredType infer(List<List<Token.AbstractToken>> chunks) {
+    for (Iterator<List<Token.AbstractToken>> it = chunks.iterator(); it.hasNext(); ) {
+      List<Token.AbstractToken> chunk = it.next();
+      if (chunk.size() == 0) {
+        it.remove();
+      }
+    }
+    return infer(ChunkList.fromTokenLists(chunks));
+  }
+
+  /**
+   * Infers the record structure from compact chunks (see Tokenizer.tokenizeChunk()).
+   */
+  public static InferredType infer(ChunkList chunks) {
     InferredType typeTree = discover(chunks, true);
     typeTree = typeTree.hoistUnions();
     //typeTree.ensureParsability();
     return typeTree;
   }
 
+  /**
+   * Infers the record structure from a growing subset of the chunks,
+   * starting with <code>minChunks</code> and doubling each round.  It stops
+   * as soon as two rounds in a row give the same type tree and description
+   * cost, so homogeneous data learns from a few hundred chunks while
+   * heterogeneous data keeps growing, up to all of them.
+   *
+   * Each round's chunks are evenly spaced across the whole list, not a
+   * prefix, so a sample drawn from across a file stays representative.
+   */
+  public static InferredType inferAdaptively(ChunkList chunks, int minChunks) {
+    return inferAdaptively(chunks, minChunks, new int[0]);
+  }
+
+  /**
+   * As above, but every round also includes the chunks at the sorted
+   * positions in <code>required</code>.  These are the few chunks of rare
+   * layouts a stratified sample keeps (see LineSampler.reservoirSample()),
+   * which evenly spaced rounds would usually skip.
+   */
+  public static InferredType inferAdaptively(ChunkList chunks, int minChunks, int required[]) {
+    String prevDesc = null;
+    double prevCost = 0;
+    int n = Math.max(1, Math.min(minChunks, chunks.size()));
+    while (true) {
+      InferredType typeTree = infer(evenlySpaced(chunks, n, required));
+      if (n >= chunks.size()) {
+        return typeTree;
+      }
+      String desc = typeTree.toString();
+      double cost = typeTree.getDescriptionCost();
+      if (desc.equals(prevDesc) && cost == prevCost) {
+        return typeTree;
+      }
+      prevDesc = desc;
+      prevCost = cost;
+      n = (int) Math.min(2L * n, chunks.size());
+    }
+  }
+
+  /**
+   * <code>n</code> chunks spread evenly across <code>chunks</code>, together
+   * with the chunks at the sorted positions in <code>required</code>, in order.
+   */
+  static ChunkList evenlySpaced(ChunkList chunks, int n, int required[]) {
+    if (n >= chunks.size()) {
+      return chunks;
+    }
+    ChunkList subset = new ChunkList(n + required.length);
+    int r = 0;
+    for (int j = 0; j < n; j++) {
+      int k = (int) (((long) j * chunks.size()) / n);
+      for (; r < required.length && required[r] <= k; r++) {
+        if (required[r] < k) {
+          subset.add(chunks, required[r]);
+        }
+      }
+      subset.add(chunks, k);
+    }
+    for (; r < required.length; r++) {
+      subset.add(chunks, required[r]);
+    }
+    return subset;
+  }
+
   /**
    * The oracle() function attempts to predict the best type for the data given by 'chunks'.
    */
-  private static TypeProphecy oracle(List<List<Token.AbstractToken>> chunks, boolean allowUnion) {
+  private static TypeProphecy oracle(ChunkList chunks, boolean allowUnion) {
     //////////////////////////////////////////////////////////////
     // Phase 1: Handling chunks that appear homogenous (at this meta-level, at least)
     //////////////////////////////////////////////////////////////
     // Start by gathering some stats on the chunks
-    HashSet<String> uniqTokTypes = new HashSet<String>();
+    HashSet<Integer> uniqTokTypes = new HashSet<Integer>();
     int noops = 0;
     int numToks = 0;
-    for (List<Token.AbstractToken> chunk: chunks) {
-      if (chunk.size() == 0) {
+    for (int k = 0; k < chunks.size(); k++) {
+      if (chunks.length(k) == 0) {
         noops++;
       }
-      for (Token.AbstractToken tok: chunk) {
-        uniqTokTypes.add(tok.getId());
+      for (int i = 0; i < chunks.length(k); i++) {
+        uniqTokTypes.add(chunks.getTypeId(k, i));
         numToks++;
       }
     }
@@ -141,10 +228,9 @@ public class TypeInference {
     //
     if (numToks == chunks.size() && uniqTokTypes.size() == 1) {
       // If so, grab an example from the column
-      Token.AbstractToken prizeToken = chunks.get(0).get(0);
-      if (! (prizeToken instanceof Token.MetaToken)) {
+      if (! chunks.isMetaToken(0, 0)) {
         // If it's not a MetaToken, then it's easy: we prophesy a data column consisting of a single basic type
-        return new BaseProphecy(prizeToken, getSamples(chunks));
+        return new BaseProphecy(chunks.getToken(0, 0), getSamples(chunks));
       } else {
         //System.err.println("STRUCT-1");
         //
@@ -154,34 +240,21 @@ public class TypeInference {
         // Note: the getId() fn of MetaToken returns the char-delimiter, so if we've got just one elt in uniqTokTypes,
         // it implies that there's a single MetaToken type in the entire chunkset.
         //
-        Token.MetaToken mtok = (Token.MetaToken) prizeToken;
-
-        List<List<Token.AbstractToken>> startChunkList = new ArrayList<List<Token.AbstractToken>>();
-        List<Token.AbstractToken> startChunk = new ArrayList<Token.AbstractToken>();
-        startChunk.add(mtok.getStartToken());
-        startChunkList.add(startChunk);
-
-        List<List<Token.AbstractToken>> middleChunkList = new ArrayList<List<Token.AbstractToken>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          middleChunkList.add(((Token.MetaToken) chunk.get(0)).getMiddleChunk());
+        ChunkList middleChunkList = new ChunkList(chunks.size());
+        for (int k = 0; k < chunks.size(); k++) {
+          middleChunkList.add(chunks.getContents(k, 0));
         }
 
-        List<List<Token.AbstractToken>> endChunkList = new ArrayList<List<Token.AbstractToken>>();
-        List<Token.AbstractToken> endChunk = new ArrayList<Token.AbstractToken>();
-        endChunk.add(mtok.getEndToken());
-        endChunkList.add(endChunk);
-
         // Is this really a base type masquerading as a struct as a result of the "complements"?
         if(middleChunkList.size() == 1)
         {
-            List<Token.AbstractToken> innerList = middleChunkList.get(0);
-            if(innerList.size() == 1)
+            if(middleChunkList.length(0) == 1)
             {
-        	return new BaseProphecy(innerList.get(0), getSamples(chunks));
+        	return new BaseProphecy(middleChunkList.getToken(0, 0), getSamples(chunks));
             }
         }
         
-        List<List<List<Token.AbstractToken>>> structElts = new ArrayList<List<List<Token.AbstractToken>>>();
+        List<ChunkList> structElts = new ArrayList<ChunkList>();
         //structElts.add(startChunkList);	// if you include these, the quotes or brackets or whatever
         					// "complements" the tokenizer identified get included as
         					// fields in the output schema
@@ -196,7 +269,7 @@ public class TypeInference {
     //////////////////////////////////////////////////////////////
     // As usual, start by gathering some statistics
     List<Histogram> normalizedHistograms = Histogram.computeNormalizedHistograms(chunks);
-    List<List<Histogram>> clusteredHistograms = Histogram.clusterHistograms(normalizedHistograms);
+    final List<List<Histogram>> clusteredHistograms = Histogram.clusterHistograms(normalizedHistograms);
 
     //
     // CONDITION: Does a Struct exist?
@@ -219,7 +292,9 @@ public class TypeInference {
         } else if (minResidualMass1 > minResidualMass2) {
           return 1;
         } else {
-          return o1.hashCode() - o2.hashCode();
+          // Break ties by cluster order, not identity hash codes, which
+          // differ from run to run once discovery is spread over threads
+          return clusteredHistograms.indexOf(o1) - clusteredHistograms.indexOf(o2);
         }
       }
     });
@@ -249,9 +324,9 @@ public class TypeInference {
     //
     if (bestCluster != null) {
       // Find the types that are present in that cluster
-      Set<String> bestClusterTypes = new HashSet<String>();
+      Set<Integer> bestClusterTypes = new HashSet<Integer>();
       for (Histogram h: bestCluster) {
-        bestClusterTypes.add(h.getHistogramType());
+        bestClusterTypes.add(h.getTypeId());
       }
 
       //
@@ -267,21 +342,21 @@ public class TypeInference {
       // them all to be identical.
       //
       Set<String> allTypeProfiles = new HashSet<String>();
-      for (List<Token.AbstractToken> chunk: chunks) {
+      for (int k = 0; k < chunks.size(); k++) {
         StringBuffer curTypeProfile = new StringBuffer();
         StringBuffer curField = new StringBuffer();
         curField.append("(");
-        for (Token.AbstractToken tok: chunk) {
-          if (bestClusterTypes.contains(tok.getId())) {
+        for (int i = 0; i < chunks.length(k); i++) {
+          if (bestClusterTypes.contains(chunks.getTypeId(k, i))) {
             curField.append(")");
             curTypeProfile.append(curField.toString());
             curTypeProfile.append("_");
-            curTypeProfile.append("(" + tok.getId() + ")");
+            curTypeProfile.append("(" + chunks.getTypeStr(k, i) + ")");
             curTypeProfile.append("_");
             curField = new StringBuffer();
             curField.append("(");
           } else {
-            curField.append(tok.getId() + ",");
+            curField.append(chunks.getTypeStr(k, i) + ",");
           }
         }
         curField.append(")");
@@ -305,58 +380,52 @@ public class TypeInference {
         // The 4th field has the 2nd identified token.
         // ... and so on.  The final field has all the tokens AFTER the final token that appears in the target histogram-cluster
         //
-        Map<Integer, List<List<Token.AbstractToken>>> structChunks = new TreeMap<Integer, List<List<Token.AbstractToken>>>();
+        // Each of these is a run of adjacent tokens, so it is added as a slice of the chunk.
+        //
+        Map<Integer, ChunkList> structChunks = new TreeMap<Integer, ChunkList>();
         // For each chunk in the input...
-        for (List<Token.AbstractToken> chunk: chunks) {
+        for (int k = 0; k < chunks.size(); k++) {
           //
           // Add to 'structChunks' as appropriate.
           //
+          TokenChunk chunk = chunks.chunks[k];
+          int from = chunks.froms[k];
+          int chunkSize = chunks.length(k);
           int lastIdentifiedIndex = -1;
-          for (int i = 0; i < chunk.size(); i++) {
-            Token.AbstractToken tok = chunk.get(i);
-            if (bestClusterTypes.contains(tok.getId())) {
-              List<List<Token.AbstractToken>> preludeChunkList = structChunks.get(2 * i);
+          for (int i = 0; i < chunkSize; i++) {
+            if (bestClusterTypes.contains(chunks.getTypeId(k, i))) {
+              ChunkList preludeChunkList = structChunks.get(2 * i);
               if (preludeChunkList == null) {
-                preludeChunkList = new ArrayList<List<Token.AbstractToken>>();
+                preludeChunkList = new ChunkList();
                 structChunks.put(2*i, preludeChunkList);
               }
-              List<Token.AbstractToken> preludeChunk = new ArrayList<Token.AbstractToken>();
-              for (int j = lastIdentifiedIndex+1; j < i; j++) {
-                preludeChunk.add(chunk.get(j));
-              }
-              preludeChunkList.add(preludeChunk);
+              preludeChunkList.add(chunk, from + lastIdentifiedIndex + 1, from + i);
 
-              List<List<Token.AbstractToken>> identifiedChunkList = structChunks.get(2 * i + 1);
+              ChunkList identifiedChunkList = structChunks.get(2 * i + 1);
               if (identifiedChunkList == null) {
-                identifiedChunkList = new ArrayList<List<Token.AbstractToken>>();
+                identifiedChunkList = new ChunkList();
                 structChunks.put(2 * i + 1, identifiedChunkList);
               }
-              List<Token.AbstractToken> identifiedChunk = new ArrayList<Token.AbstractToken>();
-              identifiedChunk.add(chunk.get(i));
-              identifiedChunkList.add(identifiedChunk);
+              identifiedChunkList.add(chunk, from + i, from + i + 1);
 
               lastIdentifiedIndex = i;
             }
           }
-          List<List<Token.AbstractToken>> suffixChunkList = structChunks.get(2 * chunk.size() + 1);
+          ChunkList suffixChunkList = structChunks.get(2 * chunkSize + 1);
           if (suffixChunkList == null) {
-            suffixChunkList = new ArrayList<List<Token.AbstractToken>>();
-            structChunks.put(2 * chunk.size() + 1, suffixChunkList);
+            suffixChunkList = new ChunkList();
+            structChunks.put(2 * chunkSize + 1, suffixChunkList);
           }
-          List<Token.AbstractToken> suffixChunk = new ArrayList<Token.AbstractToken>();
-          for (int j = lastIdentifiedIndex+1; j < chunk.size(); j++) {
-            suffixChunk.add(chunk.get(j));
-          }
-          suffixChunkList.add(suffixChunk);
+          suffixChunkList.add(chunk, from + lastIdentifiedIndex + 1, from + chunkSize);
         }
 
         // Make sure that for each chunkList in 'structChunks', there is at least one non-empty chunk.
         for (Iterator<Integer> it = structChunks.keySet().iterator(); it.hasNext(); ) {
           Integer chunkId = it.next();
-          List<List<Token.AbstractToken>> chunkList = structChunks.get(chunkId);
+          ChunkList chunkList = structChunks.get(chunkId);
           int numTokensInChunkList = 0;
-          for (List<Token.AbstractToken> chunk: chunkList) {
-            numTokensInChunkList += chunk.size();
+          for (int k = 0; k < chunkList.size(); k++) {
+            numTokensInChunkList += chunkList.length(k);
           }
           if (numTokensInChunkList == 0) {
             it.remove();
@@ -364,9 +433,9 @@ public class TypeInference {
         }
 
         // Transform the map into a chunklist
-        List<List<List<Token.AbstractToken>>> structChunkList = new ArrayList<List<List<Token.AbstractToken>>>();
+        List<ChunkList> structChunkList = new ArrayList<ChunkList>();
         for (Integer chunkId: structChunks.keySet()) {
-          List<List<Token.AbstractToken>> chunkList = structChunks.get(chunkId);
+          ChunkList chunkList = structChunks.get(chunkId);
           structChunkList.add(chunkList);
         }
         //System.err.println("STRUCT-2");
@@ -381,39 +450,40 @@ public class TypeInference {
 
         // A UnionProphecy requires a number of chunklists, one for each type profile
         //System.err.println("UNION-1");
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
+        Map<String, ChunkList> unionMap = new HashMap<String, ChunkList>();
         
-        for (List<Token.AbstractToken> chunk: chunks) {
+        for (int k = 0; k < chunks.size(); k++) {
           StringBuffer curTypeProfile = new StringBuffer();
           StringBuffer curField = new StringBuffer();
           curField.append("(");
-          for (Token.AbstractToken tok: chunk) {
-            if (bestClusterTypes.contains(tok.getId())) {
-              curTypeProfile.append(tok.getId() + "_");
+          for (int i = 0; i < chunks.length(k); i++) {
+            String tokenId = chunks.getTypeStr(k, i);
+            if (bestClusterTypes.contains(chunks.getTypeId(k, i))) {
+              curTypeProfile.append(tokenId + "_");
               curField.append(")");
               curTypeProfile.append(curField.toString());
               curTypeProfile.append("_");
-              curTypeProfile.append("(" + tok.getId() + ")");
+              curTypeProfile.append("(" + tokenId + ")");
               curTypeProfile.append("_");
               curField = new StringBuffer();
               curField.append("(");
             } else {
-              curField.append(tok.getId() + ",");
+              curField.append(tokenId + ",");
             }
           }
           curField.append(")");
           curTypeProfile.append(curField.toString());
 
-          List<List<Token.AbstractToken>> unionChunks = unionMap.get(curTypeProfile.toString());
+          ChunkList unionChunks = unionMap.get(curTypeProfile.toString());
           if (unionChunks == null) {
-            unionChunks = new ArrayList<List<Token.AbstractToken>>();
+            unionChunks = new ChunkList();
             unionMap.put(curTypeProfile.toString(), unionChunks);
           }
-          unionChunks.add(chunk);
+          unionChunks.add(chunks, k);
         }
 
-        List<List<List<Token.AbstractToken>>> unionChunklists = new ArrayList<List<List<Token.AbstractToken>>>();
-        for (List<List<Token.AbstractToken>> unionChunklist: unionMap.values()) {
+        List<ChunkList> unionChunklists = new ArrayList<ChunkList>();
+        for (ChunkList unionChunklist: unionMap.values()) {
           unionChunklists.add(unionChunklist);
         }
         return new UnionProphecy(unionChunklists);
@@ -442,7 +512,7 @@ public class TypeInference {
           } else if (maxCoverage1 > maxCoverage2) {
             return -1;
           } else {
-            return o1.hashCode() - o2.hashCode();
+            return clusteredHistograms.indexOf(o1) - clusteredHistograms.indexOf(o2);
           }
         }
       });
@@ -460,62 +530,58 @@ public class TypeInference {
       if (arrayHistogramClusters.size() > 0) {
         // It's going to be an array!
         List<Histogram> bestArrayCluster = arrayHistogramClusters.first();
-        Set<String> bestClusterTypes = new HashSet<String>();
+        Set<Integer> bestClusterTypes = new HashSet<Integer>();
         for (Histogram h: bestArrayCluster) {
-          bestClusterTypes.add(h.getHistogramType());
+          bestClusterTypes.add(h.getTypeId());
         }
 
         //
         // Goal is to split the array into three chunklists: preamble, repeated-body, and post-amble.
+        // Each is a run of adjacent tokens, so it is added as a slice of the chunk.
         //
-        List<List<Token.AbstractToken>> preambles = new ArrayList<List<Token.AbstractToken>>();
-        List<List<Token.AbstractToken>> middles = new ArrayList<List<Token.AbstractToken>>();
-        List<List<Token.AbstractToken>> postambles = new ArrayList<List<Token.AbstractToken>>();
+        ChunkList preambles = new ChunkList();
+        ChunkList middles = new ChunkList();
+        ChunkList postambles = new ChunkList();
 
         //
         // For each chunk of input...
         // 
-        for (List<Token.AbstractToken> chunk: chunks) {
-          List<Token.AbstractToken> preamble = new ArrayList<Token.AbstractToken>();
-          List<List<Token.AbstractToken>> middleGroup = new ArrayList<List<Token.AbstractToken>>();
-          List<Token.AbstractToken> curMiddle = new ArrayList<Token.AbstractToken>();
-          List<Token.AbstractToken> postamble = new ArrayList<Token.AbstractToken>();
-          Set<String> observedClusterTypes = new HashSet<String>();
+        for (int k = 0; k < chunks.size(); k++) {
+          TokenChunk chunk = chunks.chunks[k];
+          int from = chunks.froms[k];
+          int chunkSize = chunks.length(k);
+          int preambleEnd = 0;
+          int curMiddleStart = -1;
+          int postambleStart = chunkSize;
+          Set<Integer> observedClusterTypes = new HashSet<Integer>();
           int mode = 0;
 
-          for (Token.AbstractToken tok: chunk) {
+          for (int i = 0; i < chunkSize; i++) {
+            int typeId = chunks.getTypeId(k, i);
             // Transit
             if (mode == 0 && observedClusterTypes.size() == bestClusterTypes.size()) {
               mode = 1;
-            } else if (mode == 1 && ! bestClusterTypes.contains(tok.getId())) {
+              curMiddleStart = i;
+            } else if (mode == 1 && ! bestClusterTypes.contains(typeId)) {
               mode = 2;
+              // The unfinished middle group, if any, starts the postamble
+              postambleStart = curMiddleStart;
+              break;
             }
-            if (mode == 0 && bestClusterTypes.contains(tok.getId())) {
-              observedClusterTypes.add(tok.getId());
+            if (mode == 0 && bestClusterTypes.contains(typeId)) {
+              observedClusterTypes.add(typeId);
             }
 
             // Operate according to the modes
             if (mode == 0) {
-              preamble.add(tok);
-            } else if (mode == 1) {
-              curMiddle.add(tok);
-              if (curMiddle.size() == bestClusterTypes.size()) {
-                middleGroup.add(curMiddle);
-                curMiddle = new ArrayList<Token.AbstractToken>();
-              }
-            } else {
-              if (curMiddle != null) {
-                for (Token.AbstractToken t2: curMiddle) {
-                  postamble.add(t2);
-                }
-                curMiddle = null;
-              }
-              postamble.add(tok);
+              preambleEnd = i + 1;
+            } else if (i + 1 - curMiddleStart == bestClusterTypes.size()) {
+              middles.add(chunk, from + curMiddleStart, from + i + 1);
+              curMiddleStart = i + 1;
             }
           }
-          preambles.add(preamble);
-          middles.addAll(middleGroup);
-          postambles.add(postamble);
+          preambles.add(chunk, from, from + preambleEnd);
+          postambles.add(chunk, from + postambleStart, from + chunkSize);
         }
         //System.err.println("ARRAY-1");
         return new ArrayProphecy(preambles, middles, postambles);
@@ -541,20 +607,12 @@ public class TypeInference {
         boolean foundDifference = false;
         while (! foundDifference) {
           String lastSeenProfile = null;
-          for (List<Token.AbstractToken> chunk: chunks) {
-            // Build type profile
-            StringBuffer curTypeProfile = new StringBuffer();
-            for (int i = 0; i < neededTokens; i++) {
-              if (i < chunk.size()) {
-                curTypeProfile.append(chunk.get(i).getId() + "_");
-              } else {
-                curTypeProfile.append("<none>" + "_");
-              }
-            }
+          for (int k = 0; k < chunks.size(); k++) {
+            String curTypeProfile = getTypeProfile(chunks, k, neededTokens);
             if (lastSeenProfile == null) {
-              lastSeenProfile = curTypeProfile.toString();
+              lastSeenProfile = curTypeProfile;
             } else {
-              if (! lastSeenProfile.equals(curTypeProfile.toString())) {
+              if (! lastSeenProfile.equals(curTypeProfile)) {
                 foundDifference = true;
                 break;
               }
@@ -567,27 +625,19 @@ public class TypeInference {
         // Now that we have computed 'neededTokens', we can proceed to partition the input chunks using
         // the first 'neededTokens' from each chunk.
         //
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          StringBuffer curTypeProfile = new StringBuffer();
-          for (int i = 0; i < neededTokens; i++) {
-            if (i < chunk.size()) {
-              Token.AbstractToken tok = chunk.get(i);
-              curTypeProfile.append(tok.getId() + "_");
-            } else {
-              curTypeProfile.append("<none>" + "_");
-            }
-          }
-          List<List<Token.AbstractToken>> unionChunks = unionMap.get(curTypeProfile.toString());
+        Map<String, ChunkList> unionMap = new HashMap<String, ChunkList>();
+        for (int k = 0; k < chunks.size(); k++) {
+          String curTypeProfile = getTypeProfile(chunks, k, neededTokens);
+          ChunkList unionChunks = unionMap.get(curTypeProfile);
           if (unionChunks == null) {
-            unionChunks = new ArrayList<List<Token.AbstractToken>>();
-            unionMap.put(curTypeProfile.toString(), unionChunks);
+            unionChunks = new ChunkList();
+            unionMap.put(curTypeProfile, unionChunks);
           }
-          unionChunks.add(chunk);
+          unionChunks.add(chunks, k);
         }
 
-        List<List<List<Token.AbstractToken>>> unionChunklists = new ArrayList<List<List<Token.AbstractToken>>>();
-        for (List<List<Token.AbstractToken>> unionChunklist: unionMap.values()) {
+        List<ChunkList> unionChunklists = new ArrayList<ChunkList>();
+        for (ChunkList unionChunklist: unionMap.values()) {
           unionChunklists.add(unionChunklist);
         }
         return new UnionProphecy(unionChunklists);
@@ -596,15 +646,112 @@ public class TypeInference {
   }
 
   /**
+   * The type ids of the first <code>numTokens</code> tokens of chunk <code>k</code>, as a string.
    */
-  private static InferredType discover(List<List<Token.AbstractToken>> chunks, boolean allowUnion) {
-    // Remove chunks that are empty.  These should never get passed-in
-    for (Iterator<List<Token.AbstractToken>> it = chunks.iterator(); it.hasNext(); ) {
-      List<Token.AbstractToken> chunk = it.next();
-      if (chunk.size() == 0) {
-        it.remove();
+  static String getTypeProfile(ChunkList chunks, int k, int numTokens) {
+    StringBuffer curTypeProfile = new StringBuffer();
+    for (int i = 0; i < numTokens; i++) {
+      if (i < chunks.length(k)) {
+        curTypeProfile.append(chunks.getTypeStr(k, i) + "_");
+      } else {
+        curTypeProfile.append("<none>" + "_");
+      }
+    }
+    return curTypeProfile.toString();
+  }
+
+  /**
+   * What the oracle prophesied for one chunk list, together with the
+   * discoveries for each of its parts, in the order discover() would have
+   * visited them.  Only the kind of type is kept, and for a base type its
+   * prophecy; the chunks themselves are dropped as soon as the parts are
+   * queued.  Discoveries can be computed on any thread; the InferredTypes
+   * are built from them afterward on one thread, so type names are handed
+   * out in the same order however the work was scheduled.
+   */
+  static class Discovery {
+    byte kind;
+    BaseProphecy base;
+    boolean hasFirst;
+    boolean hasLast;
+    List<FutureTask<Discovery>> parts = new ArrayList<FutureTask<Discovery>>();
+    Discovery(byte kind) {
+      this.kind = kind;
+    }
+    /**
+     * Wait for the i'th part, and let go of it.  Each part is read once.
+     */
+    Discovery takePart(int i) {
+      FutureTask<Discovery> part = parts.set(i, null);
+      // Run the part here if no pool thread has picked it up yet, so a
+      // waiting thread is never blocked on a task that is still queued.
+      part.run();
+      try {
+        return part.get();
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted during type discovery");
+      } catch (ExecutionException eex) {
+        Throwable cause = eex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException("Type discovery failed: " + cause);
       }
     }
+  }
+
+  /**
+   * The discovery of one part.  It lets go of its chunks when it starts, so
+   * they can be reclaimed as soon as the part's own parts are queued.
+   */
+  static class PartDiscovery implements Callable<Discovery> {
+    ChunkList chunks;
+    boolean allowUnion;
+    ExecutorService pool;
+    PartDiscovery(ChunkList chunks, boolean allowUnion, ExecutorService pool) {
+      this.chunks = chunks;
+      this.allowUnion = allowUnion;
+      this.pool = pool;
+    }
+    public Discovery call() {
+      return discover(takeChunks(), allowUnion, pool);
+    }
+    ChunkList takeChunks() {
+      ChunkList result = chunks;
+      chunks = null;
+      return result;
+    }
+  }
+
+  static ExecutorService discoveryPool = null;
+
+  /**
+   * The pool shared by every discover() call.  It is made on first use and
+   * lives for the life of the process.  A thread waiting on a part runs it
+   * itself if it hasn't started, so nested parts never wait on a full pool.
+   */
+  static synchronized ExecutorService getDiscoveryPool() {
+    if (discoveryPool == null) {
+      discoveryPool = Executors.newFixedThreadPool(numDiscoveryThreads, new DaemonThreadFactory("type-discovery"));
+    }
+    return discoveryPool;
+  }
+
+  /**
+   * Infer the type of <code>chunks</code>.  Subproblems of at least
+   * PARALLEL_DISCOVERY_CHUNKS chunks are explored on the shared discovery pool.
+   */
+  private static InferredType discover(ChunkList chunks, boolean allowUnion) {
+    boolean parallel = numDiscoveryThreads > 1 && chunks.size() >= PARALLEL_DISCOVERY_CHUNKS;
+    return buildType(discover(chunks, allowUnion, parallel ? getDiscoveryPool() : null));
+  }
+
+  private static Discovery discover(ChunkList chunks, boolean allowUnion, ExecutorService pool) {
+    // Remove chunks that are empty.  These should never get passed-in
+    chunks = chunks.withoutEmptyChunks();
 
     // Error testing
     assert(chunks.size() > 0);
@@ -613,8 +760,67 @@ public class TypeInference {
     // Type predictions from the oracle come in one of four flavors: Base, Struct, Array, or Union
     //
     TypeProphecy typePrediction = oracle(chunks, allowUnion);
-    if (typePrediction instanceof BaseProphecy) {
-      BaseProphecy bp = (BaseProphecy) typePrediction;
+    chunks = null;
+    Discovery d;
+    if (typePrediction instanceof StructProphecy) {
+      StructProphecy sp = (StructProphecy) typePrediction;
+      d = new Discovery(InferredType.STRUCT_TYPE);
+      for (ChunkList structElt: sp.getStructElts()) {
+        d.parts.add(discoverPart(structElt, allowUnion, pool));
+      }
+    } else if (typePrediction instanceof ArrayProphecy) {
+      ArrayProphecy ap = (ArrayProphecy) typePrediction;
+      assert(ap.getBody().size() > 0);
+
+      d = new Discovery(InferredType.ARRAY_TYPE);
+      d.hasFirst = ap.getFirst().size() > 0;
+      d.hasLast = ap.getLast().size() > 0;
+      if (d.hasFirst) {
+        d.parts.add(discoverPart(ap.getFirst(), allowUnion, pool));
+      }
+      d.parts.add(discoverPart(ap.getBody(), allowUnion, pool));
+      if (d.hasLast) {
+        d.parts.add(discoverPart(ap.getLast(), allowUnion, pool));
+      }
+    } else if (typePrediction instanceof UnionProphecy) {
+      UnionProphecy up = (UnionProphecy) typePrediction;
+      d = new Discovery(InferredType.UNION_TYPE);
+      for (ChunkList unionElt: up.getUnionElements()) {
+        d.parts.add(discoverPart(unionElt, false, pool)); //nested union not allowed
+      }
+    } else {
+      d = new Discovery(InferredType.BASE_TYPE);
+      d.base = (BaseProphecy) typePrediction;
+    }
+    typePrediction = null;
+
+    // Work through the parts not yet taken by the pool.  Running a part that
+    // has already started does nothing.
+    for (FutureTask<Discovery> part: d.parts) {
+      part.run();
+    }
+    return d;
+  }
+
+  /**
+   * Queue a part's discovery on the pool if it's big enough to be worth it.
+   * Small parts are left for the calling thread to run.
+   */
+  private static FutureTask<Discovery> discoverPart(ChunkList chunks, boolean allowUnion, ExecutorService pool) {
+    FutureTask<Discovery> part = new FutureTask<Discovery>(new PartDiscovery(chunks, allowUnion, pool));
+    if (pool != null && chunks.size() >= PARALLEL_DISCOVERY_CHUNKS) {
+      pool.execute(part);
+    }
+    return part;
+  }
+
+  /**
+   * Build the InferredType for a finished Discovery.  Each part is built as
+   * soon as it is done, and dropped once its type exists.
+   */
+  private static InferredType buildType(Discovery d) {
+    if (d.kind == InferredType.BASE_TYPE) {
+      BaseProphecy bp = d.base;
       List<String> sampleStrs = new ArrayList<String>();
       for (Iterator<Token.AbstractToken> it = bp.getSamples().iterator(); it.hasNext(); ) {
         Token.AbstractToken tok = it.next();
@@ -622,35 +828,29 @@ public class TypeInference {
       }
       return new BaseType(bp.getToken(), sampleStrs);
 
-    } else if (typePrediction instanceof StructProphecy) {
-      StructProphecy sp = (StructProphecy) typePrediction;
+    } else if (d.kind == InferredType.STRUCT_TYPE) {
       List<InferredType> structDataTypes = new ArrayList<InferredType>();
-      int i = 0;
-      for (List<List<Token.AbstractToken>> structElt: sp.getStructElts()) {
-        structDataTypes.add(discover(structElt, allowUnion));
+      for (int i = 0; i < d.parts.size(); i++) {
+        structDataTypes.add(buildType(d.takePart(i)));
       }
       return new StructType(structDataTypes);
 
-    } else if (typePrediction instanceof ArrayProphecy) {
-      ArrayProphecy ap = (ArrayProphecy) typePrediction;
-      assert(ap.getBody().size() > 0);
-
+    } else if (d.kind == InferredType.ARRAY_TYPE) {
       List<InferredType> structDataTypes = new ArrayList<InferredType>();
-      if (ap.getFirst().size() > 0) {
-        structDataTypes.add(discover(ap.getFirst(), allowUnion));
+      int i = 0;
+      if (d.hasFirst) {
+        structDataTypes.add(buildType(d.takePart(i++)));
       }
-      structDataTypes.add(new ArrayType(discover(ap.getBody(), allowUnion)));
-      if (ap.getLast().size() > 0) {
-        structDataTypes.add(discover(ap.getLast(), allowUnion));
+      structDataTypes.add(new ArrayType(buildType(d.takePart(i++))));
+      if (d.hasLast) {
+        structDataTypes.add(buildType(d.takePart(i++)));
       }
       return new StructType(structDataTypes);
 
-    } else if (typePrediction instanceof UnionProphecy) {
-      UnionProphecy up = (UnionProphecy) typePrediction;
+    } else if (d.kind == InferredType.UNION_TYPE) {
       List<InferredType> unionDataTypes = new ArrayList<InferredType>();
-      
-      for (List<List<Token.AbstractToken>> unionElt: up.getUnionElements()) {
-        unionDataTypes.add(discover(unionElt, false)); //nested union not allowed
+      for (int i = 0; i < d.parts.size(); i++) {
+        unionDataTypes.add(buildType(d.takePart(i)));
       }
       return new UnionType(unionDataTypes);
     }
@@ -660,15 +860,15 @@ public class TypeInference {
   /**
    * force a BaseProphecy by concating all tokens in a chunk into a string token.
    */
-  private static TypeProphecy forceBaseProphecy(List<List<Token.AbstractToken>> chunks) {
+  private static TypeProphecy forceBaseProphecy(ChunkList chunks) {
     //concatenate all tokens of a chunk back into a string token
     List<Token.AbstractToken> samples = new ArrayList<Token.AbstractToken>();
     int numSamples = 0;
     Token.AbstractToken prizeToken = null;
-    for (List<Token.AbstractToken> curChunk: chunks) {
+    for (int k = 0; k < chunks.size(); k++) {
       StringBuilder sb = new StringBuilder();
-      for (Token.AbstractToken tok: curChunk) {
-        sb.append(tok.getSampleString());
+      for (int i = 0; i < chunks.length(k); i++) {
+        sb.append(chunks.getToken(k, i).getSampleString());
       }
       Token.AbstractToken sampleToken = new Token.StringToken(sb.toString());
       samples.add(sampleToken);
@@ -685,20 +885,19 @@ public class TypeInference {
   }
 
   // Returns a list of samples from chunks
-  static List<Token.AbstractToken> getSamples(List<List<Token.AbstractToken>> chunks)
+  static List<Token.AbstractToken> getSamples(ChunkList chunks)
   {
       List<Token.AbstractToken> samples = new ArrayList<Token.AbstractToken>();
       int numSamples = 0;
-      for (List<Token.AbstractToken> curChunk: chunks)
+      for (int k = 0; k < chunks.size(); k++)
       {
-	  Token.AbstractToken firstToken = curChunk.get(0);
-	if(Token.MetaToken.class.isInstance(firstToken))
+	if(chunks.isMetaToken(k, 0))
 	{
-	    samples.add(((Token.MetaToken)firstToken).getMiddleChunk().get(0));
+	    samples.add(chunks.getContents(k, 0).getToken(0));
 	}
 	else
 	{
-	    samples.add(firstToken);
+	    samples.add(chunks.getToken(k, 0));
 	}
         numSamples++;
         if (numSamples >= MAX_SAMPLES) {
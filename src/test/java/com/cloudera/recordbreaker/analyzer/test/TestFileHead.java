@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.conf.Configuration;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.avro.hadoop.io.AvroSequenceFile;
+import org.apache.avro.hadoop.io.AvroSerialization;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.analyzer.FileHead;
+import com.cloudera.recordbreaker.analyzer.CSVDataDescriptor;
+
+/**
+ * TestFileHead checks that the SequenceFile header FileHead parses out of
+ * its buffer agrees with what SequenceFile.Reader reports, for plain,
+ * block-compressed and Avro SequenceFiles.  It also checks that a text
+ * file with long lines still yields the whole lines detectors ask for.
+ *
+ * @see FileHead
+ */
+public class TestFileHead {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  Configuration newConf() {
+    Configuration conf = new Configuration();
+    AvroSerialization.addToConfiguration(conf);
+    return conf;
+  }
+
+  void writeSequenceFile(Configuration conf, Path p, SequenceFile.CompressionType compressionType) throws IOException {
+    SequenceFile.Metadata metadata = new SequenceFile.Metadata();
+    metadata.set(new Text("origin"), new Text("TestFileHead"));
+    metadata.set(new Text("compression"), new Text(compressionType.toString()));
+    SequenceFile.Writer out = SequenceFile.createWriter(conf,
+                                                        SequenceFile.Writer.file(p),
+                                                        SequenceFile.Writer.keyClass(Text.class),
+                                                        SequenceFile.Writer.valueClass(IntWritable.class),
+                                                        SequenceFile.Writer.compression(compressionType, ReflectionUtils.newInstance(DefaultCodec.class, conf)),
+                                                        SequenceFile.Writer.metadata(metadata));
+    try {
+      for (int i = 0; i < 100; i++) {
+        out.append(new Text("key" + i), new IntWritable(i));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  void writeAvroSequenceFile(Configuration conf, FileSystem fs, Path p) throws IOException {
+    Schema keySchema = Schema.create(Schema.Type.STRING);
+    Schema valSchema = Schema.create(Schema.Type.INT);
+    AvroSequenceFile.Writer.Options options = new AvroSequenceFile.Writer.Options()
+      .withFileSystem(fs)
+      .withOutputPath(p)
+      .withKeySchema(keySchema)
+      .withValueSchema(valSchema)
+      .withConfiguration(conf);
+    AvroSequenceFile.Writer out = new AvroSequenceFile.Writer(options);
+    try {
+      for (int i = 0; i < 100; i++) {
+        out.append(new AvroKey<CharSequence>("key" + i), new AvroValue<Integer>(i));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  void assertMatchesReader(Configuration conf, FileSystem fs, Path p) throws IOException {
+    FileHead head = new FileHead(fs, p);
+    SequenceFile.Reader in = new SequenceFile.Reader(fs, p, conf);
+    try {
+      Assert.assertNotNull(head.getSequenceFileMetadata());
+      Assert.assertEquals(in.getKeyClassName(), head.getSequenceFileKeyClassName());
+      Assert.assertEquals(in.getValueClassName(), head.getSequenceFileValueClassName());
+      Assert.assertEquals(in.getMetadata(), head.getSequenceFileMetadata());
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test(timeout=10000)
+  public void testSequenceFile() throws IOException {
+    Configuration conf = newConf();
+    FileSystem localFS = FileSystem.getLocal(conf);
+    Path p = new Path(new File(tmpOutDir.getRoot(), "plain.seq").getCanonicalPath());
+    writeSequenceFile(conf, p, SequenceFile.CompressionType.NONE);
+    assertMatchesReader(conf, localFS, p);
+  }
+
+  @Test(timeout=10000)
+  public void testBlockCompressedSequenceFile() throws IOException {
+    Configuration conf = newConf();
+    FileSystem localFS = FileSystem.getLocal(conf);
+    Path p = new Path(new File(tmpOutDir.getRoot(), "block.seq").getCanonicalPath());
+    writeSequenceFile(conf, p, SequenceFile.CompressionType.BLOCK);
+    assertMatchesReader(conf, localFS, p);
+  }
+
+  @Test(timeout=10000)
+  public void testAvroSequenceFile() throws IOException {
+    Configuration conf = newConf();
+    FileSystem localFS = FileSystem.getLocal(conf);
+    Path p = new Path(new File(tmpOutDir.getRoot(), "avro.seq").getCanonicalPath());
+    writeAvroSequenceFile(conf, localFS, p);
+    assertMatchesReader(conf, localFS, p);
+    SequenceFile.Metadata metadata = new FileHead(localFS, p).getSequenceFileMetadata();
+    Assert.assertNotNull(metadata.get(AvroSequenceFile.METADATA_FIELD_KEY_SCHEMA));
+    Assert.assertNotNull(metadata.get(AvroSequenceFile.METADATA_FIELD_VALUE_SCHEMA));
+  }
+
+  @Test(timeout=10000)
+  public void testTextFileIsNotSequenceFile() throws IOException {
+    File f = tmpOutDir.newFile("lines.txt");
+    BufferedWriter out = new BufferedWriter(new FileWriter(f));
+    try {
+      out.write("SEQ is not enough to make a SequenceFile");
+      out.newLine();
+    } finally {
+      out.close();
+    }
+    FileHead head = new FileHead(FileSystem.getLocal(newConf()), new Path(f.getCanonicalPath()));
+    Assert.assertNull(head.getSequenceFileMetadata());
+    Assert.assertNull(head.getSequenceFileKeyClassName());
+  }
+
+  @Test(timeout=10000)
+  public void testWideLinesGrowHead() throws IOException {
+    // 30 rows of 9KB each: the default 64KB head holds fewer than 10 of them
+    File f = tmpOutDir.newFile("wide.txt");
+    BufferedWriter out = new BufferedWriter(new FileWriter(f));
+    try {
+      for (int i = 0; i < 30; i++) {
+        for (int j = 0; j < 1000; j++) {
+          out.write((j > 0 ? "," : "") + String.format("r%02dc%04d", i, j));
+        }
+        out.newLine();
+      }
+    } finally {
+      out.close();
+    }
+    FileHead head = new FileHead(FileSystem.getLocal(newConf()), new Path(f.getCanonicalPath()));
+    List<String> lines = head.getLines(25);
+    Assert.assertEquals(25, lines.size());
+    for (int i = 0; i < lines.size(); i++) {
+      Assert.assertTrue(lines.get(i).startsWith(String.format("r%02dc0000,", i)));
+      Assert.assertEquals(1000, lines.get(i).split(",").length);
+    }
+    Assert.assertTrue(CSVDataDescriptor.isCSV(head));
+  }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+
+/*********************************************************
+ * PatternTokenizer is the original, regex-based tokenizer.  Its Patterns
+ * are the reference definition of each token-class, and tests check
+ * that Lexer, which Tokenizer uses, produces exactly the same tokens.
+ * It lives in Tokenizer's package to share its MetaToken and CSV handling.
+ *********************************************************/
+public class PatternTokenizer {
+  // The components of possible date patterns
+  static String monthPatternStrs[] = {"(January|Jan|jan|February|Feb|feb|March|Mar|mar|April|Apr|apr|May|may|June|Jun|jun|July|Jul|jul|August|Aug|aug|September|Sep|sep|October|Oct|oct|November|Nov|nov|December|Dec|dec)", "([01]*\\d)"};
+  static String dateSeparatorPatternStrs[] = {"(?:\\s+)", "(?:\\.)", "(?:\\/)"};
+  static String dateDayPatternStr = "([0123]?\\d)";
+  static String dateYearPatternStr = "([12]\\d{3})";
+
+  static List<Pattern> monthFirstPatterns = new ArrayList<Pattern>();
+  static List<Pattern> yearFirstPatterns = new ArrayList<Pattern>();
+  static List<Pattern> dayFirstPatterns = new ArrayList<Pattern>();
+
+  static Pattern ipAddrPattern = Pattern.compile("((?:(?:\\d+\\.){3,}\\d+)|(?:\\*\\.(?:(?:\\d+|\\*)\\.)*(?:\\d+|\\*)))");
+  static Pattern permissionBitPattern = Pattern.compile("([drwx-]{9,})");
+  static Pattern timePattern1 = Pattern.compile("(\\d\\d):(\\d\\d):(\\d\\d)");
+  static Pattern timePattern2 = Pattern.compile("(\\d\\d):(\\d\\d)");
+  //static Pattern intPattern = Pattern.compile("([-+]?\\d+)");		
+  static Pattern intPattern = Pattern.compile("([-+]?[1-9][0-9]*)");			// updated to not match leading zeroes
+  //static Pattern intRangePattern = Pattern.compile("(\\d+)-(\\d+)");
+  static Pattern intRangePattern = Pattern.compile("([1-9][0-9]+)-([1-9][0-9]+)");	// updated to not match leading zeroes
+  static Pattern floatPattern = Pattern.compile("([+-]?\\d*\\.\\d+)");
+  static Pattern floatRangePattern = Pattern.compile("(\\d*\\.\\d+)-(\\d*\\.\\d+)");
+  static Pattern stringPattern = Pattern.compile("((?:[\\S&&[^\\\"\\,\\;\\|\\[\\]\\{\\}\\<\\>\\(\\)\\']]){2,})");
+  static Pattern charPattern = Pattern.compile("(\\S)");
+  static Pattern eolPattern = Pattern.compile("(\\n)");
+  static Pattern wsPattern = Pattern.compile("(\\s+)");
+
+  static {
+    // Construct the date patterns
+    for (String separatorPatternStr: dateSeparatorPatternStrs) {
+      for (String monthPatternStr: monthPatternStrs) {
+        // Create all legal combos of month, day, year, and separator
+        monthFirstPatterns.add(Pattern.compile(monthPatternStr + separatorPatternStr + dateDayPatternStr + separatorPatternStr + dateYearPatternStr));
+        yearFirstPatterns.add(Pattern.compile(dateYearPatternStr + separatorPatternStr + monthPatternStr + separatorPatternStr + dateDayPatternStr));
+        dayFirstPatterns.add(Pattern.compile(dateDayPatternStr + separatorPatternStr + monthPatternStr + separatorPatternStr + dateYearPatternStr));
+      }
+    }
+    for (String separatorPatternStr: dateSeparatorPatternStrs) {
+      monthFirstPatterns.add(Pattern.compile(monthPatternStrs[0] + separatorPatternStr + dateDayPatternStr));
+      dayFirstPatterns.add(Pattern.compile(dateDayPatternStr + separatorPatternStr + monthPatternStrs[0]));
+    }
+  }
+
+  /**
+   * A <code>Cursor</code> is the input being tokenized, plus one reusable
+   * Matcher per Pattern.  Tokenizing moves an offset through the input and
+   * points the matchers at it with <code>Matcher.region()</code>, so no
+   * substrings are made.  Regions use opaque, anchoring bounds, so matching
+   * a region behaves exactly like matching the equivalent substring.
+   */
+  static class Cursor {
+    final CharSequence input;
+    final Map<Pattern, Matcher> matchers = new HashMap<Pattern, Matcher>();
+
+    Cursor(CharSequence input) {
+      this.input = input;
+    }
+
+    /**
+     * Returns the pattern's matcher if the pattern matches at <code>start</code>,
+     * reading no further than <code>end</code>; otherwise null.
+     */
+    Matcher lookingAt(Pattern p, int start, int end) {
+      Matcher m = matchers.get(p);
+      if (m == null) {
+        m = p.matcher(input);
+        matchers.put(p, m);
+      }
+      m.region(start, end);
+      return m.lookingAt() ? m : null;
+    }
+  }
+
+  /**
+   * Tries the token-class at <code>start</code>, reading no further than
+   * <code>end</code>, and returns the offset just past the token, or -1 if
+   * it does not parse.
+   */
+  static int attemptParse(int tokenClassId, String tokenParameter, Cursor cursor, int start, int end, List<Token.AbstractToken> outputToks) {
+    switch (tokenClassId) {
+    case Token.IPADDR_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(ipAddrPattern, start, end);
+      if (m != null) {
+        outputToks.add(new Token.IPAddrToken(m.group(1)));
+        return chunkEnd(m);
+      } else {
+        return -1;
+      }
+    }
+    case Token.PERMISSIONS_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(permissionBitPattern, start, end);
+      if (m != null) {
+        outputToks.add(new Token.PermissionBits(m.group(1)));
+        return chunkEnd(m);
+      } else {
+        return -1;
+      }
+    }
+    case Token.DATE_TOKENCLASSID: {
+      for (Pattern p: monthFirstPatterns) {
+        Matcher m = cursor.lookingAt(p, start, end);
+        if (m != null) {
+          if (m.groupCount() == 2) {
+            try {
+              outputToks.add(new Token.DateToken(m.group(2), m.group(1)));
+            } catch (IOException iex) {
+              continue;
+            }
+          } else {
+            try {
+              outputToks.add(new Token.DateToken(m.group(2), m.group(1), m.group(3)));
+            } catch (IOException iex) {
+              continue;
+            }
+          }
+          return chunkEnd(m);
+        }
+      }
+
+      for (Pattern p: yearFirstPatterns) {
+        Matcher m = cursor.lookingAt(p, start, end);
+        if (m != null) {
+          try {
+            outputToks.add(new Token.DateToken(m.group(3), m.group(2), m.group(1)));
+          } catch (IOException iex) {
+            continue;
+          }
+          return chunkEnd(m);
+        }
+      }
+
+      for (Pattern p: dayFirstPatterns) {
+        Matcher m = cursor.lookingAt(p, start, end);
+        if (m != null) {
+          if (m.groupCount() == 2) {
+            try {
+              outputToks.add(new Token.DateToken(m.group(1), m.group(2)));
+            } catch (IOException iex) {
+              continue;
+            }
+          } else {
+            try {
+              outputToks.add(new Token.DateToken(m.group(1), m.group(2), m.group(3)));
+            } catch (IOException iex) {
+              continue;
+            }
+          }
+          return chunkEnd(m);
+        }
+      }
+      return -1;
+    }
+    case Token.TIME_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(timePattern1, start, end);
+      if (m != null) {
+        outputToks.add(new Token.TimeToken(m.group(1), m.group(2), m.group(3)));
+        return chunkEnd(m);
+      }
+      m = cursor.lookingAt(timePattern2, start, end);
+      if (m != null) {
+        outputToks.add(new Token.TimeToken(m.group(1), m.group(2), "00"));
+        return chunkEnd(m);
+      }
+      return -1;
+    }
+    case Token.CHAR_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(charPattern, start, end);
+      if (m != null) {
+        char c = cursor.input.charAt(m.start(1));
+        if (tokenParameter != null && ! (tokenParameter.length() == 1 && tokenParameter.charAt(0) == c)) {
+          return -1;
+        }
+        outputToks.add(new Token.CharToken(c));
+        return chunkEnd(m);
+      }
+      return -1;
+    }
+    case Token.FLOAT_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(floatPattern, start, end);
+      if (m != null) {
+        outputToks.add(new Token.FloatToken(m.group(1)));
+        return chunkEnd(m);
+      }
+      return -1;
+    }
+    case Token.INT_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(intPattern, start, end);
+      if (m != null) {
+	  try {
+	      outputToks.add(new Token.IntToken(m.group(1)));
+	  } catch (NumberFormatException nfe) {
+	      outputToks.add(new Token.StringToken(m.group(1)));
+	  }
+	  return chunkEnd(m);
+      }
+      return -1;
+    }
+    case Token.STRING_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(stringPattern, start, end);
+      if (m != null) {
+        // Each pattern has its own matcher, so m is still valid after these
+        boolean isNumeric = (cursor.lookingAt(intPattern, start, end) != null) || (cursor.lookingAt(floatPattern, start, end) != null);
+        if (! isNumeric) {
+          outputToks.add(new Token.StringToken(m.group(1)));
+          return chunkEnd(m);
+        }
+      }
+      return -1;
+    }
+      // CHAR???
+    case Token.EOL_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(eolPattern, start, end);
+      if (m != null) {
+        outputToks.add(new Token.EOLToken());
+        return chunkEnd(m);
+      }
+      return -1;
+    }
+    case Token.WHITESPACE_TOKENCLASSID: {
+      Matcher m = cursor.lookingAt(wsPattern, start, end);
+      if (m != null) {
+        outputToks.add(new Token.WhitespaceToken(m.group(1)));
+        return chunkEnd(m);
+      }
+      return -1;
+    }
+    default: {
+      return -1;
+    }
+    }
+  }
+
+  /**
+   * A token ends where its last group does.
+   */
+  private static int chunkEnd(Matcher m) {
+    return m.end(m.groupCount());
+  }
+
+  /**
+   * Tokenizes a line as Tokenizer.tokenize(s) does, but with the Patterns.
+   */
+  static public List<Token.AbstractToken> tokenize(String s) throws IOException {
+    return tokenize(new Cursor(s), 0, s.length(), false);
+  }
+
+  static List<Token.AbstractToken> tokenize(Cursor cursor, int start, int end, boolean nullable) throws IOException {
+    CharSequence s = cursor.input;
+    int pos = start;
+    List<Token.AbstractToken> toksSoFar = new ArrayList<Token.AbstractToken>();
+    while (pos < end) {
+      // META
+      char startChar = s.charAt(pos);
+      char closeChar = Tokenizer.complementOf(startChar);
+      if (closeChar != 0) {
+        int closeIndex = -1;
+        for (int i = pos + 1; i < end; i++) {
+          if (s.charAt(i) == closeChar) {
+            closeIndex = i;
+            break;
+          }
+        }
+        if (closeIndex >= 0) {
+          toksSoFar.add(new Token.MetaToken(new Token.CharToken(startChar), new Token.CharToken(closeChar), tokenize(cursor, pos + 1, closeIndex, true)));
+          pos = closeIndex + 1;
+          continue;
+        }
+      }
+
+      int newPos = attemptPatterns(cursor, pos, end, toksSoFar);
+      if (newPos < 0) {
+        return null;
+      }
+      pos = newPos;
+    }
+    return Tokenizer.csvSpecialCase(toksSoFar, false, nullable);
+  }
+
+  /**
+   * Tries each non-meta token-class at <code>pos</code> with the regex
+   * Patterns, in priority order.  Returns the offset just past the token(s)
+   * added, or -1 if none applies.
+   */
+  static int attemptPatterns(Cursor cursor, int pos, int end, List<Token.AbstractToken> toksSoFar) {
+    // IP ADDR
+    // PERMISSION BITS
+    int newPos = attemptParse(Token.IPADDR_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    // PERMISSION BITS
+    newPos = attemptParse(Token.PERMISSIONS_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    //
+    // DATE
+    //
+    // Because of the huge number of possible date patterns, and our desire to not perform 
+    // multi-token parsing, the date-processing here is a bit of a mess.
+    //
+    newPos = attemptParse(Token.DATE_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    // TIME
+    newPos = attemptParse(Token.TIME_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    // FLOAT RANGE
+    Matcher m = cursor.lookingAt(floatRangePattern, pos, end);
+    if (m != null) {
+      toksSoFar.add(new Token.FloatToken(m.group(1)));
+      toksSoFar.add(new Token.CharToken('-'));
+      toksSoFar.add(new Token.FloatToken(m.group(2)));
+      return chunkEnd(m);
+    }
+
+    // INTEGER RANGE
+    // REMIND - mjc - Should there be a dedicated Token class for ranges?
+    m = cursor.lookingAt(intRangePattern, pos, end);
+    if (m != null) {
+      toksSoFar.add(new Token.IntToken(m.group(1)));
+      toksSoFar.add(new Token.CharToken('-'));
+      toksSoFar.add(new Token.IntToken(m.group(2)));
+      return chunkEnd(m);
+    }
+
+    // FLOAT
+    newPos = attemptParse(Token.FLOAT_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    // INTEGER
+    newPos = attemptParse(Token.INT_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    // STRING
+    newPos = attemptParse(Token.STRING_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    // CHAR
+    newPos = attemptParse(Token.CHAR_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    // EOL-Token
+    newPos = attemptParse(Token.EOL_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+
+    // Whitespace
+    newPos = attemptParse(Token.WHITESPACE_TOKENCLASSID, null, cursor, pos, end, toksSoFar);
+    if (newPos >= 0) {
+      return newPos;
+    }
+    return -1;
+  }
+}
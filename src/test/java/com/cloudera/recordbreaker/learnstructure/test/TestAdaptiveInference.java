@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.ChunkList;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.TokenChunk;
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+
+/**
+ * TestAdaptiveInference checks that adaptive inference over a stratified
+ * sample still learns the rare line layouts the sample kept, even though
+ * its evenly spaced rounds would skip them.
+ *
+ * @see TypeInference#inferAdaptively(ChunkList, int, int[])
+ */
+public class TestAdaptiveInference {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  static String RARE_LINE = "ERROR 3333 disk full";
+
+  @Test(timeout=60000)
+  public void testRareShapeGetsUnionBranch() throws IOException {
+    // With the default seed the rare lines land at sample positions that
+    // the first evenly spaced rounds of 100 and 200 chunks all skip
+    int numLines = 20000;
+    File f = tmpOutDir.newFile("mixed.txt");
+    BufferedWriter out = new BufferedWriter(new FileWriter(f));
+    try {
+      for (int i = 0; i < numLines; i++) {
+        if (i % 5000 == 3333) {
+          out.write("ERROR " + i + " disk full");
+        } else {
+          out.write("line " + i + " value " + (i * 7));
+        }
+        out.newLine();
+      }
+    } finally {
+      out.close();
+    }
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    List<Integer> stratified = new ArrayList<Integer>();
+    List<String> lines = LineSampler.reservoirSample(localFS, new Path(f.getCanonicalPath()), 1000, 5, LineSampler.DEFAULT_SEED,
+                                                     LineSampler.DEFAULT_BYTE_BUDGET, LineSampler.DEFAULT_NUM_REGIONS, stratified);
+    Assert.assertTrue(lines.contains(RARE_LINE));
+
+    ChunkList chunks = new ChunkList();
+    for (String line: lines) {
+      TokenChunk chunk = Tokenizer.tokenizeChunk(line);
+      Assert.assertNotNull(chunk);
+      chunks.add(chunk);
+    }
+    int required[] = new int[stratified.size()];
+    for (int i = 0; i < required.length; i++) {
+      required[i] = stratified.get(i);
+    }
+    InferredType typeTree = TypeInference.inferAdaptively(chunks, 100, required);
+
+    // One union branch parses the rare lines, and not the common ones
+    Assert.assertNotNull(typeTree.parse(RARE_LINE));
+    boolean foundRareBranch = false;
+    for (InferredType branch: typeTree.materializeWithoutUnions()) {
+      if (branch.parse(RARE_LINE) != null && branch.parse("line 12 value 84") == null) {
+        foundRareBranch = true;
+      }
+    }
+    Assert.assertTrue(foundRareBranch);
+  }
+}
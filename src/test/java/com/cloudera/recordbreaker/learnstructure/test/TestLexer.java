@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.learnstructure.Token;
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+import com.cloudera.recordbreaker.learnstructure.PatternTokenizer;
+
+/**
+ * TestLexer checks that the hand-written lexer behind Tokenizer.tokenize()
+ * produces the same tokens as PatternTokenizer's regex Patterns, on the sample data and
+ * on lines that exercise the ambiguous cases.  It also checks that lines
+ * which share a layout, but not their tokens, get past Tokenizer's layout cache.
+ *
+ * @see PatternTokenizer
+ */
+public class TestLexer {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+
+  static String[] edgeCases = {
+    "", " ", "\t\t", "a", "ab", "+", "-5", "+0.5", "-.5", "007", "0.0", "1.", ".5-.75", "10-20", "01-20",
+    "99999999999999999999", "192.168.0.1", "1.2.3", "1.2.3.4.5", "*.*", "*.10.*", "*.", "drwxr-xr-x", "rwxrwx",
+    "12:30:45", "12:30", "12:3", "Jan 5 2012", "January  31  1999", "Jan 32", "May 1", "mayday", "5 Dec",
+    "31/12/2012", "2012.01.05", "1/1/1969", "0010/05/2012", "2012 01 5", "[12:30:45] \"GET /x\"", "(a, b)",
+    "<tag>", "'quoted'", "a,b,c", "x 1.5-2.5 y", "ab|cd", "{1 2}", "caf\u00e9 na\u00efve"
+  };
+
+  // Pairs of lines with the same layout whose values tokenize differently
+  static String[][] shapeCollisions = {
+    {"on 1/1/1999 at", "on 1/1/1969 at"}, {"on 1/1/1969 at", "on 1/1/1999 at"},
+    {"[Jan 5 1999] ok", "[Jan 5 1959] ok"}, {"id 2147483647 x", "id 2147483648 x"},
+    {"id 2147483648 x", "id 2147483647 x"}, {"x 5 y", "x 7 y"}, {"x 05:30 y", "x 09:30 y"},
+    {"abc 5 2012", "Jan 5 2012"}, {"Jan 5 2012", "abc 5 2012"}, {"x 5 y", "x 123456 y"},
+    {"at 12 05 2012", "at 31 12 2012"}, {"x [a, b] y", "x [c, dd] y"}, {"drwxr-xr-x a", "abcde-fg-h a"}
+  };
+
+  static String tokenString(List<Token.AbstractToken> toks) {
+    if (toks == null) {
+      return "null";
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Token.AbstractToken tok: toks) {
+      sb.append(tok.getClassId()).append(":").append(tok).append(" ");
+    }
+    return sb.toString();
+  }
+
+  static void assertSameTokens(String line) throws IOException {
+    String expected;
+    try {
+      expected = tokenString(PatternTokenizer.tokenize(line));
+    } catch (RuntimeException rex) {
+      expected = rex.getClass().getName();
+    }
+    String actual;
+    try {
+      actual = tokenString(Tokenizer.tokenize(line));
+    } catch (RuntimeException rex) {
+      actual = rex.getClass().getName();
+    }
+    Assert.assertEquals("Tokens for \"" + line + "\"", expected, actual);
+  }
+
+  @Test(timeout=10000)
+  public void testEdgeCases() throws IOException {
+    for (String line: edgeCases) {
+      assertSameTokens(line);
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testSampleData() throws IOException {
+    File[] files = sampleDir.listFiles();
+    Assert.assertNotNull("Missing sample dir " + sampleDir, files);
+    for (File f: files) {
+      BufferedReader in = new BufferedReader(new FileReader(f));
+      try {
+        String line = null;
+        while ((line = in.readLine()) != null) {
+          assertSameTokens(line);
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  @Test(timeout=10000)
+  public void testShapeCollisions() throws IOException {
+    for (String[] pair: shapeCollisions) {
+      Tokenizer.tokenizeChunk(pair[0]);
+      Assert.assertEquals("Tokens for \"" + pair[1] + "\" after \"" + pair[0] + "\"",
+                          tokenString(Tokenizer.tokenize(pair[1])), tokenString(Tokenizer.tokenizeChunk(pair[1]).toTokens()));
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
+/**
+ * TestLineSampler checks that LineSampler returns whole lines from the
+ * head, middle and tail of a large file, and the plain head of a small one.
+ * It also checks that the reservoir sample spans the file and keeps rare
+ * line shapes.
+ *
+ * @see LineSampler
+ */
+public class TestLineSampler {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  File writeNumberedLines(int numLines) throws IOException {
+    File f = tmpOutDir.newFile("lines.txt");
+    BufferedWriter out = new BufferedWriter(new FileWriter(f));
+    try {
+      for (int i = 0; i < numLines; i++) {
+        out.write("line " + i + " value " + (i * 7));
+        out.newLine();
+      }
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  @Test(timeout=10000)
+  public void testSmallFileReadsHead() throws IOException {
+    File f = writeNumberedLines(50);
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    List<String> lines = LineSampler.sample(localFS, new Path(f.getCanonicalPath()), 20);
+    Assert.assertEquals(20, lines.size());
+    for (int i = 0; i < lines.size(); i++) {
+      Assert.assertEquals("line " + i + " value " + (i * 7), lines.get(i));
+    }
+  }
+
+  @Test(timeout=10000)
+  public void testLargeFileSamplesRegions() throws IOException {
+    int numLines = 100000;
+    File f = writeNumberedLines(numLines);
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    List<String> lines = LineSampler.sample(localFS, new Path(f.getCanonicalPath()), 400, 8192, 4);
+
+    Assert.assertTrue(lines.size() > 0);
+    Assert.assertTrue(lines.size() <= 400);
+    Assert.assertEquals("line 0 value 0", lines.get(0));
+
+    // Every sample is a whole, undamaged line; together they span the file
+    int maxLineNo = -1;
+    boolean sawMiddle = false;
+    for (String line: lines) {
+      String[] parts = line.split(" ");
+      Assert.assertEquals(4, parts.length);
+      int lineNo = Integer.parseInt(parts[1]);
+      Assert.assertEquals("line " + lineNo + " value " + (lineNo * 7), line);
+      if (lineNo > numLines / 4 && lineNo < (3 * numLines) / 4) {
+        sawMiddle = true;
+      }
+      maxLineNo = Math.max(maxLineNo, lineNo);
+    }
+    Assert.assertTrue(sawMiddle);
+    Assert.assertEquals(numLines - 1, maxLineNo);
+  }
+
+  @Test(timeout=10000)
+  public void testReservoirKeepsRareShapes() throws IOException {
+    int numLines = 20000;
+    File f = tmpOutDir.newFile("mixed.txt");
+    BufferedWriter out = new BufferedWriter(new FileWriter(f));
+    try {
+      for (int i = 0; i < numLines; i++) {
+        if (i % 5000 == 4999) {
+          out.write("ERROR [" + i + "] disk full");
+        } else {
+          out.write("line " + i + " value " + (i * 7));
+        }
+        out.newLine();
+      }
+    } finally {
+      out.close();
+    }
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    List<String> lines = LineSampler.reservoirSample(localFS, new Path(f.getCanonicalPath()), 100, 5);
+
+    Assert.assertEquals(100, lines.size());
+    Assert.assertEquals("line 0 value 0", lines.get(0));
+
+    // All four rare lines are kept; the common lines are in file order and span the file
+    int numRare = 0;
+    int prevLineNo = -1;
+    boolean sawTail = false;
+    for (String line: lines) {
+      if (line.startsWith("ERROR")) {
+        numRare++;
+        continue;
+      }
+      int lineNo = Integer.parseInt(line.split(" ")[1]);
+      Assert.assertTrue(lineNo > prevLineNo);
+      prevLineNo = lineNo;
+      if (lineNo > (3 * numLines) / 4) {
+        sawTail = true;
+      }
+    }
+    Assert.assertEquals(4, numRare);
+    Assert.assertTrue(sawTail);
+  }
+
+  @Test(timeout=10000)
+  public void testReservoirStaysWithinBudget() throws IOException {
+    int numLines = 100000;
+    File f = writeNumberedLines(numLines);
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    long byteBudget = 32 * 1024;
+    List<String> lines = LineSampler.reservoirSample(localFS, new Path(f.getCanonicalPath()), 200, 5, LineSampler.DEFAULT_SEED, byteBudget, 4);
+
+    Assert.assertEquals(200, lines.size());
+    Assert.assertEquals("line 0 value 0", lines.get(0));
+
+    // Samples are whole lines in file order, drawn from the head to the tail
+    // even though the budget covers only a small part of the file
+    long sampledBytes = 0;
+    int prevLineNo = -1;
+    for (String line: lines) {
+      int lineNo = Integer.parseInt(line.split(" ")[1]);
+      Assert.assertEquals("line " + lineNo + " value " + (lineNo * 7), line);
+      Assert.assertTrue(lineNo > prevLineNo);
+      prevLineNo = lineNo;
+      sampledBytes += line.length() + 1;
+    }
+    Assert.assertTrue(sampledBytes <= byteBudget);
+    Assert.assertTrue(prevLineNo > (3 * numLines) / 4);
+  }
+}